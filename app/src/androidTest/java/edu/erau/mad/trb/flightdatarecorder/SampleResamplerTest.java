@@ -0,0 +1,66 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* SampleResamplerTest.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to check how SampleResampler treats positions before the first fix. */
+
+import junit.framework.TestCase;
+
+/** Checks that no sample's position is interpolated from a record without
+ * a fix, as the records before the first fix all are. */
+public class SampleResamplerTest extends TestCase {
+
+    private static final long SECOND_NANOS = 1000000000L;
+    private static final double FIX_LATI = 29.19;
+    private static final double FIX_LONGI = -81.05;
+    private static final double FIX_ALT = 30.0;
+
+    //Every sample put out, in order
+    private final double[] latis = new double[16];
+    private final double[] longis = new double[16];
+    private final double[] alts = new double[16];
+    private final boolean[] estimates = new boolean[16];
+    private int samples = 0;
+
+    private final SampleResampler.Output output = new SampleResampler.Output() {
+        @Override
+        public void accept(long deltaTmicros, double roll, double pitch, double yaw,
+                           double lati, double longi, double alt, boolean posEstimated) {
+            latis[samples] = lati;
+            longis[samples] = longi;
+            alts[samples] = alt;
+            estimates[samples] = posEstimated;
+            samples++;
+        }
+    };
+
+    public void testNoPositionIsInterpolatedFromBeforeTheFirstFix() {
+        //Once a second, half a second off the grid, as a 1 Hz GPS would
+        final SampleResampler resampler = new SampleResampler(0, 1000000L, output);
+        resampler.accept(SECOND_NANOS / 2, 0, 0, 0, 0.0, 0.0, 0.0, false, 0);
+        resampler.accept(SECOND_NANOS * 3 / 2, 0, 0, 0, 0.0, 0.0, 0.0, false, 0);
+        final long fixNanos = SECOND_NANOS * 26 / 10;
+        resampler.accept(fixNanos, 0, 0, 0, FIX_LATI, FIX_LONGI, FIX_ALT, false, fixNanos);
+        final long nextFixNanos = SECOND_NANOS * 36 / 10;
+        resampler.accept(nextFixNanos, 0, 0, 0, FIX_LATI + 0.01, FIX_LONGI + 0.01,
+                FIX_ALT + 10.0, false, nextFixNanos);
+        resampler.flush();
+
+        assertEquals(3, samples);
+        //Between two records without a fix: no position
+        assertTrue(Double.isNaN(latis[0]));
+        assertTrue(Double.isNaN(longis[0]));
+        assertTrue(Double.isNaN(alts[0]));
+        //Between the last record without a fix and the first fix: the fix,
+        //held, and not as a measurement
+        assertEquals(FIX_LATI, latis[1], 0.0);
+        assertEquals(FIX_LONGI, longis[1], 0.0);
+        assertEquals(FIX_ALT, alts[1], 0.0);
+        assertTrue(estimates[1]);
+        //Between two fixes: interpolated
+        assertEquals(FIX_LATI + 0.004, latis[2], 1e-9);
+        assertEquals(FIX_LONGI + 0.004, longis[2], 1e-9);
+        assertEquals(FIX_ALT + 4.0, alts[2], 1e-9);
+        assertFalse(estimates[2]);
+    }
+}
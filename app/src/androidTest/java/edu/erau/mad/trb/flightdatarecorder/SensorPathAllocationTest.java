@@ -0,0 +1,199 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* SensorPathAllocationTest.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to check that the sensor callback path does not allocate. */
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import java.lang.reflect.Constructor;
+
+/** Fails if the path every sensor event takes allocates anything: the
+ * DevicePosAndOrient callback, dead reckoning from a fix, the high-rate
+ * sample ring, and the orientation getters. Sensor events are made up and
+ * fed to the callback directly, on the test thread. */
+public class SensorPathAllocationTest extends AndroidTestCase {
+
+    /** Times each body is run before counting, so that class loading and
+     * the like are done with */
+    private static final int WARMUP_RUNS = 200;
+    /** Times each body is run while counting */
+    private static final int COUNTED_RUNS = 2000;
+
+    private Sensor accel;
+    private Sensor mag;
+    private SensorEvent accelEvent;
+    private SensorEvent magEvent;
+    /** Null if there is no gyroscope */
+    private SensorEvent gyroEvent;
+    private DevicePosAndOrient posAndOrient;
+    private ImuSampleRing ring;
+
+    /** Drains the ring without doing anything */
+    private final ImuSampleRing.Sink discard = new ImuSampleRing.Sink() {
+        @Override
+        public void accept(long timestampNanos, double roll, double pitch, double yaw,
+                           double lati, double longi, double alt, boolean posEstimated,
+                           long fixNanos) {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final SensorManager sensorManager = (SensorManager) getContext()
+                .getSystemService(Context.SENSOR_SERVICE);
+        //The same objects DevicePosAndOrient compares events against
+        accel = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mag = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        assertNotNull("No accelerometer to test with", accel);
+        assertNotNull("No magnetometer to test with", mag);
+
+        accelEvent = Hooks.makeEvent(accel, 0.3f, 0.2f, 9.7f);
+        magEvent = Hooks.makeEvent(mag, 22f, 5f, -40f);
+        final Sensor gyro = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        if(gyro != null) gyroEvent = Hooks.makeEvent(gyro, 0.1f, -0.05f, 0.2f);
+        posAndOrient = new DevicePosAndOrient(getContext());
+        ring = new ImuSampleRing(1024);
+        posAndOrient.setSampleRing(ring);
+
+        //A moving fix, so every accelerometer reading is dead reckoned from it
+        final Location fix = new Location(LocationManager.GPS_PROVIDER);
+        fix.setLatitude(29.19);
+        fix.setLongitude(-81.05);
+        fix.setAltitude(10.0);
+        fix.setSpeed(50f);
+        fix.setBearing(70f);
+        posAndOrient.onLocationChanged(fix);
+    }
+
+    /** What the test needs that the SDK has no proper API for: sensor
+     * events, whose constructor is hidden, and counting a thread's
+     * allocations, which only the deprecated Debug counters do. Kept in one
+     * place so there is one place to change when either goes away. */
+    @SuppressWarnings("deprecation")
+    private static final class Hooks {
+
+        /** Make a sensor event through its hidden constructor. */
+        static SensorEvent makeEvent(Sensor sensor, float x, float y, float z)
+                throws Exception {
+            final Constructor<SensorEvent> constructor =
+                    SensorEvent.class.getDeclaredConstructor(int.class);
+            constructor.setAccessible(true);
+            final SensorEvent event = constructor.newInstance(3);
+            event.sensor = sensor;
+            event.values[0] = x;
+            event.values[1] = y;
+            event.values[2] = z;
+            return event;
+        }
+
+        /** Run a body a number of times, and count what this thread allocated. */
+        static int countAllocations(Runnable body, int runs) {
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            try {
+                for(int i = 0; i < runs; i++) {
+                    body.run();
+                }
+                return Debug.getThreadAllocCount();
+            } finally {
+                Debug.stopAllocCounting();
+            }
+        }
+    }
+
+    /** Run a body, warmed up, and fail if running it allocated anything. */
+    private static void assertNoAllocations(String what, Runnable body) {
+        for(int i = 0; i < WARMUP_RUNS; i++) {
+            body.run();
+        }
+        assertEquals(what + " allocated", 0, Hooks.countAllocations(body, COUNTED_RUNS));
+    }
+
+    /** Stamp an event with the time now, on the clock real events use. */
+    private static void stamp(SensorEvent event) {
+        event.timestamp = SensorClock.elapsedRealtimeNanos();
+    }
+
+    public void testSensorCallbacksDoNotAllocate() {
+        assertNoAllocations("onSensorChanged", new Runnable() {
+            @Override
+            public void run() {
+                //The attitude filter only moves on with time
+                if(gyroEvent != null) {
+                    stamp(gyroEvent);
+                    posAndOrient.onSensorChanged(gyroEvent);
+                }
+                stamp(magEvent);
+                posAndOrient.onSensorChanged(magEvent);
+                stamp(accelEvent);
+                posAndOrient.onSensorChanged(accelEvent);
+                //Keep the ring from filling, which is its own path
+                ring.drain(discard, ring.getCapacity());
+            }
+        });
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    public void testOrientationGettersDoNotAllocate() {
+        assertNoAllocations("Orientation getters", new Runnable() {
+            private float tilt = 0f;
+
+            @Override
+            public void run() {
+                //A new reading each time, so the orientation is worked out again
+                tilt = tilt > 1f ? 0f : tilt + 0.01f;
+                if(gyroEvent != null) {
+                    stamp(gyroEvent);
+                    posAndOrient.onSensorChanged(gyroEvent);
+                }
+                accelEvent.values[0] = tilt;
+                stamp(accelEvent);
+                posAndOrient.onSensorChanged(accelEvent);
+                ring.drain(discard, ring.getCapacity());
+                posAndOrient.getRoll();
+                posAndOrient.getPitch();
+                posAndOrient.getAz();
+            }
+        });
+    }
+
+    public void testSnapshotsDoNotAllocate() {
+        final DevicePosAndOrient.Snapshot snapshot = new DevicePosAndOrient.Snapshot();
+        assertNoAllocations("Snapshots", new Runnable() {
+            @Override
+            public void run() {
+                //A new reading each time, so the snapshot is copied again
+                stamp(magEvent);
+                posAndOrient.onSensorChanged(magEvent);
+                stamp(accelEvent);
+                posAndOrient.onSensorChanged(accelEvent);
+                ring.drain(discard, ring.getCapacity());
+                posAndOrient.readSnapshot(snapshot);
+                snapshot.getRoll();
+                snapshot.getLatitude();
+            }
+        });
+        assertTrue(snapshot.getSensorTimeNanos() > 0);
+    }
+
+    public void testFullRingDoesNotAllocate() {
+        assertNoAllocations("A full ring", new Runnable() {
+            @Override
+            public void run() {
+                stamp(magEvent);
+                posAndOrient.onSensorChanged(magEvent);
+                stamp(accelEvent);
+                posAndOrient.onSensorChanged(accelEvent);
+            }
+        });
+        assertTrue(ring.getDroppedCount() > 0);
+    }
+}
@@ -0,0 +1,131 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* AdaptiveRateController.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to choose how often to sample from how the aircraft is moving. */
+
+/** Chooses how often LoggingService samples, and how fast the sensors run,
+ * from how the aircraft is moving; faster states are entered at once and
+ * slower ones only after a while, so the rate doesn't flap. */
+final class AdaptiveRateController {
+
+    /** How the aircraft is moving, and how often to sample while it is */
+    enum MotionState {
+        /** Parked or taxiing slowly; hardly any rotation or acceleration */
+        STATIONARY(5000, 1000000, 100000),
+        /** Moving steadily, e.g. in cruise */
+        CRUISE(1000, 1000000, 20000),
+        /** Turning, climbing, descending or bumping about */
+        MANEUVER(100, 100000, 20000);
+
+        private final long loggingPeriodMillis;
+        private final int sensorPeriodUs;
+        private final int gyroPeriodUs;
+
+        MotionState(long loggingPeriodMillis, int sensorPeriodUs, int gyroPeriodUs) {
+            this.loggingPeriodMillis = loggingPeriodMillis;
+            this.sensorPeriodUs = sensorPeriodUs;
+            this.gyroPeriodUs = gyroPeriodUs;
+        }
+
+        /** Get the milliseconds between logged samples */
+        long getLoggingPeriodMillis() {
+            return loggingPeriodMillis;
+        }
+
+        /** Get the microseconds between accelerometer and magnetometer readings */
+        int getSensorPeriodUs() {
+            return sensorPeriodUs;
+        }
+
+        /** Get the microseconds between gyroscope readings */
+        int getGyroPeriodUs() {
+            return gyroPeriodUs;
+        }
+    }
+
+    //Thresholds to enter a maneuver, and the lower ones to leave it
+    private static final float MANEUVER_RATE_DPS = 10f;
+    private static final float MANEUVER_ACCEL_G = 0.15f;
+    private static final float STEADY_RATE_DPS = 5f;
+    private static final float STEADY_ACCEL_G = 0.08f;
+    //Thresholds to be counted as stationary; ground speed is only used
+    //while there is a fix with a speed
+    private static final float STILL_RATE_DPS = 2f;
+    private static final float STILL_ACCEL_G = 0.03f;
+    private static final float STILL_SPEED_MPS = 1f;
+    private static final float MOVING_SPEED_MPS = 3f;
+
+    /** Milliseconds the motion must stay steady before leaving a maneuver */
+    private static final long MANEUVER_HOLD_MS = 10000;
+    /** Milliseconds the aircraft must stay still before counting as stationary */
+    private static final long STATIONARY_HOLD_MS = 30000;
+
+    /** The motion peaks read from DevicePosAndOrient each update */
+    private final float[] peaks = new float[2];
+
+    private MotionState state = MotionState.CRUISE;
+    /** The time since which the motion has called for a slower state; -1
+     * if it hasn't */
+    private long calmSince = -1;
+
+    /** Get the current state */
+    MotionState getState() {
+        return state;
+    }
+
+    /** Look at the motion since the last update, and change state if it
+     * calls for it.
+     * @param now the current time, in milliseconds, on any steady clock
+     * @param motion where the motion peaks and ground speed come from
+     * @return true if the state changed */
+    boolean update(long now, DevicePosAndOrient motion) {
+        motion.takeMotionPeaks(peaks);
+        return update(now, peaks[0], peaks[1], motion.getGroundSpeed());
+    }
+
+    /** Change state if the motion calls for it.
+     * @param now the current time, in milliseconds, on any steady clock
+     * @param rateDps the fastest rotation, in degrees per second
+     * @param accelG the largest difference between the acceleration and 1 g,
+     *               in g
+     * @param speedMps the ground speed, in meters per second; NaN if unknown
+     * @return true if the state changed */
+    boolean update(long now, float rateDps, float accelG, float speedMps) {
+        final boolean knownSpeed = !Float.isNaN(speedMps);
+        final MotionState next;
+        if(rateDps > MANEUVER_RATE_DPS || accelG > MANEUVER_ACCEL_G) {
+            next = MotionState.MANEUVER;
+        } else if(state == MotionState.STATIONARY && (rateDps > STEADY_RATE_DPS ||
+                accelG > STEADY_ACCEL_G || (knownSpeed && speedMps > MOVING_SPEED_MPS))) {
+            next = MotionState.CRUISE;
+        } else {
+            //Slowing down waits for the motion to stay calm
+            final MotionState calmer;
+            if(rateDps < STILL_RATE_DPS && accelG < STILL_ACCEL_G &&
+                    (!knownSpeed || speedMps < STILL_SPEED_MPS)) {
+                calmer = MotionState.STATIONARY;
+            } else if(rateDps < STEADY_RATE_DPS && accelG < STEADY_ACCEL_G) {
+                calmer = MotionState.CRUISE;
+            } else {
+                calmer = state;
+            }
+
+            if(calmer.ordinal() >= state.ordinal()) {
+                calmSince = -1;
+                return false;
+            }
+            if(calmSince < 0) calmSince = now;
+            final long hold = state == MotionState.MANEUVER ?
+                    MANEUVER_HOLD_MS : STATIONARY_HOLD_MS;
+            if(now - calmSince < hold) return false;
+            //A maneuver winds down through cruise before coming to rest
+            next = state == MotionState.MANEUVER ? MotionState.CRUISE : calmer;
+        }
+
+        calmSince = -1;
+        if(next == state) return false;
+        state = next;
+        return true;
+    }
+}
@@ -11,20 +11,38 @@ import android.os.AsyncTask;
 
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 
 /** An asynchronous task that will read the flight data for a specific flight
- * from FlightLogDatabase and plot the markers on a GoogleMap. */
-public class AsyncMapDatabasePlotter extends AsyncTask<Void, LatLng,
-        ArrayList<LatLng>> {
+ * from FlightLogDatabase and plot it on a GoogleMap.
+ * <p>
+ * Rather than every point of the flight, only the tiles of the flight's
+ * level-of-detail pyramid that are within view are drawn, at the most
+ * detailed level that keeps the points on screen within POINT_BUDGET. More
+ * tiles are fetched whenever the camera moves, and tiles that leave the view
+ * are removed, so plotting takes the same time and memory however long the
+ * flight is. Call stop once the map is going away, so no load outlives it. */
+public class AsyncMapDatabasePlotter extends AsyncTask<Void, Void, LatLng[]>
+        implements GoogleMap.OnCameraChangeListener {
     // https://developer.android.com/reference/android/os/AsyncTask.html
 
+    /** Most points of the track to draw at once */
+    private static final int POINT_BUDGET = 2000;
+
     /** The database to read from */
     private final FlightLogDatabase database;
 
@@ -33,9 +51,6 @@ public class AsyncMapDatabasePlotter extends AsyncTask<Void, LatLng,
     /** The GoogleMap to plot points on */
     private final GoogleMap map;
 
-    /** The set of points, in order, as returned from the database */
-    private final ArrayList<LatLng> coords = new ArrayList<>();
-
     /** The bounds of all the points. */
     private LatLngBounds bounds;
 
@@ -43,6 +58,11 @@ public class AsyncMapDatabasePlotter extends AsyncTask<Void, LatLng,
      * animateCamera */
     private final Semaphore mapWait = new Semaphore(0);
 
+    /** The tiles currently drawn, keyed by tileKey; only used on the UI thread */
+    private final Map<Long, Polyline> drawnTiles = new HashMap<>();
+    /** The tile load in progress, if any */
+    private TileLoader tileLoader;
+
     /** Task constructor; simply initializes fields. Call execute to start the task.
      * @param id the flight ID to plot points for
      * @param googleMap a map to plot the points on
@@ -64,61 +84,203 @@ public class AsyncMapDatabasePlotter extends AsyncTask<Void, LatLng,
     }
 
     //This is the background task itself, which runs on its own thread.
+    //It finds the bounds and the end points of the flight; tiles come later.
     @Override
-    protected ArrayList<LatLng> doInBackground(Void... params) {
-        Cursor flightLogPoints = database.getFlightPositionsForFlight(flightID);
-        //If there are any points...
-        if(flightLogPoints.moveToFirst()) {
-            int latiCol = flightLogPoints.getColumnIndexOrThrow
-                    (FlightLogDatabase.COL_LATI);
-            int longiCol = flightLogPoints.getColumnIndexOrThrow
-                    (FlightLogDatabase.COL_LONGI);
-            //Iterate through them all!
-            do {
-                double lati, longi;
-                lati = flightLogPoints.getDouble(latiCol);
-                longi = flightLogPoints.getDouble(longiCol);
-                LatLng point = new LatLng(lati, longi);
-
-                coords.add(point);
-                //Push this point to the map, while we're at it.
-                publishProgress(point);
-            } while(flightLogPoints.moveToNext());
-        }
-        //Close the database connection
-        flightLogPoints.close();
-
-        //Calculate the bounds of the points (to get a nice camera zoom)
-        final LatLngBounds.Builder boundBuilder = new LatLngBounds.Builder();
-        for(final LatLng point : coords) {
-            boundBuilder.include(point);
+    protected LatLng[] doInBackground(Void... params) {
+        //The summary already has the bounds, so the camera can go there first
+        final FlightSummary summary = database.getFlightSummary(flightID);
+        if(summary != null && !summary.hasPosition()) return null;
+        if(summary != null) {
+            bounds = new LatLngBounds(
+                    new LatLng(summary.getMinLatitude(), summary.getMinLongitude()),
+                    new LatLng(summary.getMaxLatitude(), summary.getMaxLongitude()));
         }
-        bounds = boundBuilder.build();
 
         //Wait for the map to finish loading (the zoom crashes if map isn't ready)
         try {
             mapWait.acquire();
         } catch (InterruptedException ignored) {}
+        if(isCancelled()) return null;
+        if(bounds != null) publishProgress();
+
+        //Older flights may not have a pyramid yet
+        final int levels = database.ensureTrackLod(flightID);
+        if(levels == 0) return null;
+
+        //The top level is a single, small tile spanning the whole flight
+        final LatLngBounds.Builder boundBuilder = new LatLngBounds.Builder();
+        LatLng first = null, last = null;
+        Cursor top = database.getTrackLodTiles(flightID, levels - 1,
+                -90.0, 90.0, -180.0, 180.0);
+        try {
+            final FlightSegmentCodec.Decoder decoder = new FlightSegmentCodec.Decoder();
+            while(top.moveToNext()) {
+                decoder.reset(top.getBlob(1));
+                while(decoder.next()) {
+                    last = new LatLng(decoder.get(FlightSegmentCodec.LATI),
+                            decoder.get(FlightSegmentCodec.LONGI));
+                    if(first == null) first = last;
+                    boundBuilder.include(last);
+                }
+            }
+        } finally {
+            top.close();
+        }
+        if(first == null) return null;
 
-        return coords;
+        //No summary yet; the top level is close enough for a nice camera zoom
+        if(bounds == null) {
+            bounds = boundBuilder.build();
+            publishProgress();
+        }
+        return new LatLng[] {first, last};
     }
 
     //Progress update; runs on UI thread
     //Internally invoked from publishProgress
-    //This updates the provided map with a new coordinate point once loaded.
+    //This moves the camera to encompass the bounds of the flight.
     @Override
-    protected void onProgressUpdate(LatLng... values) {
-        map.addMarker(new MarkerOptions().position(values[0]));
+    protected void onProgressUpdate(Void... values) {
+        //20 is a pixel size; arbitrary camera padding
+        map.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, 20));
     }
 
     //Runs on UI thread after task completes
-    //Here, a polyline is drawn, and
-    //the camera is moved to encompass the bounds of all the points.
+    //Here, the start and end are marked, and tiles start following the camera.
     @Override
-    protected void onPostExecute(ArrayList<LatLng> latLngs) {
-        //3 and 20 are pixel sizes; arbitrary polyline width and camera padding
-        map.addPolyline(new PolylineOptions().addAll(latLngs).width(3.0f));
-        //animateCamera crashes if the map isn't ready (hence the semaphore earlier)
-        map.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, 20));
+    protected void onPostExecute(LatLng[] ends) {
+        if(ends == null) return;
+        map.addMarker(new MarkerOptions().position(ends[0]));
+        map.addMarker(new MarkerOptions().position(ends[1]));
+
+        map.setOnCameraChangeListener(this);
+        //The camera may have already settled
+        onCameraChange(map.getCameraPosition());
+    }
+
+    //Called on the UI thread when the camera stops moving.
+    //Loads the tiles for the new view, abandoning any load in progress.
+    @Override
+    public void onCameraChange(CameraPosition position) {
+        if(tileLoader != null) tileLoader.cancel(false);
+        tileLoader = new TileLoader(map.getProjection().getVisibleRegion().latLngBounds);
+        tileLoader.execute();
+    }
+
+    /** Stop plotting: the task, if it is still running, and any tile load in
+     * progress, and stop following the camera. For when the map is going
+     * away; must be called on the UI thread. */
+    public void stop() {
+        cancel(true);
+        if(tileLoader != null) tileLoader.cancel(false);
+        tileLoader = null;
+        map.setOnCameraChangeListener(null);
+    }
+
+    /** Get the key of a tile in drawnTiles. */
+    private static long tileKey(int level, long tile) {
+        return ((long) level << 48) | tile;
+    }
+
+    /** One tile, decoded to be drawn */
+    private static class TileLine {
+        final long key;
+        final List<LatLng> points;
+
+        TileLine(long key, List<LatLng> points) {
+            this.key = key;
+            this.points = points;
+        }
+    }
+
+    /** Loads the tiles that are within a view and not yet drawn, at the level
+     * that suits the view, then removes the tiles that are no longer wanted. */
+    private class TileLoader extends AsyncTask<Void, TileLine, Set<Long>> {
+
+        //The edges of the view
+        private final double minLati, maxLati, minLongi, maxLongi;
+        /** Keys of the tiles drawn when the load started */
+        private final Set<Long> alreadyDrawn;
+
+        /** Create a load for a view; must be called on the UI thread. */
+        TileLoader(LatLngBounds view) {
+            minLati = view.southwest.latitude;
+            maxLati = view.northeast.latitude;
+            //A view across the 180th meridian covers every longitude, roughly
+            if(view.southwest.longitude <= view.northeast.longitude) {
+                minLongi = view.southwest.longitude;
+                maxLongi = view.northeast.longitude;
+            } else {
+                minLongi = -180.0;
+                maxLongi = 180.0;
+            }
+            alreadyDrawn = new HashSet<>(drawnTiles.keySet());
+        }
+
+        @Override
+        protected Set<Long> doInBackground(Void... params) {
+            final Set<Long> wanted = new HashSet<>();
+            final int level = database.chooseTrackLodLevel(flightID, minLati, maxLati,
+                    minLongi, maxLongi, POINT_BUDGET);
+            if(level < 0) return wanted;
+
+            final FlightSegmentCodec.Decoder decoder = new FlightSegmentCodec.Decoder();
+            final double[] before = new double[2];
+            Cursor tiles = database.getTrackLodTiles(flightID, level, minLati, maxLati,
+                    minLongi, maxLongi);
+            try {
+                while(tiles.moveToNext() && !isCancelled()) {
+                    final long tile = tiles.getLong(0);
+                    final long key = tileKey(level, tile);
+                    wanted.add(key);
+                    if(alreadyDrawn.contains(key)) continue;
+
+                    decoder.reset(tiles.getBlob(1));
+                    final List<LatLng> points = new ArrayList<>(decoder.getCount() + 1);
+                    //Joined up to the tile before, if it doesn't end where this starts
+                    if(database.readPositionBeforeTile(flightID, level, tile, before)) {
+                        points.add(new LatLng(before[0], before[1]));
+                    }
+                    while(decoder.next()) {
+                        final double lati = decoder.get(FlightSegmentCodec.LATI);
+                        final double longi = decoder.get(FlightSegmentCodec.LONGI);
+                        //Samples without a fix, which only segments have
+                        if(!FlightSummary.hasPosition(lati, longi)) continue;
+                        points.add(new LatLng(lati, longi));
+                    }
+                    //Push this tile to the map, while we're at it.
+                    publishProgress(new TileLine(key, points));
+                }
+            } finally {
+                tiles.close();
+            }
+            return wanted;
+        }
+
+        //Draws a tile as soon as it is decoded
+        @Override
+        protected void onProgressUpdate(TileLine... lines) {
+            if(isCancelled()) return;
+            for(final TileLine line : lines) {
+                //3 is a pixel size; arbitrary polyline width
+                final Polyline old = drawnTiles.put(line.key, map.addPolyline(
+                        new PolylineOptions().addAll(line.points).width(3.0f)));
+                if(old != null) old.remove();
+            }
+        }
+
+        //Removes the tiles of other levels, or that have left the view
+        @Override
+        protected void onPostExecute(Set<Long> wanted) {
+            final Iterator<Map.Entry<Long, Polyline>> drawn =
+                    drawnTiles.entrySet().iterator();
+            while(drawn.hasNext()) {
+                final Map.Entry<Long, Polyline> tile = drawn.next();
+                if(!wanted.contains(tile.getKey())) {
+                    tile.getValue().remove();
+                    drawn.remove();
+                }
+            }
+        }
     }
 }
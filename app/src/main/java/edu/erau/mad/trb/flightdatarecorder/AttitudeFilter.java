@@ -0,0 +1,209 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* AttitudeFilter.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to fuse gyroscope, accelerometer and compass readings into an attitude. */
+
+import android.hardware.SensorManager;
+
+/** Works out the attitude of the device as a quaternion, from its gyroscope
+ * kept from drifting by its accelerometer and magnetometer: a complementary
+ * filter. Nothing allocates; not thread safe. */
+final class AttitudeFilter {
+
+    /** Seconds over which the accelerometer and magnetometer win out over
+     * the gyroscope */
+    private static final double TIME_CONSTANT_S = 0.5;
+    /** How far, as a fraction of gravity, the acceleration may be from
+     * gravity before the accelerometer is no longer trusted */
+    private static final double ACCEL_TOLERANCE = 0.15;
+    /** Longest gap, in nanoseconds, between gyroscope readings that is
+     * integrated over; after a longer one the rotation is lost */
+    private static final long MAX_GYRO_GAP_NANOS = 1000000000L;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    //The attitude, as a unit quaternion
+    private double w = 1.0;
+    private double x = 0.0;
+    private double y = 0.0;
+    private double z = 0.0;
+
+    /** Whether the attitude has been set from the accelerometer yet */
+    private boolean initialized = false;
+    /** Event time of the last gyroscope reading; 0 if none */
+    private long lastGyroNanos = 0;
+    /** Event time of the last correction; 0 if none */
+    private long lastCorrectionNanos = 0;
+
+    /** Scratch rotation matrix for corrections */
+    private final float[] rotation = new float[9];
+
+    /** Whether the attitude is known; false until the first correction */
+    boolean isInitialized() {
+        return initialized;
+    }
+
+    /** Forget the attitude, for when readings stop and start again. */
+    void reset() {
+        w = 1.0;
+        x = y = z = 0.0;
+        initialized = false;
+        lastGyroNanos = 0;
+        lastCorrectionNanos = 0;
+    }
+
+    /** Turn the attitude by a gyroscope reading, over the time since the
+     * last one.
+     * @param rates angular speeds about the device's x, y and z axes, in
+     *              radians per second, counterclockwise
+     * @param timestampNanos the sensor event time */
+    void rotate(float[] rates, long timestampNanos) {
+        final long gap = timestampNanos - lastGyroNanos;
+        final boolean integrate = initialized && lastGyroNanos != 0 &&
+                gap > 0 && gap <= MAX_GYRO_GAP_NANOS;
+        if(gap > 0 || lastGyroNanos == 0) lastGyroNanos = timestampNanos;
+        if(!integrate) return;
+
+        final double wx = rates[0], wy = rates[1], wz = rates[2];
+        final double speed = Math.sqrt(wx * wx + wy * wy + wz * wz);
+        if(speed == 0.0) return;
+
+        //The exact rotation at a constant rate over the gap, about its axis
+        final double halfAngle = speed * (gap / NANOS_PER_SECOND) / 2.0;
+        final double sinHalf = Math.sin(halfAngle) / speed;
+        final double dw = Math.cos(halfAngle);
+        final double dx = wx * sinHalf, dy = wy * sinHalf, dz = wz * sinHalf;
+
+        //Applied in device coordinates: q = q * dq
+        final double nw = w * dw - x * dx - y * dy - z * dz;
+        final double nx = w * dx + x * dw + y * dz - z * dy;
+        final double ny = w * dy - x * dz + y * dw + z * dx;
+        final double nz = w * dz + x * dy - y * dx + z * dw;
+        setNormalized(nw, nx, ny, nz);
+    }
+
+    /** Pull the attitude toward the one given by gravity and the magnetic
+     * field, by as much as the time since the last correction calls for;
+     * the first correction sets it outright.
+     * @param accel the latest accelerometer reading, in m/s^2
+     * @param mag the latest magnetometer reading
+     * @param timestampNanos the accelerometer event time */
+    void correct(float[] accel, float[] mag, long timestampNanos) {
+        if(!SensorManager.getRotationMatrix(rotation, null, accel, mag)) return;
+
+        //Shepperd's method, branching on the largest term to stay accurate
+        final float[] r = rotation;
+        final double trace = r[0] + r[4] + r[8];
+        double mw, mx, my, mz;
+        if(trace > 0.0) {
+            final double s = Math.sqrt(trace + 1.0) * 2.0;
+            mw = 0.25 * s;
+            mx = (r[7] - r[5]) / s;
+            my = (r[2] - r[6]) / s;
+            mz = (r[3] - r[1]) / s;
+        } else if(r[0] > r[4] && r[0] > r[8]) {
+            final double s = Math.sqrt(1.0 + r[0] - r[4] - r[8]) * 2.0;
+            mw = (r[7] - r[5]) / s;
+            mx = 0.25 * s;
+            my = (r[1] + r[3]) / s;
+            mz = (r[2] + r[6]) / s;
+        } else if(r[4] > r[8]) {
+            final double s = Math.sqrt(1.0 + r[4] - r[0] - r[8]) * 2.0;
+            mw = (r[2] - r[6]) / s;
+            mx = (r[1] + r[3]) / s;
+            my = 0.25 * s;
+            mz = (r[5] + r[7]) / s;
+        } else {
+            final double s = Math.sqrt(1.0 + r[8] - r[0] - r[4]) * 2.0;
+            mw = (r[3] - r[1]) / s;
+            mx = (r[2] + r[6]) / s;
+            my = (r[5] + r[7]) / s;
+            mz = 0.25 * s;
+        }
+
+        if(!initialized) {
+            setNormalized(mw, mx, my, mz);
+            initialized = true;
+            lastCorrectionNanos = timestampNanos;
+            return;
+        }
+
+        final long gap = timestampNanos - lastCorrectionNanos;
+        if(gap <= 0) return;
+        lastCorrectionNanos = timestampNanos;
+        final double seconds = Math.min(gap / NANOS_PER_SECOND, TIME_CONSTANT_S);
+
+        //Trust the accelerometer less the further it is from reading just gravity
+        final double g = Math.sqrt(accel[0] * accel[0] + accel[1] * accel[1] +
+                accel[2] * accel[2]) / SensorManager.GRAVITY_EARTH;
+        final double trust = 1.0 - Math.abs(g - 1.0) / ACCEL_TOLERANCE;
+        if(trust <= 0.0) return;
+        final double gain = trust * seconds / (TIME_CONSTANT_S + seconds);
+
+        //The same rotation either way; blend toward the nearer one
+        if(w * mw + x * mx + y * my + z * mz < 0.0) {
+            mw = -mw;
+            mx = -mx;
+            my = -my;
+            mz = -mz;
+        }
+        setNormalized(w + (mw - w) * gain, x + (mx - x) * gain,
+                y + (my - y) * gain, z + (mz - z) * gain);
+    }
+
+    /** Get the attitude as a quaternion.
+     * @param quaternion set to w, x, y and z, in that order */
+    void getQuaternion(float[] quaternion) {
+        quaternion[0] = (float) w;
+        quaternion[1] = (float) x;
+        quaternion[2] = (float) y;
+        quaternion[3] = (float) z;
+    }
+
+    /** Turn a vector from device coordinates into world coordinates.
+     * @param device the vector along the device's x, y and z axes
+     * @param world set to the vector east, north and up; may be device */
+    void toWorld(float[] device, float[] world) {
+        final double vx = device[0], vy = device[1], vz = device[2];
+        //v + 2w(u x v) + 2u x (u x v), for the quaternion's vector part u
+        final double tx = 2.0 * (y * vz - z * vy);
+        final double ty = 2.0 * (z * vx - x * vz);
+        final double tz = 2.0 * (x * vy - y * vx);
+        world[0] = (float) (vx + w * tx + y * tz - z * ty);
+        world[1] = (float) (vy + w * ty + z * tx - x * tz);
+        world[2] = (float) (vz + w * tz + x * ty - y * tx);
+    }
+
+    /** Get the attitude as SensorManager.getOrientation would.
+     * @param values set to azimuth, pitch and roll, in radians */
+    void getOrientation(float[] values) {
+        toOrientation(w, x, y, z, values);
+    }
+
+    /** Work out azimuth, pitch and roll from a quaternion given as w, x, y
+     * and z, as SensorManager.getOrientation would from its matrix. */
+    static void getOrientation(float[] quaternion, float[] values) {
+        toOrientation(quaternion[0], quaternion[1], quaternion[2], quaternion[3], values);
+    }
+
+    private static void toOrientation(double w, double x, double y, double z,
+                                      float[] values) {
+        //Just the elements of the rotation matrix that getOrientation uses
+        final double r1 = 2.0 * (x * y - w * z);
+        final double r4 = 1.0 - 2.0 * (x * x + z * z);
+        final double r6 = 2.0 * (x * z - w * y);
+        final double r7 = 2.0 * (y * z + w * x);
+        final double r8 = 1.0 - 2.0 * (x * x + y * y);
+        values[0] = (float) Math.atan2(r1, r4);
+        values[1] = (float) Math.asin(Math.max(-1.0, Math.min(1.0, -r7)));
+        values[2] = (float) Math.atan2(-r6, r8);
+    }
+
+    private void setNormalized(double nw, double nx, double ny, double nz) {
+        final double norm = Math.sqrt(nw * nw + nx * nx + ny * ny + nz * nz);
+        w = nw / norm;
+        x = nx / norm;
+        y = ny / norm;
+        z = nz / norm;
+    }
+}
@@ -0,0 +1,203 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* DeadReckoner.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to estimate the position between GPS fixes from the motion sensors. */
+
+/** Estimates the position of the device between GPS fixes from the last
+ * velocity and the measured acceleration, for at most MAX_COAST_NANOS after
+ * a fix. Nothing allocates; not thread safe. */
+final class DeadReckoner {
+
+    /** How much of the difference between a fix and the estimate is taken
+     * out by the fix; fixes are trusted more than the sensors */
+    private static final double POSITION_GAIN = 0.8;
+    /** How much of the velocity the estimate was off by, as worked out from
+     * that difference, is taken out by a fix without a speed and bearing */
+    private static final double VELOCITY_GAIN = 0.4;
+    /** Seconds over which a vertical speed dies away; the accelerometer's
+     * error along gravity would otherwise run the altitude off */
+    private static final double VERTICAL_DAMPING_S = 3.0;
+    /** Longest time, in nanoseconds, the position is carried on after a fix */
+    private static final long MAX_COAST_NANOS = 10000000000L;
+    /** Longest gap, in nanoseconds, between readings that the acceleration
+     * is integrated over; over a longer one the velocity alone is used */
+    private static final long MAX_STEP_NANOS = 1000000000L;
+    private static final double NANOS_PER_SECOND = 1e9;
+    /** Meters per degree of latitude, on a spherical Earth */
+    private static final double METERS_PER_DEGREE = 6371000.0 * Math.PI / 180.0;
+
+    //The last fix, which the estimate is kept relative to
+    private boolean haveFix = false;
+    private double fixLati, fixLongi, fixAltitude;
+    /** Meters per degree of longitude at the last fix */
+    private double metersPerDegreeLongi;
+    /** Time the last fix was taken at; 0 until there is a reading */
+    private long fixNanos = 0;
+
+    //The estimate: meters east, north and up of the last fix, and velocity
+    //in meters per second along the same axes
+    private double east, north, up;
+    private double velEast, velNorth, velUp;
+    /** Whether the velocity is known; until it is, the position stays put */
+    private boolean haveVelocity = false;
+
+    /** Time of the latest reading; 0 if none yet */
+    private long lastNanos = 0;
+    /** Whether the position has moved on from the last fix */
+    private boolean estimated = false;
+
+    /** Forget the estimate and the last fix. */
+    void reset() {
+        haveFix = false;
+        fixNanos = 0;
+        lastNanos = 0;
+        east = north = up = 0.0;
+        velEast = velNorth = velUp = 0.0;
+        haveVelocity = false;
+        estimated = false;
+    }
+
+    /** Blend in a new fix. The fix is carried on from when it was taken to
+     * the latest reading, at the measured velocity if it has one, or else
+     * the estimated one, before it is compared with the estimate.
+     * @param lati latitude, in signed degrees
+     * @param longi longitude, in signed degrees
+     * @param altitude altitude, in meters
+     * @param speed ground speed, in meters per second; NaN if unknown
+     * @param bearing direction of travel, in degrees clockwise from north;
+     *                NaN if unknown
+     * @param ageNanos how long before the latest reading the fix was taken;
+     *                 taken as 0 if negative or over MAX_STEP_NANOS */
+    void addFix(double lati, double longi, double altitude, float speed, float bearing,
+                long ageNanos) {
+        final boolean tracking = haveFix && fixNanos != 0 &&
+                lastNanos - fixNanos <= MAX_COAST_NANOS;
+        final long age = ageNanos >= 0 && ageNanos <= MAX_STEP_NANOS && lastNanos != 0 ?
+                ageNanos : 0;
+        final long takenNanos = lastNanos - age;
+
+        //A measured speed and bearing beat any worked out
+        final boolean measuredVelocity = !Float.isNaN(speed) &&
+                (!Float.isNaN(bearing) || speed == 0f);
+        double measuredEast = 0.0, measuredNorth = 0.0;
+        if(measuredVelocity) {
+            final double radians = Float.isNaN(bearing) ? 0.0 : Math.toRadians(bearing);
+            measuredEast = speed * Math.sin(radians);
+            measuredNorth = speed * Math.cos(radians);
+        }
+
+        //How far the device went between taking the fix and now
+        final double ageSeconds = age / NANOS_PER_SECOND;
+        final boolean carry = measuredVelocity || (tracking && haveVelocity);
+        final double carryEast = !carry ? 0.0 :
+                (measuredVelocity ? measuredEast : velEast) * ageSeconds;
+        final double carryNorth = !carry ? 0.0 :
+                (measuredVelocity ? measuredNorth : velNorth) * ageSeconds;
+        final double carryUp = tracking && haveVelocity ? velUp * ageSeconds : 0.0;
+
+        if(tracking) {
+            //The fix, carried on and relative to the last one, and how far
+            //off the estimate is
+            final double errEast = (longi - fixLongi) * metersPerDegreeLongi + carryEast - east;
+            final double errNorth = (lati - fixLati) * METERS_PER_DEGREE + carryNorth - north;
+            final double errUp = altitude - fixAltitude + carryUp - up;
+
+            final double seconds = (takenNanos - fixNanos) / NANOS_PER_SECOND;
+            if(seconds > 0.0) {
+                //The first velocity is taken from the fixes outright
+                final double gain = (haveVelocity ? VELOCITY_GAIN : 1.0) / seconds;
+                velEast += errEast * gain;
+                velNorth += errNorth * gain;
+                velUp += errUp * gain;
+            }
+            haveVelocity = seconds > 0.0;
+
+            //The blended position, kept relative to the new fix
+            east = carryEast - (1.0 - POSITION_GAIN) * errEast;
+            north = carryNorth - (1.0 - POSITION_GAIN) * errNorth;
+            up = carryUp - (1.0 - POSITION_GAIN) * errUp;
+        } else {
+            east = carryEast;
+            north = carryNorth;
+            up = 0.0;
+            velEast = velNorth = velUp = 0.0;
+            haveVelocity = false;
+        }
+        if(measuredVelocity) {
+            velEast = measuredEast;
+            velNorth = measuredNorth;
+            haveVelocity = true;
+        }
+
+        haveFix = true;
+        fixLati = lati;
+        fixLongi = longi;
+        fixAltitude = altitude;
+        metersPerDegreeLongi = METERS_PER_DEGREE * Math.cos(Math.toRadians(lati));
+        fixNanos = lastNanos == 0 ? 0 : takenNanos;
+        estimated = false;
+    }
+
+    /** Carry the position on to the time of a reading.
+     * @param accel the acceleration of the device with gravity taken out, in
+     *              m/s^2 east, north and up; null if unknown, to carry on at
+     *              the same velocity
+     * @param timestampNanos the time of the reading, in
+     *                       SystemClock.elapsedRealtimeNanos
+     * @return true if the position moved */
+    boolean step(float[] accel, long timestampNanos) {
+        final long gap = timestampNanos - lastNanos;
+        final boolean first = lastNanos == 0;
+        if(gap <= 0 && !first) return false;
+        lastNanos = timestampNanos;
+        if(!haveFix) return false;
+        if(fixNanos == 0) {
+            //The fix came in before any reading
+            fixNanos = timestampNanos;
+            return false;
+        }
+        if(first || !haveVelocity || timestampNanos - fixNanos > MAX_COAST_NANOS) {
+            return false;
+        }
+
+        final double dt = gap / NANOS_PER_SECOND;
+        if(accel != null && gap <= MAX_STEP_NANOS) {
+            final double halfDt2 = 0.5 * dt * dt;
+            east += velEast * dt + accel[0] * halfDt2;
+            north += velNorth * dt + accel[1] * halfDt2;
+            up += velUp * dt + accel[2] * halfDt2;
+            velEast += accel[0] * dt;
+            velNorth += accel[1] * dt;
+            velUp += accel[2] * dt;
+        } else {
+            east += velEast * dt;
+            north += velNorth * dt;
+            up += velUp * dt;
+        }
+        velUp *= Math.max(0.0, 1.0 - dt / VERTICAL_DAMPING_S);
+        estimated = true;
+        return true;
+    }
+
+    /** Whether the position has been carried on from the last fix, rather
+     * than being the fix itself */
+    boolean isEstimated() {
+        return estimated;
+    }
+
+    /** Get the latitude, in signed degrees */
+    double getLatitude() {
+        return fixLati + north / METERS_PER_DEGREE;
+    }
+
+    /** Get the longitude, in signed degrees */
+    double getLongitude() {
+        return metersPerDegreeLongi == 0.0 ? fixLongi : fixLongi + east / metersPerDegreeLongi;
+    }
+
+    /** Get the altitude, in meters */
+    double getAltitude() {
+        return fixAltitude + up;
+    }
+}
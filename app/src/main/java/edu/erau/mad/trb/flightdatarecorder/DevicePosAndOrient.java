@@ -4,47 +4,160 @@ package edu.erau.mad.trb.flightdatarecorder;
  * by Thomas Bassa
  * A Java class to manage the position & orientation of an Android device. */
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.os.Build;
 import android.os.Bundle;
-
-/** A class to manage the position and orientation of a device in space. */
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** A class to manage the position and orientation of a device in space.
+ * Orientation is fused by an AttitudeFilter where there is a gyroscope, and
+ * the position is dead reckoned between fixes; any thread can read a
+ * Snapshot of it all without locking. */
 public class DevicePosAndOrient implements SensorEventListener, LocationListener {
     private static final int US_PER_SECOND = 1000000;
     private static final long MS_PER_SECOND = 1000L;
+    /** Gyroscope rate, in Hz, when logging once a second; integrating it
+     * needs far more than one reading a second */
+    private static final int GYRO_RATE_HZ = 50;
+    /** Priority of the sensor thread: ahead of the UI and render threads, so
+     * a busy UI can't hold up a reading, but behind audio */
+    private static final int SENSOR_THREAD_PRIORITY = Process.THREAD_PRIORITY_URGENT_DISPLAY;
+    /** Readings a second taken for a sensor that doesn't give its fastest
+     * rate; more than most phones' sensors deliver */
+    private static final int UNKNOWN_MAX_RATE_HZ = 500;
+    /** Longest time stopListening waits for batched readings to be flushed */
+    private static final long FLUSH_TIMEOUT_MS = 2000L;
 
     /** Location provider. */
     private static final String LOC_PROVIDER = LocationManager.GPS_PROVIDER;
 
     //Sensors
     private final SensorManager sensorManager;
+    /** Thread every sensor and location callback runs on while listening,
+     * and a Handler on it; null while not listening */
+    private HandlerThread sensorThread = null;
+    private Handler sensorHandler = null;
     private Sensor senseMag = null;
     private Sensor senseAccel = null;
-
-    private final float[] rotationMatrix = new float[9];
-    private float[] magValues = null;
-    private float[] accelValues = null;
-
-    /** This array holds the final orientation values, in azimuth, pitch,
-     * and roll order */
-    private final float[] orientValues = new float[3];
+    /** The gyroscope; null if there is none, or no accelerometer and
+     * magnetometer to correct its drift */
+    private Sensor senseGyro = null;
+
+    /** Fuses the gyroscope with the other two; only used on the thread
+     * sensor events arrive on, and only if there is a gyroscope */
+    private final AttitudeFilter attitude = new AttitudeFilter();
+    /** Puts sensor event times on the elapsed real time clock; only used on
+     * the thread sensor events arrive on */
+    private final SensorClock sensorClock = new SensorClock();
+
+    //Latest reading of each sensor; only used on the thread sensor events
+    //arrive on. Events are copied in, never kept, since the system reuses them.
+    private final float[] magValues = new float[3];
+    private final float[] accelValues = new float[3];
+    private boolean haveMag = false;
+    private boolean haveAccel = false;
+
+    //Orientation of high-rate samples, worked out on the sensor thread
+    private final float[] sampleRotation = new float[9];
+    private final float[] sampleOrient = new float[3];
+
+    /** Sequence number of the published state: odd while a callback is
+     * writing it, and bumped twice per write. A reader reads it before and
+     * after copying the state, and copies again unless it was the same even
+     * number both times. Every published field is volatile, so none of them
+     * can be read outside of the two reads of the sequence. */
+    private volatile int sequence = 0;
+    /** Keeps the sensor and location callbacks from writing at once; they
+     * share the sensor thread while listening, but events may also be fed
+     * in directly. Readers never take it. */
+    private final Object writeLock = new Object();
+
+    //Published orientation: the latest pair of readings, or the fused
+    //attitude quaternion if there is a gyroscope, and their event time.
+    //The orientation itself is worked out by whoever reads it.
+    private volatile boolean pubOriented = false;
+    private volatile long pubSensorNanos = 0;
+    private volatile float pubAccelX, pubAccelY, pubAccelZ;
+    private volatile float pubMagX, pubMagY, pubMagZ;
+    private volatile float pubQuatW, pubQuatX, pubQuatY, pubQuatZ;
+
+    /** Snapshot used by the getters, one per thread */
+    private final ThreadLocal<Snapshot> getterSnapshots = new ThreadLocal<Snapshot>() {
+        @Override
+        protected Snapshot initialValue() {
+            return new Snapshot();
+        }
+    };
+    /** Scratch quaternion for publishing the fused attitude */
+    private final float[] quatScratch = new float[4];
+
+    /** Carries the position on between fixes; only used under writeLock */
+    private final DeadReckoner reckoner = new DeadReckoner();
+    /** Acceleration in world coordinates, less gravity, as of the latest
+     * accelerometer reading, for the reckoner */
+    private final float[] worldAccel = new float[3];
+    /** Whether worldAccel has been worked out yet */
+    private boolean haveWorldAccel = false;
 
     /** Track whether the device has the sensors required for orientation.
      * Assume false until the sensors have been retrieved from the SensorManager */
     private boolean sensorsPresent = false;
 
+    /** Ring that a sample is offered to with every reading once the
+     * orientation is known; null for none */
+    private ImuSampleRing sampleRing = null;
+
+    /** The periods this object is registered for, in microseconds; -1 while
+     * not registered */
+    private int registeredPeriodUs = -1;
+    private int registeredGyroPeriodUs = -1;
+
+    /** Listener registered in place of this object while the sensors are
+     * batched, so the end of a flush can be waited for; null otherwise */
+    private FifoListener fifoListener = null;
+
+    //Motion peaks for takeMotionPeaks, kept on the sensor thread: the fastest
+    //rotation in degrees per second, and the largest difference between the
+    //acceleration and 1 g, in g, since the peaks were last taken
+    private float peakRateDps = 0f;
+    private float peakAccelG = 0f;
+    /** The peaks as of the latest reading, for other threads */
+    private volatile float publishedRateDps = 0f;
+    private volatile float publishedAccelG = 0f;
+    /** Bumped by takeMotionPeaks to have the sensor thread start new peaks */
+    private volatile int motionEpoch = 0;
+    /** The motionEpoch the current peaks belong to */
+    private int peakEpoch = 0;
+
     //Location
     private final LocationManager locationManager;
 
-    private double lati = 0.0;
-    private double longi = 0.0;
-    private double altitude = 0.0;
+    //Published position; see sequence
+    private volatile double lati = 0.0;
+    private volatile double longi = 0.0;
+    /** Altitude in meters */
+    private volatile double altitude = 0.0;
+    /** Ground speed in meters per second; NaN if the last fix had none */
+    private volatile float groundSpeed = Float.NaN;
+    /** SystemClock.elapsedRealtimeNanos the last fix was taken at; 0 if none */
+    private volatile long fixTimeNanos = 0;
+    /** Whether the position has been dead reckoned since the last fix */
+    private volatile boolean positionEstimated = false;
 
     /** Create a DevicePosAndOrient object, using the Context to retrieve
      * system services (sensors, location) */
@@ -55,26 +168,192 @@ public class DevicePosAndOrient implements SensorEventListener, LocationListener
 
         senseMag = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
         senseAccel = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        if(senseMag != null && senseAccel != null) sensorsPresent = true;
+        if(senseMag != null && senseAccel != null) {
+            sensorsPresent = true;
+            senseGyro = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        }
 
         //Location management
         locationManager = (LocationManager) hostContext.getSystemService(Context
                 .LOCATION_SERVICE);
     }
 
-    /** Begin listening to sensors & location data */
+    /** Begin listening to sensors & location data, on a thread of their own */
     public void startListening() {
+        startSensorThread();
+        if(sensorsPresent) {
+            registerSensors(this, US_PER_SECOND, US_PER_SECOND / GYRO_RATE_HZ);
+        }
+        requestLocationUpdates();
+    }
+
+    /** Start the thread callbacks are delivered on. The main thread is left
+     * to the UI, and the caller's thread to its own work, e.g. committing
+     * samples, so neither can hold up or drop a reading. */
+    private void startSensorThread() {
+        if(sensorThread != null) return;
+        sensorThread = new HandlerThread("SensorThread", SENSOR_THREAD_PRIORITY);
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
+    }
+
+    private void requestLocationUpdates() {
+        locationManager.requestLocationUpdates(LOC_PROVIDER, MS_PER_SECOND, 1f, this,
+                sensorThread.getLooper());
+    }
+
+    /** Begin listening to sensors at a high rate, and offer a full sample
+     * to a ring with every reading once the orientation is known. Readings
+     * may be batched in the sensor FIFO on API 19 and up.
+     * @param rateHz the sensor rate, in readings per second
+     * @param maxReportLatencyMs the longest time a reading may be held in
+     *                           the FIFO; 0 to not batch. Shortened to what
+     *                           the FIFO can hold at rateHz.
+     * @param ring the ring to offer samples to; this object becomes its
+     *             only producer */
+    void startListening(int rateHz, int maxReportLatencyMs, ImuSampleRing ring) {
+        setSampleRing(ring);
+        startSensorThread();
         if(sensorsPresent) {
-            sensorManager.registerListener(this, senseMag, US_PER_SECOND);
-            sensorManager.registerListener(this, senseAccel, US_PER_SECOND);
+            final int periodUs = US_PER_SECOND / rateHz;
+            final int latencyUs = maxReportLatencyMs > 0 &&
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ?
+                    getFifoLatencyUs(rateHz, maxReportLatencyMs) : 0;
+            if(latencyUs > 0) {
+                fifoListener = new FifoListener(this, senseGyro != null ? 3 : 2);
+                fifoListener.register(sensorManager, senseMag, periodUs, latencyUs,
+                        sensorHandler);
+                fifoListener.register(sensorManager, senseAccel, periodUs, latencyUs,
+                        sensorHandler);
+                if(senseGyro != null) {
+                    fifoListener.register(sensorManager, senseGyro, periodUs, latencyUs,
+                            sensorHandler);
+                }
+            } else {
+                registerSensors(this, periodUs, periodUs);
+            }
         }
-        locationManager.requestLocationUpdates(LOC_PROVIDER, MS_PER_SECOND, 1f, this);
+        requestLocationUpdates();
+    }
+
+    /** Get the report latency, in microseconds, that every sensor's FIFO
+     * space can hold at a rate without losing readings; at most the latency
+     * asked for, and 0 if the sensors can't batch. Each sensor counts on its
+     * reserved space, or else on its share of the FIFO it has with the others. */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private int getFifoLatencyUs(int rateHz, int maxReportLatencyMs) {
+        final Sensor[] sensors = senseGyro != null ?
+                new Sensor[] {senseMag, senseAccel, senseGyro} :
+                new Sensor[] {senseMag, senseAccel};
+        long latencyUs = TimeUnit.MILLISECONDS.toMicros(maxReportLatencyMs);
+        for(Sensor sensor : sensors) {
+            final int events = sensor.getFifoReservedEventCount() > 0 ?
+                    sensor.getFifoReservedEventCount() :
+                    sensor.getFifoMaxEventCount() / sensors.length;
+            latencyUs = Math.min(latencyUs, (long) events * US_PER_SECOND / rateHz);
+        }
+        return (int) latencyUs;
+    }
+
+    /** Register a listener to every sensor used for the orientation.
+     * @param periodUs the period of accelerometer and magnetometer readings
+     * @param gyroPeriodUs the period of gyroscope readings */
+    private void registerSensors(SensorEventListener listener, int periodUs,
+                                 int gyroPeriodUs) {
+        sensorManager.registerListener(listener, senseMag, periodUs, sensorHandler);
+        sensorManager.registerListener(listener, senseAccel, periodUs, sensorHandler);
+        if(senseGyro != null) {
+            sensorManager.registerListener(listener, senseGyro, gyroPeriodUs, sensorHandler);
+        }
+        if(listener == this) {
+            registeredPeriodUs = periodUs;
+            registeredGyroPeriodUs = gyroPeriodUs;
+        }
+    }
+
+    /** Get the most readings a second the orientation sensors can deliver
+     * together. A sensor may report faster than it is asked to, up to this.
+     * @return the total rate, in Hz; 0 without the sensors */
+    int getMaxReadingsHz() {
+        if(!sensorsPresent) return 0;
+        final Sensor[] sensors = senseGyro != null ?
+                new Sensor[] {senseMag, senseAccel, senseGyro} :
+                new Sensor[] {senseMag, senseAccel};
+        int total = 0;
+        for(Sensor sensor : sensors) {
+            final int minDelayUs = sensor.getMinDelay();
+            total += minDelayUs > 0 ? US_PER_SECOND / minDelayUs : UNKNOWN_MAX_RATE_HZ;
+        }
+        return total;
+    }
+
+    /** Change how often the sensors report, while listening unbatched at
+     * once a second, e.g. to follow the motion; see AdaptiveRateController.
+     * @param periodUs the period of accelerometer and magnetometer readings
+     * @param gyroPeriodUs the period of gyroscope readings */
+    void setSensorPeriods(int periodUs, int gyroPeriodUs) {
+        if(!sensorsPresent || fifoListener != null || sensorThread == null) return;
+        //The rate controller asks on every change of state, often for the same rates
+        if(periodUs == registeredPeriodUs && gyroPeriodUs == registeredGyroPeriodUs) return;
+        //Registering again doesn't change the rate on every version
+        sensorManager.unregisterListener(this);
+        registerSensors(this, periodUs, gyroPeriodUs);
+    }
+
+    /** Get the motion peaks since they were last taken, and start new ones.
+     * A reading arriving just as the peaks are taken may be counted in
+     * neither, which is near enough for choosing a sample rate.
+     * @param peaks set to the fastest rotation, in degrees per second (0
+     *              without a gyroscope), and the largest difference between
+     *              the acceleration and 1 g, in g */
+    void takeMotionPeaks(float[] peaks) {
+        peaks[0] = publishedRateDps;
+        peaks[1] = publishedAccelG;
+        motionEpoch++;
+    }
+
+    /** Whether the device has the sensors the orientation is worked out
+     * from; without them, there are no readings, and only the position */
+    boolean hasOrientationSensors() {
+        return sensorsPresent;
+    }
+
+    /** Get the last known ground speed, in meters per second; NaN if unknown */
+    public float getGroundSpeed() {
+        return groundSpeed;
+    }
+
+    /** Set the ring a sample is offered to with every reading, or null for
+     * none. Each sample is stamped with its sensor event time, and carries
+     * the position as of that reading and the time of the fix it is from.
+     * Only to be changed while not listening. */
+    void setSampleRing(ImuSampleRing ring) {
+        sampleRing = ring;
     }
 
-    /** Stop listening to sensors & location, to save battery */
+    /** Stop listening to sensors & location, to save battery, and end the
+     * sensor thread once it has handled what was delivered already. If the
+     * sensors are batched, the readings still in their FIFO are flushed
+     * first, and waited for unless this is the sensor thread. */
     public void stopListening() {
+        if(fifoListener != null) {
+            fifoListener.flush(sensorManager, sensorThread.getLooper());
+            sensorManager.unregisterListener(fifoListener);
+            fifoListener = null;
+        }
         sensorManager.unregisterListener(this);
+        registeredPeriodUs = registeredGyroPeriodUs = -1;
         locationManager.removeUpdates(this);
+
+        if(sensorThread != null) {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                sensorThread.quitSafely();
+            } else {
+                sensorThread.quit();
+            }
+            sensorThread = null;
+            sensorHandler = null;
+        }
     }
 
     /** Get the last known latitude of the device, signed. */
@@ -90,13 +369,21 @@ public class DevicePosAndOrient implements SensorEventListener, LocationListener
     /** Get a formatted numeric string with the latitude,
      * referencing north or south rather than a sign. */
     public String getNiceLatitude() {
-        String latiCompass = lati >= 0.0 ? "N" : "S";
-        return formatDecDegToDegMinSec(Math.abs(lati), latiCompass);
+        return formatLatitude(lati);
     }
 
     /** Get a formatted numeric string with the longitude,
      * referencing east or west rather than a sign. */
     public String getNiceLongitude() {
+        return formatLongitude(longi);
+    }
+
+    private static String formatLatitude(double lati) {
+        String latiCompass = lati >= 0.0 ? "N" : "S";
+        return formatDecDegToDegMinSec(Math.abs(lati), latiCompass);
+    }
+
+    private static String formatLongitude(double longi) {
         String longiCompass = longi >= 0.0 ? "E" : "W";
         return formatDecDegToDegMinSec(Math.abs(longi), longiCompass);
     }
@@ -129,30 +416,44 @@ public class DevicePosAndOrient implements SensorEventListener, LocationListener
     /** Get the azimuth (bearing) of the device in degrees.
      * @see android.hardware.SensorManager#getOrientation(float[], float[]) */
     public double getAz() {
-        return Math.toDegrees(orientValues[0]);
+        final Snapshot snapshot = getterSnapshots.get();
+        readSnapshot(snapshot);
+        return snapshot.getAz();
     }
 
     /** Get the pitch of the device in degrees.
      * @see android.hardware.SensorManager#getOrientation(float[], float[]) */
     public double getPitch() {
-        return Math.toDegrees(orientValues[1]);
+        final Snapshot snapshot = getterSnapshots.get();
+        readSnapshot(snapshot);
+        return snapshot.getPitch();
     }
 
     /** Get the roll of the device in degrees.
      * @see android.hardware.SensorManager#getOrientation(float[], float[]) */
     public double getRoll() {
-        return Math.toDegrees(orientValues[2]);
+        final Snapshot snapshot = getterSnapshots.get();
+        readSnapshot(snapshot);
+        return snapshot.getRoll();
     }
 
     /** Get the altitude of the device, in feet above sea level */
     public double getAltitude() {
-        //The stored altitude is in meters-- there are 3.281 ft/m
-        return altitude * 3.281;
+        return metersToFeet(altitude);
     }
 
     /** Get a formatted string with the altitude in feet. */
     public String getNiceAltitude() {
-        return String.format("%2.2f ft.", getAltitude());
+        return formatAltitude(getAltitude());
+    }
+
+    private static double metersToFeet(double meters) {
+        //The stored altitude is in meters-- there are 3.281 ft/m
+        return meters * 3.281;
+    }
+
+    private static String formatAltitude(double feet) {
+        return String.format("%2.2f ft.", feet);
     }
 
     /** Take a degrees value for roll/pitch/yaw and format it nicely. */
@@ -160,9 +461,136 @@ public class DevicePosAndOrient implements SensorEventListener, LocationListener
         return String.format("% 3.2f°", value);
     }
 
+    /** Copy the latest published state into a snapshot, all of it from
+     * the same moment. Never blocks and never allocates; if a callback is
+     * writing meanwhile, the copy is just made again. Does nothing if the
+     * snapshot is already up to date. Any thread may call this, but each
+     * needs a snapshot of its own. */
+    public void readSnapshot(Snapshot snapshot) {
+        final boolean fused = senseGyro != null;
+        int before;
+        do {
+            before = sequence;
+            if(before == snapshot.sequence) return;
+            if((before & 1) != 0) {
+                //Mid-write; let the writer finish
+                Thread.yield();
+                continue;
+            }
+
+            snapshot.oriented = pubOriented;
+            snapshot.sensorNanos = pubSensorNanos;
+            if(fused) {
+                snapshot.quat[0] = pubQuatW;
+                snapshot.quat[1] = pubQuatX;
+                snapshot.quat[2] = pubQuatY;
+                snapshot.quat[3] = pubQuatZ;
+            } else {
+                snapshot.accel[0] = pubAccelX;
+                snapshot.accel[1] = pubAccelY;
+                snapshot.accel[2] = pubAccelZ;
+                snapshot.mag[0] = pubMagX;
+                snapshot.mag[1] = pubMagY;
+                snapshot.mag[2] = pubMagZ;
+            }
+            snapshot.lati = lati;
+            snapshot.longi = longi;
+            snapshot.altitude = altitude;
+            snapshot.groundSpeed = groundSpeed;
+            snapshot.fixTimeNanos = fixTimeNanos;
+            snapshot.positionEstimated = positionEstimated;
+        } while((before & 1) != 0 || sequence != before);
+
+        snapshot.sequence = before;
+        snapshot.fused = fused;
+        snapshot.orientationWorkedOut = false;
+    }
+
+    /** Publish the latest pair of readings, or the fused attitude, for
+     * readSnapshot, with the position carried on to them, and offer it all
+     * as a sample to the ring if there is one.
+     * @param timestampNanos the time of the reading, in
+     *                       SystemClock.elapsedRealtimeNanos
+     * @param accelReading whether the reading is the accelerometer's */
+    private void publishReading(long timestampNanos, boolean accelReading) {
+        final float[] linearAccel;
+        if(senseGyro != null) {
+            attitude.getQuaternion(quatScratch);
+            if(accelReading) {
+                //The acceleration in world coordinates, less gravity; gyroscope
+                //readings in between carry on with it
+                attitude.toWorld(accelValues, worldAccel);
+                worldAccel[2] -= SensorManager.GRAVITY_EARTH;
+                haveWorldAccel = true;
+            }
+            linearAccel = haveWorldAccel ? worldAccel : null;
+        } else {
+            linearAccel = null;
+        }
+
+        //A sample's orientation is worked out here, so the ring's consumer
+        //doesn't have to
+        final boolean sample;
+        if(sampleRing == null) {
+            sample = false;
+        } else if(senseGyro != null) {
+            attitude.getOrientation(sampleOrient);
+            sample = true;
+        } else if(SensorManager.getRotationMatrix(sampleRotation, null, accelValues,
+                magValues)) {
+            SensorManager.getOrientation(sampleRotation, sampleOrient);
+            sample = true;
+        } else {
+            sample = false;
+        }
+
+        final double sampleLati, sampleLongi, sampleAltitude;
+        final boolean sampleEstimated;
+        final long sampleFixNanos;
+        synchronized (writeLock) {
+            sequence++;
+            pubOriented = true;
+            pubSensorNanos = timestampNanos;
+            if(senseGyro != null) {
+                pubQuatW = quatScratch[0];
+                pubQuatX = quatScratch[1];
+                pubQuatY = quatScratch[2];
+                pubQuatZ = quatScratch[3];
+            } else {
+                pubAccelX = accelValues[0];
+                pubAccelY = accelValues[1];
+                pubAccelZ = accelValues[2];
+                pubMagX = magValues[0];
+                pubMagY = magValues[1];
+                pubMagZ = magValues[2];
+            }
+            if(reckoner.step(linearAccel, timestampNanos)) {
+                lati = reckoner.getLatitude();
+                longi = reckoner.getLongitude();
+                altitude = reckoner.getAltitude();
+                positionEstimated = true;
+            }
+            sequence++;
+
+            //The sample's position has to come from the same moment
+            sampleLati = lati;
+            sampleLongi = longi;
+            sampleAltitude = altitude;
+            sampleEstimated = positionEstimated;
+            sampleFixNanos = fixTimeNanos;
+        }
+
+        if(!sample) return;
+        sampleRing.offer(timestampNanos, Math.toDegrees(sampleOrient[2]),
+                Math.toDegrees(sampleOrient[1]), Math.toDegrees(sampleOrient[0]),
+                sampleLati, sampleLongi, metersToFeet(sampleAltitude), sampleEstimated,
+                sampleFixNanos);
+    }
+
     //Methods implemented from SensorEventListener
     //Fired whenever one of the sensors changes. This class only registers for
     // sensor updates when both a compass & geomagnetic sensor are present.
+    //Runs for every event, so nothing in here allocates.
     @Override
     public void onSensorChanged(SensorEvent event) {
         //Useful notes & references
@@ -172,37 +600,255 @@ public class DevicePosAndOrient implements SensorEventListener, LocationListener
 // https://developer.android.com/reference/android/hardware/SensorManager.html#
 // getRotationMatrix%28float%5B%5D,%20float%5B%5D,%20float%5B%5D,%20float%5B%5D%29
 
+        //Every time from here on is elapsed real time
+        final long eventNanos = sensorClock.toElapsedNanos(event.timestamp);
+
+        if(motionEpoch != peakEpoch) {
+            peakEpoch = motionEpoch;
+            peakRateDps = 0f;
+            peakAccelG = 0f;
+        }
+
         //Address compare should be OK since these were specifically registered...
-        if (event.sensor == senseMag) {
-            magValues = event.values.clone();
-        } else if (event.sensor == senseAccel) {
-            accelValues = event.values.clone();
-        } //no else
-
-        //If we have data for both sensors...
-        if ((magValues != null) && (accelValues != null)) {
-            //Get the rotation matrix from the sensor data
-            boolean gotRotation = SensorManager.getRotationMatrix
-                    (rotationMatrix, null, accelValues, magValues);
-
-            //If successful, update orientation
-            if (gotRotation) {
-                SensorManager.getOrientation(rotationMatrix, orientValues);
-            }
+        if(event.sensor == senseGyro) {
+            //senseGyro is null without one, and events never have a null sensor
+            final float[] v = event.values;
+            peakRateDps = Math.max(peakRateDps, (float) Math.toDegrees(
+                    Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2])));
+            publishedRateDps = peakRateDps;
+            attitude.rotate(event.values, eventNanos);
+            if(attitude.isInitialized()) publishReading(eventNanos, false);
+            return;
+        } else if(event.sensor == senseMag) {
+            System.arraycopy(event.values, 0, magValues, 0, 3);
+            haveMag = true;
+        } else if(event.sensor == senseAccel) {
+            System.arraycopy(event.values, 0, accelValues, 0, 3);
+            haveAccel = true;
+            final float[] a = accelValues;
+            peakAccelG = Math.max(peakAccelG, Math.abs((float) Math.sqrt(
+                    a[0] * a[0] + a[1] * a[1] + a[2] * a[2]) / SensorManager.GRAVITY_EARTH - 1f));
+            publishedAccelG = peakAccelG;
+        } else {
+            return;
         }
+
+        //If we have data for both sensors, hand it over; the orientation is
+        //only worked out once someone asks for it. With a gyroscope, every
+        //accelerometer reading corrects its drift instead.
+        if(!haveMag || !haveAccel) return;
+        if(senseGyro != null) {
+            if(event.sensor != senseAccel) return;
+            attitude.correct(accelValues, magValues, eventNanos);
+        }
+        publishReading(eventNanos, event.sensor == senseAccel);
     }
 
     //Don't care about accuracy changes
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {}
 
+    /** The position and orientation of a device at one moment, filled in by
+     * readSnapshot. The orientation is worked out from the readings only
+     * when asked for, and only once per snapshot read. Made once and reused;
+     * not to be shared between threads. */
+    public static final class Snapshot {
+        /** The sequence number it was copied at; odd for never */
+        private int sequence = -1;
+
+        //Copied from the published state
+        private boolean fused;
+        private boolean oriented;
+        private long sensorNanos;
+        private final float[] quat = new float[4];
+        private final float[] accel = new float[3];
+        private final float[] mag = new float[3];
+        private double lati;
+        private double longi;
+        private double altitude;
+        private float groundSpeed;
+        private long fixTimeNanos;
+        private boolean positionEstimated;
+
+        //Worked out from the copy when first asked for
+        private boolean orientationWorkedOut = false;
+        private final float[] rotation = new float[9];
+        /** Azimuth, pitch and roll, in radians */
+        private final float[] orientation = new float[3];
+
+        private void workOutOrientation() {
+            if(orientationWorkedOut) return;
+            orientationWorkedOut = true;
+            if(!oriented) return;
+            if(fused) {
+                AttitudeFilter.getOrientation(quat, orientation);
+            } else if(SensorManager.getRotationMatrix(rotation, null, accel, mag)) {
+                SensorManager.getOrientation(rotation, orientation);
+            }
+        }
+
+        /** Get the azimuth (bearing) of the device in degrees. */
+        public double getAz() {
+            workOutOrientation();
+            return Math.toDegrees(orientation[0]);
+        }
+
+        /** Get the pitch of the device in degrees. */
+        public double getPitch() {
+            workOutOrientation();
+            return Math.toDegrees(orientation[1]);
+        }
+
+        /** Get the roll of the device in degrees. */
+        public double getRoll() {
+            workOutOrientation();
+            return Math.toDegrees(orientation[2]);
+        }
+
+        /** Get the time, in SystemClock.elapsedRealtimeNanos, of the sensor
+         * reading the orientation is from; 0 if there is none yet */
+        public long getSensorTimeNanos() {
+            return sensorNanos;
+        }
+
+        /** Get the latitude of the device, signed. */
+        public double getLatitude() {
+            return lati;
+        }
+
+        /** Get the longitude of the device, signed. */
+        public double getLongitude() {
+            return longi;
+        }
+
+        /** Get the altitude of the device, in feet above sea level */
+        public double getAltitude() {
+            return metersToFeet(altitude);
+        }
+
+        /** Get the ground speed, in meters per second; NaN if unknown */
+        public float getGroundSpeed() {
+            return groundSpeed;
+        }
+
+        /** Get the SystemClock.elapsedRealtimeNanos the position fix was
+         * taken at; 0 if there is none yet */
+        public long getFixTimeNanos() {
+            return fixTimeNanos;
+        }
+
+        /** Whether the position was dead reckoned from the last fix, rather
+         * than being the fix itself */
+        public boolean isPositionEstimated() {
+            return positionEstimated;
+        }
+
+        /** Get the latitude formatted as by DevicePosAndOrient.getNiceLatitude */
+        public String getNiceLatitude() {
+            return formatLatitude(lati);
+        }
+
+        /** Get the longitude formatted as by DevicePosAndOrient.getNiceLongitude */
+        public String getNiceLongitude() {
+            return formatLongitude(longi);
+        }
+
+        /** Get the altitude formatted as by DevicePosAndOrient.getNiceAltitude */
+        public String getNiceAltitude() {
+            return formatAltitude(getAltitude());
+        }
+    }
+
+    /** Receives batched sensor readings for a DevicePosAndOrient, and tells
+     * when a flush of the FIFO is complete. Kept apart from the outer class
+     * since its interface only exists from API 19 on. */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static class FifoListener implements SensorEventListener2 {
+        private final DevicePosAndOrient posAndOrient;
+        /** Number of sensors this is registered to */
+        private final int sensorCount;
+        /** Counts down once per sensor as its flush completes; null if no
+         * flush is under way */
+        private volatile CountDownLatch flushes = null;
+
+        FifoListener(DevicePosAndOrient posAndOrient, int sensorCount) {
+            this.posAndOrient = posAndOrient;
+            this.sensorCount = sensorCount;
+        }
+
+        /** Register this to a sensor, batched, with readings delivered
+         * through a Handler. */
+        void register(SensorManager sensorManager, Sensor sensor, int periodUs,
+                      int latencyUs, Handler handler) {
+            sensorManager.registerListener(this, sensor, periodUs, latencyUs, handler);
+        }
+
+        /** Flush every sensor's FIFO, and wait until their readings have
+         * all been delivered, or FLUSH_TIMEOUT_MS passes. On the thread the
+         * readings arrive on, it can't wait, and only asks.
+         * @param looper the Looper readings arrive on */
+        void flush(SensorManager sensorManager, Looper looper) {
+            final CountDownLatch latch = new CountDownLatch(sensorCount);
+            flushes = latch;
+            if(!sensorManager.flush(this)) return;
+            if(Looper.myLooper() == looper) return;
+
+            try {
+                latch.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        //Readings, one at a time, whether in a burst or not
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            posAndOrient.onSensorChanged(event);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+        //Every reading in the sensor's FIFO at the flush has been delivered
+        @Override
+        public void onFlushCompleted(Sensor sensor) {
+            final CountDownLatch latch = flushes;
+            if(latch != null) latch.countDown();
+        }
+    }
+
     //Methods implemented from LocationListener
-    //Called when the location manager senses a change. Simple.
+    //Called when the location manager senses a change. The fix is published
+    //as it is, and blended in with the dead reckoning from here on, allowing
+    //for how long ago it was taken.
     @Override
     public void onLocationChanged(Location loc) {
-        lati = loc.getLatitude();
-        longi = loc.getLongitude();
-        altitude = loc.getAltitude();
+        final long takenNanos = getFixTimeNanos(loc);
+        synchronized (writeLock) {
+            reckoner.addFix(loc.getLatitude(), loc.getLongitude(), loc.getAltitude(),
+                    loc.hasSpeed() ? loc.getSpeed() : Float.NaN,
+                    loc.hasBearing() ? loc.getBearing() : Float.NaN,
+                    pubSensorNanos - takenNanos);
+            sequence++;
+            lati = loc.getLatitude();
+            longi = loc.getLongitude();
+            altitude = loc.getAltitude();
+            groundSpeed = loc.hasSpeed() ? loc.getSpeed() : Float.NaN;
+            fixTimeNanos = takenNanos;
+            positionEstimated = false;
+            sequence++;
+        }
+    }
+
+    /** Get the SystemClock.elapsedRealtimeNanos a fix was taken at; before
+     * API 17, or if the provider didn't set it, the time it came in. */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static long getFixTimeNanos(Location loc) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 &&
+                loc.getElapsedRealtimeNanos() > 0) {
+            return loc.getElapsedRealtimeNanos();
+        }
+        return SensorClock.elapsedRealtimeNanos();
     }
 
     //Don't care about the next 3 methods...
@@ -0,0 +1,236 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FixedRateScheduler.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to run a task at a fixed rate on a Handler without drifting. */
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/** Runs a task on a Handler's thread on absolute deadlines of
+ * SystemClock.elapsedRealtime, so the rate never drifts; ticks that overrun
+ * are dealt with by the OverrunPolicy. Used on the Handler's thread only. */
+final class FixedRateScheduler implements Runnable {
+    private static final long NANOS_PER_MS = 1000000L;
+
+    /** Number of buckets ticks are counted in by lateness: bucket 0 holds
+     * the ticks run on time, bucket n those 2^(n-1) to 2^n - 1 ms late, and
+     * the last bucket everything later still */
+    static final int LATENESS_BUCKETS = 12;
+
+    /** What to do with the ticks missed when running late */
+    enum OverrunPolicy {
+        /** Run every missed tick, back to back, until caught up */
+        CATCH_UP,
+        /** Drop the missed ticks, and carry on from the latest deadline
+         * that has passed */
+        SKIP
+    }
+
+    /** The work done every tick. */
+    interface Task {
+        /** Called on the Handler's thread once per period.
+         * @param deadline the elapsedRealtime this tick was due at */
+        void onTick(long deadline);
+    }
+
+    private final Handler handler;
+    private final Task task;
+    private final OverrunPolicy policy;
+
+    /** Milliseconds between deadlines */
+    private long periodMillis;
+    /** The elapsedRealtime the next tick is due at */
+    private long nextDeadline;
+    /** The elapsedRealtime the last tick was due at, or one period before
+     * the first */
+    private long lastDeadline;
+    /** Whether ticks are being scheduled */
+    private boolean running = false;
+    /** Whether the task is running a tick right now */
+    private boolean inTick = false;
+
+    //Tick statistics since start
+    private long ticks = 0;
+    private long skippedTicks = 0;
+    /** Ticks that ran a period or more late */
+    private long lateTicks = 0;
+    /** Ticks that took longer than a period to run */
+    private long longTicks = 0;
+    private long totalLatenessMillis = 0;
+    private long maxLatenessMillis = 0;
+    private long totalExecNanos = 0;
+    private long maxExecNanos = 0;
+    /** Ticks run, by lateness; see LATENESS_BUCKETS */
+    private final long[] latenessHistogram = new long[LATENESS_BUCKETS];
+
+    /** Create a scheduler; it does nothing until started.
+     * @param handler the Handler whose thread ticks run on
+     * @param periodMillis milliseconds between ticks
+     * @param policy what to do with the ticks missed when running late
+     * @param task the work done every tick */
+    FixedRateScheduler(Handler handler, long periodMillis, OverrunPolicy policy, Task task) {
+        if(periodMillis <= 0) throw new IllegalArgumentException("Period must be positive");
+        this.handler = handler;
+        this.periodMillis = periodMillis;
+        this.policy = policy;
+        this.task = task;
+    }
+
+    /** Start ticking, with statistics reset.
+     * @param firstDeadline the elapsedRealtime the first tick is due at;
+     *                      every later one is due a whole number of periods
+     *                      after it */
+    void start(long firstDeadline) {
+        stop();
+        ticks = skippedTicks = lateTicks = longTicks = 0;
+        totalLatenessMillis = maxLatenessMillis = 0;
+        totalExecNanos = maxExecNanos = 0;
+        Arrays.fill(latenessHistogram, 0);
+
+        nextDeadline = firstDeadline;
+        lastDeadline = firstDeadline - periodMillis;
+        running = true;
+        scheduleNext();
+    }
+
+    /** Stop ticking; no tick runs after this returns, unless started again. */
+    void stop() {
+        running = false;
+        handler.removeCallbacks(this);
+    }
+
+    /** Change the period, from the next tick on: it is due the new period
+     * after the last one was, and so is every later one after the one
+     * before. May be called from a tick. */
+    void setPeriod(long periodMillis) {
+        if(periodMillis <= 0) throw new IllegalArgumentException("Period must be positive");
+        this.periodMillis = periodMillis;
+        nextDeadline = lastDeadline + periodMillis;
+        if(running && !inTick) {
+            handler.removeCallbacks(this);
+            scheduleNext();
+        }
+    }
+
+    /** Get the milliseconds between ticks */
+    long getPeriod() {
+        return periodMillis;
+    }
+
+    /** Get the elapsedRealtime the next tick is due at */
+    long getNextDeadline() {
+        return nextDeadline;
+    }
+
+    private void scheduleNext() {
+        //Handler times are uptime, which stops in deep sleep; a delay works
+        //on either clock, and a tick woken late is dealt with in run()
+        handler.postDelayed(this, Math.max(0, nextDeadline - SystemClock.elapsedRealtime()));
+    }
+
+    //Runs one tick, then schedules the next one from its deadline rather
+    //than from now
+    @Override
+    public void run() {
+        if(!running) return;
+        final long now = SystemClock.elapsedRealtime();
+        if(now < nextDeadline) {
+            //Woken early; the uptime and real time clocks can disagree
+            scheduleNext();
+            return;
+        }
+
+        long lateness = now - nextDeadline;
+        if(lateness >= periodMillis) {
+            lateTicks++;
+            if(policy == OverrunPolicy.SKIP) {
+                final long missed = lateness / periodMillis;
+                skippedTicks += missed;
+                nextDeadline += missed * periodMillis;
+                lateness -= missed * periodMillis;
+            }
+        }
+
+        final long deadline = nextDeadline;
+        lastDeadline = deadline;
+        nextDeadline = deadline + periodMillis;
+        final long execStart = System.nanoTime();
+        inTick = true;
+        try {
+            task.onTick(deadline);
+        } finally {
+            inTick = false;
+        }
+        final long execNanos = System.nanoTime() - execStart;
+
+        ticks++;
+        totalLatenessMillis += lateness;
+        maxLatenessMillis = Math.max(maxLatenessMillis, lateness);
+        latenessHistogram[Math.min(64 - Long.numberOfLeadingZeros(lateness),
+                LATENESS_BUCKETS - 1)]++;
+        totalExecNanos += execNanos;
+        maxExecNanos = Math.max(maxExecNanos, execNanos);
+        if(execNanos > periodMillis * NANOS_PER_MS) longTicks++;
+
+        //The task may have stopped ticking
+        if(running) scheduleNext();
+    }
+
+    /** Get the number of ticks run */
+    long getTickCount() {
+        return ticks;
+    }
+
+    /** Get the number of ticks dropped under OverrunPolicy.SKIP */
+    long getSkippedCount() {
+        return skippedTicks;
+    }
+
+    /** Get the number of ticks that ran a period or more late */
+    long getLateCount() {
+        return lateTicks;
+    }
+
+    /** Get the number of ticks that took longer than a period to run */
+    long getLongCount() {
+        return longTicks;
+    }
+
+    /** Get the most milliseconds a tick ran after its deadline */
+    long getMaxLatenessMillis() {
+        return maxLatenessMillis;
+    }
+
+    /** Get the number of ticks run with a lateness in a bucket.
+     * @param bucket from 0 to LATENESS_BUCKETS - 1; see LATENESS_BUCKETS */
+    long getLatenessCount(int bucket) {
+        return latenessHistogram[bucket];
+    }
+
+    /** Get the mean milliseconds ticks ran after their deadlines */
+    double getMeanLatenessMillis() {
+        return ticks == 0 ? 0.0 : (double) totalLatenessMillis / ticks;
+    }
+
+    /** Get the most milliseconds a tick took to run */
+    double getMaxExecMillis() {
+        return (double) maxExecNanos / NANOS_PER_MS;
+    }
+
+    /** Get the mean milliseconds ticks took to run */
+    double getMeanExecMillis() {
+        return ticks == 0 ? 0.0 : (double) totalExecNanos / NANOS_PER_MS / ticks;
+    }
+
+    //Sums up the statistics, e.g. for the log
+    @Override
+    public String toString() {
+        return String.format("%d ticks every %d ms: lateness mean %.1f ms, max %d ms; " +
+                        "run time mean %.2f ms, max %.2f ms; %d late, %d skipped, %d overlong",
+                ticks, periodMillis, getMeanLatenessMillis(), maxLatenessMillis,
+                getMeanExecMillis(), getMaxExecMillis(), lateTicks, skippedTicks, longTicks);
+    }
+}
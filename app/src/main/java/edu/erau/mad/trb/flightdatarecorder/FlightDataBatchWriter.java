@@ -0,0 +1,247 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightDataBatchWriter.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to group flight data inserts into larger transactions. */
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+/** Buffers flight data samples in memory and writes them to the flight data
+ * table in one transaction per batch, rather than one implicit transaction
+ * (and one journal sync) per sample. A single compiled insert statement is
+ * reused for the whole flight. Used internally by FlightLogDatabase. */
+class FlightDataBatchWriter {
+
+    /** Default number of samples to hold before committing them */
+    static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    /** Default maximum time, in milliseconds, a sample may wait to be committed.
+     * Buffered samples are already safe in the flight's journal. */
+    static final long DEFAULT_MAX_BATCH_AGE_MS = 60000L;
+
+    /** Insert statement for the flight data table. Duplicate (id, delta t)
+     * keys are dropped, the same as a failed SQLiteDatabase.insert would. */
+    private static final String INSERT_SQL = "INSERT OR IGNORE INTO " +
+            FlightLogDatabase.TABLE_FLIGHT_DATA + "(" +
+            FlightLogDatabase.COL_FLIGHT_ID + ", " +
+            FlightLogDatabase.COL_DELTA_T_MS + ", " +
+            FlightLogDatabase.COL_DELTA_T_SUB_US + ", " +
+            FlightLogDatabase.COL_ROLL + ", " +
+            FlightLogDatabase.COL_PITCH + ", " +
+            FlightLogDatabase.COL_YAW + ", " +
+            FlightLogDatabase.COL_LATI + ", " +
+            FlightLogDatabase.COL_LONGI + ", " +
+            FlightLogDatabase.COL_ALT + ", " +
+            FlightLogDatabase.COL_POS_ESTIMATED + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /** The connection all batches are written through */
+    private final SQLiteDatabase db;
+    /** The compiled insert, bound and executed once per buffered sample */
+    private final SQLiteStatement insert;
+    /** The flight all samples belong to */
+    private final long flightID;
+
+    /** Running summary of the flight, stored with every batch; null if
+     * derived data is not being kept */
+    private final FlightSummary summary;
+    /** The compiled summary upsert; null if there is no summary */
+    private final SQLiteStatement upsertSummary;
+    /** Adds the flight's track to the spatial index with every batch; null
+     * if derived data is not being kept */
+    private final FlightTrackIndexer trackIndexer;
+
+    /** Commit once this many samples are buffered */
+    private final int maxBatchSize;
+    /** Commit once the oldest buffered sample is this many milliseconds old */
+    private final long maxBatchAgeMillis;
+
+    //Buffered sample columns; index i of each array is one sample.
+    //Delta t is kept in microseconds.
+    private final long[] deltaTMicros;
+    private final double[] rolls;
+    private final double[] pitches;
+    private final double[] yaws;
+    private final double[] latis;
+    private final double[] longis;
+    private final double[] alts;
+    private final boolean[] posEstimates;
+
+    /** How many samples are currently buffered */
+    private int pending = 0;
+    /** How many samples have been committed, not counting any that were
+     * ignored as duplicates */
+    private long insertedCount = 0;
+    /** Whether a batch failed to commit after being added to the summary and
+     * spatial index, so they no longer match the stored samples */
+    private boolean derivedDataStale = false;
+    /** System uptime at which the oldest buffered sample was added */
+    private long oldestPendingTime;
+
+    /** Create a writer for one flight.
+     * @param db the database connection to write through
+     * @param flightID the ID of the flight the samples belong to
+     * @param maxBatchSize the number of samples to buffer before committing;
+     *                     1 commits every sample immediately
+     * @param maxBatchAgeMillis the longest time a sample may stay buffered
+     * @param keepDerivedData whether to also keep the flight's summary and
+     *                        spatial index up to date, in the same transaction
+     *                        as each batch; only for a flight with no samples
+     *                        stored yet */
+    FlightDataBatchWriter(SQLiteDatabase db, long flightID, int maxBatchSize,
+                          long maxBatchAgeMillis, boolean keepDerivedData) {
+        if(maxBatchSize < 1) throw new IllegalArgumentException("Batch size " +
+                "must be at least 1!");
+
+        this.db = db;
+        this.flightID = flightID;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchAgeMillis = maxBatchAgeMillis;
+
+        insert = db.compileStatement(INSERT_SQL);
+        if(keepDerivedData) {
+            summary = new FlightSummary();
+            upsertSummary = FlightSummary.compileUpsert(db);
+            trackIndexer = new FlightTrackIndexer(db, flightID);
+        } else {
+            summary = null;
+            upsertSummary = null;
+            trackIndexer = null;
+        }
+
+        deltaTMicros = new long[maxBatchSize];
+        rolls = new double[maxBatchSize];
+        pitches = new double[maxBatchSize];
+        yaws = new double[maxBatchSize];
+        latis = new double[maxBatchSize];
+        longis = new double[maxBatchSize];
+        alts = new double[maxBatchSize];
+        posEstimates = new boolean[maxBatchSize];
+    }
+
+    /** Buffer one sample with a measured position, committing the batch if
+     * it is full or old enough.
+     * @param deltaTmillis milliseconds since the start of the flight
+     * @return true if this call committed a batch */
+    boolean append(long deltaTmillis, double roll, double pitch, double yaw,
+                   double lati, double longi, double alt) {
+        return appendMicros(deltaTmillis * 1000L, roll, pitch, yaw, lati, longi, alt, false);
+    }
+
+    /** Buffer one sample timed to the microsecond; see append.
+     * @param deltaTmicros microseconds since the start of the flight
+     * @param posEstimated whether the position was dead reckoned
+     * @return true if this call committed a batch */
+    boolean appendMicros(long deltaTmicros, double roll, double pitch, double yaw,
+                         double lati, double longi, double alt, boolean posEstimated) {
+        //The last batch failed to commit and is still held; try it again first
+        if(pending == maxBatchSize) flush();
+
+        final long now = SystemClock.elapsedRealtime();
+        if(pending == 0) oldestPendingTime = now;
+
+        deltaTMicros[pending] = deltaTmicros;
+        rolls[pending] = roll;
+        pitches[pending] = pitch;
+        yaws[pending] = yaw;
+        latis[pending] = lati;
+        longis[pending] = longi;
+        alts[pending] = alt;
+        posEstimates[pending] = posEstimated;
+        pending++;
+
+        if(pending >= maxBatchSize || now - oldestPendingTime >= maxBatchAgeMillis) {
+            flush();
+            return true;
+        }
+        return false;
+    }
+
+    /** Commit every buffered sample in a single transaction, along with the
+     * updated summary and spatial index. Does nothing if no samples are buffered.
+     * If the commit fails, the samples stay buffered to be tried again, and
+     * the summary and spatial index are no longer kept; see isDerivedDataStale.
+     * @throws SQLiteException if the commit fails */
+    void flush() {
+        if(pending == 0) return;
+
+        try {
+            insertedCount += writeBatch();
+        } catch (SQLiteException e) {
+            //The summary and index may count rows that were just rolled back
+            if(summary != null) derivedDataStale = true;
+            throw e;
+        }
+        pending = 0;
+    }
+
+    /** Insert every buffered sample, and store the summary and spatial index,
+     * in one transaction.
+     * @return the number of samples inserted, rather than ignored */
+    private int writeBatch() {
+        int inserted = 0;
+        final boolean keepDerivedData = summary != null && !derivedDataStale;
+        //Immediate (not exclusive) so WAL readers keep reading during the commit
+        db.beginTransactionNonExclusive();
+        try {
+            for(int i = 0; i < pending; i++) {
+                final long deltaT = deltaTMicros[i] / 1000L;
+                insert.bindLong(1, flightID);
+                insert.bindLong(2, deltaT);
+                insert.bindLong(3, deltaTMicros[i] - deltaT * 1000L);
+                insert.bindDouble(4, rolls[i]);
+                insert.bindDouble(5, pitches[i]);
+                insert.bindDouble(6, yaws[i]);
+                insert.bindDouble(7, latis[i]);
+                insert.bindDouble(8, longis[i]);
+                insert.bindDouble(9, alts[i]);
+                insert.bindLong(10, posEstimates[i] ? 1 : 0);
+                //Only count rows that weren't ignored as duplicates
+                if(insert.executeUpdateDelete() == 0) continue;
+                inserted++;
+                if(keepDerivedData) {
+                    summary.add(deltaT, latis[i], longis[i], alts[i]);
+                    trackIndexer.add(deltaT, latis[i], longis[i]);
+                }
+            }
+            if(keepDerivedData) {
+                summary.write(upsertSummary, flightID);
+                trackIndexer.writeOpenBox();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return inserted;
+    }
+
+    /** Get the number of samples waiting to be committed */
+    int getPendingCount() {
+        return pending;
+    }
+
+    /** Get the number of samples committed so far, leaving out any that were
+     * dropped for having the same delta t as one already stored */
+    long getInsertedCount() {
+        return insertedCount;
+    }
+
+    /** Check whether the flight's stored summary and spatial index have to be
+     * rebuilt from its samples, because a batch failed to commit. */
+    boolean isDerivedDataStale() {
+        return derivedDataStale;
+    }
+
+    /** Commit anything still buffered and release the compiled statement.
+     * The writer must not be used afterward. */
+    void close() {
+        try {
+            flush();
+        } finally {
+            insert.close();
+            if(upsertSummary != null) upsertSummary.close();
+            if(trackIndexer != null) trackIndexer.close();
+        }
+    }
+}
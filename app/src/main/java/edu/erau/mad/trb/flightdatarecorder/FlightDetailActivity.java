@@ -24,6 +24,8 @@ public class FlightDetailActivity extends FragmentActivity {
     private boolean startedWithValidIntent;
     /** The Flight ID whose path coordinates will be plotted */
     private long flightID = 0;
+    /** Plots the flight on the map; null until the map is set up */
+    private AsyncMapDatabasePlotter plotter;
 
     //Called when the activity is created. Simply initializes fields from intent.
     @Override
@@ -50,6 +52,14 @@ public class FlightDetailActivity extends FragmentActivity {
         setUpMapIfNeeded();
     }
 
+    //Called when the activity is going away; stops any plotting still going,
+    //so none of it runs on, or draws, after the map is gone
+    @Override
+    protected void onDestroy() {
+        if(plotter != null) plotter.stop();
+        super.onDestroy();
+    }
+
     /** (Auto-generated docs.)
      * Sets up the map if it is possible to do so (i.e., the Google Play services APK is correctly
      * installed) and the map has not already been instantiated.. This will ensure that we only ever
@@ -84,7 +94,8 @@ public class FlightDetailActivity extends FragmentActivity {
      * {@link edu.erau.mad.trb.flightdatarecorder.AsyncMapDatabasePlotter}. */
     private void setUpMap() {
         if(startedWithValidIntent) {
-            new AsyncMapDatabasePlotter(flightID, map, this).execute();
+            plotter = new AsyncMapDatabasePlotter(flightID, map, this);
+            plotter.execute();
         } else {
             //TO-DO handle activity starts without data?
             Toast.makeText(this, "No flight data was present!",
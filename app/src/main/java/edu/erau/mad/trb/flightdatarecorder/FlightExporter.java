@@ -0,0 +1,522 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightExporter.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to export flights to files that other programs can read. */
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/** Exports flights to CSV, GPX or KML files, optionally gzipped, in the
+ * application's external files directory.
+ * <p>
+ * A flight is streamed straight from the database to its file, one
+ * FlightSampleWindow at a time, and numbers are written digit by digit
+ * rather than through String.format, so exporting allocates nothing per
+ * sample and needs the same memory for a flight of any length. Several
+ * flights are exported at once, but no more than MAX_PARALLEL_EXPORTS, so
+ * a large selection neither floods the database with readers nor starves
+ * the rest of the app. */
+public class FlightExporter {
+
+    /** Tag used for log messages */
+    private static final String TAG = "FlightExporter";
+
+    /** Most flights exported at the same time, over every exporter */
+    private static final int MAX_PARALLEL_EXPORTS = 2;
+    /** Seconds an export thread is kept around with nothing to do */
+    private static final int THREAD_KEEP_ALIVE_SECS = 30;
+    /** Samples read from the database at once */
+    private static final int WINDOW_SAMPLES = 2048;
+    /** Size of the character and compression buffers of each file */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Name of the directory, within the external files directory, of exports */
+    private static final String EXPORT_DIRECTORY = "exports";
+    /** Authority of the FileProvider exported files are shared through; see
+     * res/xml/export_paths.xml */
+    static final String FILE_PROVIDER_AUTHORITY =
+            "edu.erau.mad.trb.flightdatarecorder.exports";
+
+    /** Meters in a foot; GPX and KML altitudes are in meters */
+    private static final double METERS_PER_FOOT = 0.3048;
+
+    /** The file formats flights can be exported to */
+    public enum Format {
+        /** Every column of every sample, one sample per line */
+        CSV("csv", "text/csv"),
+        /** A GPS track of the samples that have a position fix */
+        GPX("gpx", "application/gpx+xml"),
+        /** A line of the samples that have a position fix, e.g. for Google Earth */
+        KML("kml", "application/vnd.google-earth.kml+xml");
+
+        private final String extension;
+        private final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+
+        /** Get the file name extension of the format, without the dot */
+        public String getExtension() {
+            return extension;
+        }
+
+        /** Get the MIME type of files of the format.
+         * @param gzip whether the files are gzipped */
+        public String getMimeType(boolean gzip) {
+            return gzip ? "application/gzip" : mimeType;
+        }
+    }
+
+    /** Receives the result of {@link #export}. */
+    public interface OnExportFinishedListener {
+        /** Called on the main thread once every flight is either exported or
+         * has failed to export.
+         * @param files the exported files, in the order the flights were given
+         * @param failures the number of flights that failed to export */
+        void onExportFinished(List<File> files, int failures);
+    }
+
+    /** Runs exports, shared by every exporter; created on first use */
+    private static ExecutorService executor;
+
+    /** The database flights are read from */
+    private final FlightLogDatabase database;
+    /** Application context, used to locate the export directory */
+    private final Context context;
+
+    /** Create an exporter.
+     * @param context an Android context; an application context will be
+     *                obtained from this */
+    public FlightExporter(Context context) {
+        this.context = context.getApplicationContext();
+        database = FlightLogDatabase.getInstance(this.context);
+    }
+
+    /** Get the executor exports run on, which runs up to MAX_PARALLEL_EXPORTS
+     * at once on background threads that go away when idle. */
+    private static synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PARALLEL_EXPORTS,
+                    MAX_PARALLEL_EXPORTS, THREAD_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable task) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    task.run();
+                                }
+                            }, "FlightExporter-" + count.incrementAndGet());
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /** Export several flights in the background, each to its own file.
+     * @param flightIDs the IDs of concluded flights
+     * @param format the format to export to
+     * @param gzip whether to gzip the files
+     * @param listener told on the main thread once every flight is done */
+    public void export(long[] flightIDs, final Format format, final boolean gzip,
+                       final OnExportFinishedListener listener) {
+        final File[] files = new File[flightIDs.length];
+        final AtomicInteger remaining = new AtomicInteger(flightIDs.length);
+        final Runnable notifyFinished = new Runnable() {
+            @Override
+            public void run() {
+                final List<File> exported = new ArrayList<>(files.length);
+                for(final File file : files) {
+                    if(file != null) exported.add(file);
+                }
+                listener.onExportFinished(exported, files.length - exported.size());
+            }
+        };
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        if(flightIDs.length == 0) {
+            mainHandler.post(notifyFinished);
+            return;
+        }
+
+        for(int i = 0; i < flightIDs.length; i++) {
+            final int index = i;
+            final long flightID = flightIDs[i];
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        files[index] = exportFlight(flightID, format, gzip);
+                    } catch (IOException | RuntimeException e) {
+                        Log.e(TAG, "Could not export flight " + flightID, e);
+                    }
+                    //The last one done reports for everyone
+                    if(remaining.decrementAndGet() == 0) mainHandler.post(notifyFinished);
+                }
+            });
+        }
+    }
+
+    /** Export every concluded flight in the background; see export. The
+     * flights are looked up in the background too, so this may be called on
+     * the UI thread however many there are.
+     * @param listener told on the main thread once every flight is done;
+     *                 with no files and no failures if there are no flights */
+    public void exportAll(final Format format, final boolean gzip,
+                          final OnExportFinishedListener listener) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                export(database.getAllFlightIDs(), format, gzip, listener);
+            }
+        });
+    }
+
+    /** Export one flight, right away, to a file named after its ID and start
+     * time. The file only appears once it is complete. Must not be called on
+     * the UI thread.
+     * @param flightID the ID of a concluded flight
+     * @param format the format to export to
+     * @param gzip whether to gzip the file
+     * @return the exported file
+     * @throws IOException if the file cannot be written */
+    public File exportFlight(long flightID, Format format, boolean gzip)
+            throws IOException {
+        final long startMillis = database.getFlightStartMillis(flightID);
+        final File directory = getExportDirectory();
+        final String name = String.format(Locale.US,
+                "flight-%1$d-%2$tY%2$tm%2$td-%2$tH%2$tM%2$tS.%3$s%4$s",
+                flightID, startMillis, format.getExtension(), gzip ? ".gz" : "");
+        final File file = new File(directory, name);
+        final File partial = new File(directory, name + ".part");
+
+        OutputStream stream = new FileOutputStream(partial);
+        Writer out = null;
+        try {
+            if(gzip) stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+            out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), BUFFER_SIZE);
+            writeFlight(createWriter(format, out), flightID, startMillis);
+            out.close();
+            out = null;
+            stream = null;
+            if(!partial.renameTo(file)) throw new IOException("Could not rename " + partial);
+        } finally {
+            if(out != null) closeQuietly(out);
+            else if(stream != null) closeQuietly(stream);
+            partial.delete();
+        }
+        return file;
+    }
+
+    /** Stream every sample of a flight, in order, through a track writer. */
+    private void writeFlight(TrackWriter writer, long flightID, long startMillis)
+            throws IOException {
+        final FlightSampleWindow window = new FlightSampleWindow(WINDOW_SAMPLES);
+        writer.begin(flightID, startMillis);
+        long after = -1;
+        int read;
+        do {
+            read = database.readFlightSamplesMicros(flightID, after, window);
+            for(int i = 0; i < read; i++) {
+                writer.write(window, i);
+            }
+            if(read > 0) after = window.deltaTMicros[read - 1];
+        } while(read == window.getCapacity());
+        writer.end();
+    }
+
+    /** Get the directory exports are written to, creating it if needed. This
+     * is on external storage, unless there is none; either way, the files are
+     * shared through the FileProvider at FILE_PROVIDER_AUTHORITY. */
+    private File getExportDirectory() throws IOException {
+        File directory = context.getExternalFilesDir(EXPORT_DIRECTORY);
+        if(directory == null) directory = new File(context.getFilesDir(), EXPORT_DIRECTORY);
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    /** Close a stream, ignoring failures; used when already failing. */
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {}
+    }
+
+    /** Make the track writer of a format. */
+    private static TrackWriter createWriter(Format format, Writer out) {
+        switch(format) {
+            case GPX:
+                return new GpxWriter(out);
+            case KML:
+                return new KmlWriter(out);
+            default:
+                return new CsvWriter(out);
+        }
+    }
+
+    /** Writes the samples of one flight in some format. Numbers are written
+     * with writeLong and writeFixed, which allocate nothing. */
+    private abstract static class TrackWriter {
+
+        /** Powers of ten, for fixed-point digits */
+        private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L,
+                100000L, 1000000L, 10000000L, 100000000L};
+
+        /** Where the file is written */
+        protected final Writer out;
+        /** Scratch space that numbers are built up in, backwards */
+        private final char[] digits = new char[32];
+
+        TrackWriter(Writer out) {
+            this.out = out;
+        }
+
+        /** Write whatever comes before the samples. */
+        abstract void begin(long flightID, long startMillis) throws IOException;
+
+        /** Write one sample of a window. */
+        abstract void write(FlightSampleWindow window, int i) throws IOException;
+
+        /** Write whatever comes after the samples. */
+        abstract void end() throws IOException;
+
+        /** Write a whole number. */
+        void writeLong(long value) throws IOException {
+            if(value == Long.MIN_VALUE) {
+                //Can't be negated; never happens in practice
+                out.write(Long.toString(value));
+                return;
+            }
+            final boolean negative = value < 0;
+            if(negative) value = -value;
+            int pos = digits.length;
+            do {
+                digits[--pos] = (char) ('0' + value % 10);
+                value /= 10;
+            } while(value != 0);
+            if(negative) digits[--pos] = '-';
+            out.write(digits, pos, digits.length - pos);
+        }
+
+        /** Write a number with a fixed number of decimal places, rounded.
+         * @param decimals the number of decimal places, up to 8 */
+        void writeFixed(double value, int decimals) throws IOException {
+            final long scale = POWERS_OF_TEN[decimals];
+            //Nothing this app logs is anywhere near this big
+            if(Double.isNaN(value) || Math.abs(value) >= Long.MAX_VALUE / scale) {
+                out.write(Double.toString(value));
+                return;
+            }
+            long scaled = Math.round(Math.abs(value) * scale);
+            final boolean negative = value < 0 && scaled != 0;
+            int pos = digits.length;
+            for(int i = 0; i < decimals; i++) {
+                digits[--pos] = (char) ('0' + scaled % 10);
+                scaled /= 10;
+            }
+            if(decimals > 0) digits[--pos] = '.';
+            do {
+                digits[--pos] = (char) ('0' + scaled % 10);
+                scaled /= 10;
+            } while(scaled != 0);
+            if(negative) digits[--pos] = '-';
+            out.write(digits, pos, digits.length - pos);
+        }
+
+        /** Write a non-negative number padded with leading zeros. */
+        void writePadded(int value, int width) throws IOException {
+            int pos = digits.length;
+            for(int i = 0; i < width || value != 0; i++) {
+                digits[--pos] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+            out.write(digits, pos, digits.length - pos);
+        }
+
+        /** Get the name of a flight, as shown inside GPX and KML files. */
+        static String flightName(long flightID, long startMillis) {
+            return String.format(Locale.US, "Flight %d, %tF %<tR", flightID, startMillis);
+        }
+    }
+
+    /** Writes every column of every sample as comma separated values, with
+     * a header row of the FlightLogDatabase column names. Angles are written
+     * to 0.01°, positions to 1e-7° and altitudes to 0.1 ft., which is the
+     * precision segments keep. */
+    private static class CsvWriter extends TrackWriter {
+
+        private long startMillis;
+
+        CsvWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void begin(long flightID, long startMillis) throws IOException {
+            this.startMillis = startMillis;
+            out.write(FlightLogDatabase.COL_DELTA_T_MS + ",timeUnixMillis," +
+                    FlightLogDatabase.COL_ROLL + "," + FlightLogDatabase.COL_PITCH + "," +
+                    FlightLogDatabase.COL_YAW + "," + FlightLogDatabase.COL_LATI + "," +
+                    FlightLogDatabase.COL_LONGI + "," + FlightLogDatabase.COL_ALT + "," +
+                    FlightLogDatabase.COL_POS_ESTIMATED + "\n");
+        }
+
+        @Override
+        void write(FlightSampleWindow window, int i) throws IOException {
+            writeLong(window.deltaT[i]);
+            out.write(',');
+            writeLong(startMillis + window.deltaT[i]);
+            out.write(',');
+            writeFixed(window.roll[i], 2);
+            out.write(',');
+            writeFixed(window.pitch[i], 2);
+            out.write(',');
+            writeFixed(window.yaw[i], 2);
+            out.write(',');
+            writeFixed(window.lati[i], 7);
+            out.write(',');
+            writeFixed(window.longi[i], 7);
+            out.write(',');
+            writeFixed(window.alt[i], 1);
+            out.write(',');
+            out.write(window.posEstimated[i] ? '1' : '0');
+            out.write('\n');
+        }
+
+        @Override
+        void end() {}
+    }
+
+    /** Writes the samples that have a position fix as a GPX 1.1 track. */
+    private static class GpxWriter extends TrackWriter {
+
+        /** Breaks sample times down into UTC fields; reused for every sample */
+        private final Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"),
+                Locale.US);
+        private long startMillis;
+
+        GpxWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void begin(long flightID, long startMillis) throws IOException {
+            this.startMillis = startMillis;
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                    "<gpx version=\"1.1\" creator=\"Flight Data Recorder\" " +
+                    "xmlns=\"http://www.topografix.com/GPX/1/1\">\n<trk><name>");
+            out.write(flightName(flightID, startMillis));
+            out.write("</name><trkseg>\n");
+        }
+
+        @Override
+        void write(FlightSampleWindow window, int i) throws IOException {
+            if(!FlightSummary.hasPosition(window.lati[i], window.longi[i])) return;
+
+            out.write("<trkpt lat=\"");
+            writeFixed(window.lati[i], 7);
+            out.write("\" lon=\"");
+            writeFixed(window.longi[i], 7);
+            out.write("\"><ele>");
+            writeFixed(window.alt[i] * METERS_PER_FOOT, 2);
+            out.write("</ele><time>");
+            writeTime(startMillis + window.deltaT[i]);
+            out.write("</time></trkpt>\n");
+        }
+
+        /** Write a time as ISO 8601 in UTC, e.g. 2015-04-20T16:05:09.250Z */
+        private void writeTime(long unixMillis) throws IOException {
+            utc.setTimeInMillis(unixMillis);
+            writePadded(utc.get(Calendar.YEAR), 4);
+            out.write('-');
+            writePadded(utc.get(Calendar.MONTH) + 1, 2);
+            out.write('-');
+            writePadded(utc.get(Calendar.DAY_OF_MONTH), 2);
+            out.write('T');
+            writePadded(utc.get(Calendar.HOUR_OF_DAY), 2);
+            out.write(':');
+            writePadded(utc.get(Calendar.MINUTE), 2);
+            out.write(':');
+            writePadded(utc.get(Calendar.SECOND), 2);
+            out.write('.');
+            writePadded(utc.get(Calendar.MILLISECOND), 3);
+            out.write('Z');
+        }
+
+        @Override
+        void end() throws IOException {
+            out.write("</trkseg></trk>\n</gpx>\n");
+        }
+    }
+
+    /** Writes the samples that have a position fix as a KML line, at their
+     * altitude. */
+    private static class KmlWriter extends TrackWriter {
+
+        KmlWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void begin(long flightID, long startMillis) throws IOException {
+            final String name = flightName(flightID, startMillis);
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                    "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document><name>");
+            out.write(name);
+            out.write("</name>\n<Placemark><name>");
+            out.write(name);
+            out.write("</name><LineString><altitudeMode>absolute</altitudeMode>" +
+                    "<coordinates>\n");
+        }
+
+        @Override
+        void write(FlightSampleWindow window, int i) throws IOException {
+            if(!FlightSummary.hasPosition(window.lati[i], window.longi[i])) return;
+
+            //KML coordinates are longitude first
+            writeFixed(window.longi[i], 7);
+            out.write(',');
+            writeFixed(window.lati[i], 7);
+            out.write(',');
+            writeFixed(window.alt[i] * METERS_PER_FOOT, 2);
+            out.write('\n');
+        }
+
+        @Override
+        void end() throws IOException {
+            out.write("</coordinates></LineString></Placemark></Document></kml>\n");
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightHistoryAdapter.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to load the list of flights a page at a time. */
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/** An adapter for the list of flights that loads it PAGE_SIZE flights at a
+ * time, newest first, as the list is scrolled towards its end.
+ * <p>
+ * Pages are read with FlightLogDatabase.getFlightsPage on a background
+ * thread, and each flight's two lines of text are formatted there too, so
+ * binding a row only sets text that is already made. Each page's cursor is
+ * closed as soon as it is read; the adapter holds no cursors.
+ * <p>
+ * The list can be narrowed to a FlightSearch. While a search is typed, each
+ * word usually only narrows the last search; once every result of that
+ * search is loaded, the new results are filtered from them instead of being
+ * queried again. */
+class FlightHistoryAdapter extends BaseAdapter {
+
+    /** Number of flights loaded at a time */
+    static final int PAGE_SIZE = 50;
+    /** The next page is loaded once a row this close to the end is shown */
+    private static final int PREFETCH_ROWS = 15;
+
+    /** A flight as shown in the list */
+    private static class FlightRow {
+        final long flightID;
+        final long startMillis;
+        final String title;
+        final String detail;
+
+        //What FlightSearch.matches needs
+        boolean summarized;
+        long durationMillis;
+        double minAlt = Double.NaN, maxAlt = Double.NaN;
+
+        FlightRow(long flightID, long startMillis, String title, String detail) {
+            this.flightID = flightID;
+            this.startMillis = startMillis;
+            this.title = title;
+            this.detail = detail;
+        }
+    }
+
+    /** The two text views of a row, kept in its tag */
+    private static class RowViews {
+        final TextView title;
+        final TextView detail;
+
+        RowViews(View row) {
+            title = (TextView) row.findViewById(android.R.id.text1);
+            detail = (TextView) row.findViewById(android.R.id.text2);
+        }
+    }
+
+    /** Application context, used for resources */
+    private final Context context;
+    /** The database the flights are read from */
+    private final FlightLogDatabase database;
+    /** Inflates the rows */
+    private final LayoutInflater inflater;
+
+    /** The flights loaded so far; only used on the UI thread */
+    private final List<FlightRow> rows = new ArrayList<>();
+    /** Whether there may be flights after the last one loaded */
+    private boolean hasMore = false;
+    /** The search the list shows the results of */
+    private FlightSearch search = new FlightSearch();
+    /** The page load in progress, if any */
+    private PageLoader loader;
+
+    /** Create an adapter; call refresh to load the first page.
+     * @param context an Android context */
+    FlightHistoryAdapter(Context context) {
+        this.context = context.getApplicationContext();
+        database = FlightLogDatabase.getInstance(this.context);
+        inflater = LayoutInflater.from(context);
+    }
+
+    /** Load the list again from the first page. The flights already loaded
+     * stay shown until the first page has been read. */
+    void refresh() {
+        if(loader != null) loader.cancel(false);
+        loader = new PageLoader(search, null);
+        loader.execute();
+    }
+
+    /** Show the results of a search instead, from the first page.
+     * @param newSearch the flights to show; an empty search shows them all */
+    void setSearch(FlightSearch newSearch) {
+        final boolean allLoaded = loader == null && !hasMore;
+        final boolean narrower = newSearch.narrows(search);
+        search = newSearch;
+        if(!allLoaded || !narrower) {
+            refresh();
+            return;
+        }
+
+        final Iterator<FlightRow> loaded = rows.iterator();
+        while(loaded.hasNext()) {
+            final FlightRow row = loaded.next();
+            if(!search.matches(row.startMillis, row.durationMillis, row.minAlt,
+                    row.maxAlt, row.summarized)) {
+                loaded.remove();
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    /** Stop loading; call when the list is going away. */
+    void close() {
+        if(loader != null) loader.cancel(false);
+        loader = null;
+    }
+
+    /** Load the page after the last flight loaded, unless loading already. */
+    private void loadNextPage() {
+        if(loader != null || !hasMore || rows.isEmpty()) return;
+        loader = new PageLoader(search, rows.get(rows.size() - 1));
+        loader.execute();
+    }
+
+    //BaseAdapter methods
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return rows.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return rows.get(position).flightID;
+    }
+
+    //IDs are flight IDs, so checked items survive refreshes
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    //Binds a flight's text to a row; asks for more as the end draws near
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View row = convertView;
+        if(row == null) {
+            row = inflater.inflate(android.R.layout.simple_list_item_activated_2,
+                    parent, false);
+            row.setTag(new RowViews(row));
+        }
+        final RowViews views = (RowViews) row.getTag();
+        final FlightRow flight = rows.get(position);
+        views.title.setText(flight.title);
+        views.detail.setText(flight.detail);
+
+        if(position >= rows.size() - PREFETCH_ROWS) loadNextPage();
+        return row;
+    }
+
+    /** Format a time as shown in the list */
+    private static String formatTime(long unixMillis) {
+        return String.format("%ta %<tb %<te %<tY - %<tr", unixMillis);
+    }
+
+    /** Reads and formats a page of flights in the background. */
+    private class PageLoader extends AsyncTask<Void, Void, List<FlightRow>> {
+
+        /** The flights to find */
+        private final FlightSearch pageSearch;
+        /** The last flight of the page before; null for the first page */
+        private final FlightRow after;
+
+        PageLoader(FlightSearch pageSearch, FlightRow after) {
+            this.pageSearch = pageSearch;
+            this.after = after;
+        }
+
+        @Override
+        protected List<FlightRow> doInBackground(Void... params) {
+            final List<FlightRow> page = new ArrayList<>(PAGE_SIZE);
+            Cursor flights = after == null ?
+                    database.getFlightsPage(pageSearch, Long.MAX_VALUE, Long.MAX_VALUE,
+                            PAGE_SIZE) :
+                    database.getFlightsPage(pageSearch, after.startMillis, after.flightID,
+                            PAGE_SIZE);
+            try {
+                final int idCol = flights.getColumnIndex(FlightLogDatabase.COL_FLIGHT_ID_ALIAS);
+                final int startCol = flights.getColumnIndex(FlightLogDatabase.COL_START_REAL);
+                final int endCol = flights.getColumnIndex(FlightLogDatabase.COL_END_REAL);
+                final int pointsCol = flights.getColumnIndex(FlightLogDatabase.COL_SUM_POINTS);
+                final int distanceCol = flights.getColumnIndex(FlightLogDatabase.COL_SUM_DISTANCE);
+                final int durationCol = flights.getColumnIndex(FlightLogDatabase.COL_SUM_DURATION);
+                final int minAltCol = flights.getColumnIndex(FlightLogDatabase.COL_SUM_MIN_ALT);
+                final int altCol = flights.getColumnIndex(FlightLogDatabase.COL_SUM_MAX_ALT);
+                while(flights.moveToNext() && !isCancelled()) {
+                    final long start = flights.getLong(startCol);
+                    final long end = flights.getLong(endCol);
+
+                    //If the flight is summarized, show its stats in place of the end time
+                    final String detail;
+                    if(flights.isNull(pointsCol)) {
+                        detail = formatTime(end);
+                    } else {
+                        final long durationSecs = (end - start) / 1000;
+                        final String duration = String.format("%02d:%02d:%02d",
+                                durationSecs / 3600, (durationSecs / 60) % 60,
+                                durationSecs % 60);
+                        //Null if the flight never got a position fix
+                        detail = flights.isNull(altCol) ?
+                                context.getString(R.string.flightStatsNoFix, duration) :
+                                context.getString(R.string.flightStats, duration,
+                                        flights.getDouble(distanceCol) / FlightSummary.METERS_PER_NM,
+                                        flights.getDouble(altCol));
+                    }
+                    final FlightRow row = new FlightRow(flights.getLong(idCol), start,
+                            formatTime(start), detail);
+                    if(!flights.isNull(pointsCol)) {
+                        row.summarized = true;
+                        row.durationMillis = flights.getLong(durationCol);
+                        if(!flights.isNull(altCol)) {
+                            row.minAlt = flights.getDouble(minAltCol);
+                            row.maxAlt = flights.getDouble(altCol);
+                        }
+                    }
+                    page.add(row);
+                }
+            } finally {
+                flights.close();
+            }
+            return page;
+        }
+
+        //Adds the page to the list; a first page replaces the whole list
+        @Override
+        protected void onPostExecute(List<FlightRow> page) {
+            if(loader != this) return;
+            loader = null;
+            if(after == null) rows.clear();
+            rows.addAll(page);
+            hasMore = page.size() == PAGE_SIZE;
+            notifyDataSetChanged();
+        }
+    }
+}
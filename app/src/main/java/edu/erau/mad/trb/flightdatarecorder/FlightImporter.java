@@ -0,0 +1,746 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightImporter.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to import flights that were recorded by other programs. */
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/** Imports flights recorded elsewhere, from GPX or CSV files (optionally
+ * gzipped), into FlightLogDatabase, where they show up in the history and on
+ * the map like any other flight. Each file becomes one flight, starting at
+ * its first sample.
+ * <p>
+ * Files are parsed as they are read, so a file of any size needs the same
+ * memory, and numbers and times are parsed straight out of the characters
+ * read, without making Strings of them. Samples are written CHUNK_SAMPLES at
+ * a time through a FlightDataBatchWriter, so each chunk is one transaction
+ * through one reused compiled insert. The flight's summary, spatial index,
+ * segments and pyramid are not kept up to date chunk by chunk, the way they
+ * are while logging; they are built once every sample is in, in one pass each.
+ * <p>
+ * GPX files give every track point that has a time. CSV files need a header
+ * row naming their columns, such as the one FlightExporter writes; see
+ * {@link #parseCsv}. */
+public class FlightImporter {
+
+    /** Tag used for log messages */
+    private static final String TAG = "FlightImporter";
+
+    /** Number of samples written per transaction */
+    static final int CHUNK_SAMPLES = 4096;
+    /** Size of the buffers the file is read through */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /** Feet in a meter; GPX elevations are in meters */
+    private static final double FEET_PER_METER = 1.0 / 0.3048;
+    /** Unix times below this many are taken to be in seconds, not milliseconds */
+    private static final double MAX_UNIX_SECONDS = 1e11;
+
+    /** Stands in for a missing or unreadable time */
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    /** Powers of ten that doubles represent exactly */
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5,
+            1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+            1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /** Receives the progress and result of an import. */
+    public interface ImportListener {
+        /** Called on the main thread every CHUNK_SAMPLES samples.
+         * @param samples the number of samples imported so far
+         * @param bytesRead the number of bytes of the file read so far
+         * @param totalBytes the size of the file, or -1 if it is unknown */
+        void onImportProgress(long samples, long bytesRead, long totalBytes);
+
+        /** Called on the main thread once the flight is imported.
+         * @param flightID the ID of the new flight
+         * @param samples the number of samples imported */
+        void onImportFinished(long flightID, long samples);
+
+        /** Called on the main thread if the file could not be imported. None
+         * of it is kept.
+         * @param e what went wrong */
+        void onImportFailed(Exception e);
+    }
+
+    /** The database flights are imported into */
+    private final FlightLogDatabase database;
+    /** Application context, used to open the files */
+    private final Context context;
+    /** Handler for telling listeners on the main thread */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Create an importer.
+     * @param context an Android context; an application context will be
+     *                obtained from this */
+    public FlightImporter(Context context) {
+        this.context = context.getApplicationContext();
+        database = FlightLogDatabase.getInstance(this.context);
+    }
+
+    /** Import a file on the database's background thread, where it is done
+     * in turn with deleting flights and other database upkeep.
+     * @param uri the file, e.g. as picked with ACTION_GET_CONTENT
+     * @param listener told of the import's progress and result */
+    public void importInBackground(final Uri uri, final ImportListener listener) {
+        database.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AssetFileDescriptor file = context.getContentResolver()
+                            .openAssetFileDescriptor(uri, "r");
+                    if(file == null) throw new FileNotFoundException(uri.toString());
+                    try {
+                        importFlight(file.createInputStream(), file.getLength(), listener);
+                    } finally {
+                        file.close();
+                    }
+                } catch (final IOException | RuntimeException e) {
+                    Log.w(TAG, "Could not import " + uri, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onImportFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /** Import a file right away as a new flight. Gzipped files are
+     * decompressed, and files starting with markup are read as GPX, any
+     * others as CSV. Must not be called on the UI thread.
+     * @param in the file's contents; not closed
+     * @param totalBytes the size of the file, for progress; -1 if unknown
+     * @param listener told of progress and of the finished flight on the
+     *                 main thread; may be null. Failures are thrown instead.
+     * @return the ID of the new flight
+     * @throws IOException if the file cannot be read or has no samples, in
+     * which case nothing of it is kept */
+    public long importFlight(InputStream in, long totalBytes, ImportListener listener)
+            throws IOException {
+        final CountingInputStream counter = new CountingInputStream(in);
+        InputStream stream = new BufferedInputStream(counter, READ_BUFFER_SIZE);
+        stream.mark(2);
+        final boolean gzipped = stream.read() == 0x1f && stream.read() == 0x8b;
+        stream.reset();
+        if(gzipped) {
+            stream = new BufferedInputStream(new GZIPInputStream(stream, READ_BUFFER_SIZE),
+                    READ_BUFFER_SIZE);
+        }
+
+        final SampleSink sink = new SampleSink(counter, totalBytes, listener);
+        try {
+            if(startsWithMarkup(stream)) {
+                parseGpx(stream, sink);
+            } else {
+                parseCsv(new InputStreamReader(stream, "UTF-8"), sink);
+            }
+            return sink.finish();
+        } catch (IOException | RuntimeException e) {
+            sink.abandon();
+            throw e;
+        }
+    }
+
+    /** Check whether a stream starts with '<', after any byte order mark
+     * and whitespace, without consuming anything. */
+    private static boolean startsWithMarkup(InputStream stream) throws IOException {
+        final int peek = 64;
+        stream.mark(peek);
+        try {
+            for(int i = 0; i < peek; i++) {
+                final int b = stream.read();
+                if(b == '<') return true;
+                //UTF-8 byte order mark and whitespace
+                if(b != 0xEF && b != 0xBB && b != 0xBF && !Character.isWhitespace(b)) {
+                    return false;
+                }
+            }
+            return false;
+        } finally {
+            stream.reset();
+        }
+    }
+
+    /** Read every trkpt of a GPX file that has a time. Elevations are
+     * converted to feet, and a course, if given, is used as the yaw. */
+    private void parseGpx(InputStream in, SampleSink sink) throws IOException {
+        //What the text being read is the value of
+        final int none = 0, elevation = 1, time = 2, course = 3;
+
+        final XmlPullParser parser = Xml.newPullParser();
+        final int[] range = new int[2];
+        boolean inPoint = false;
+        int field = none;
+        double lati = Double.NaN, longi = Double.NaN, alt = 0.0, yaw = 0.0;
+        long pointTime = NO_TIME;
+        try {
+            parser.setInput(in, null);
+            int event;
+            while((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                switch(event) {
+                    case XmlPullParser.START_TAG:
+                        final String name = parser.getName();
+                        if("trkpt".equals(name)) {
+                            inPoint = true;
+                            lati = parseAttribute(parser, "lat");
+                            longi = parseAttribute(parser, "lon");
+                            alt = 0.0;
+                            yaw = 0.0;
+                            pointTime = NO_TIME;
+                        } else if(inPoint) {
+                            field = "ele".equals(name) ? elevation :
+                                    "time".equals(name) ? time :
+                                    "course".equals(name) ? course : none;
+                        }
+                        break;
+                    case XmlPullParser.TEXT:
+                        if(field == none) break;
+                        final char[] text = parser.getTextCharacters(range);
+                        final int start = range[0], end = range[0] + range[1];
+                        if(field == elevation) {
+                            alt = parseDouble(text, start, end) * FEET_PER_METER;
+                        } else if(field == time) {
+                            pointTime = parseIsoTime(text, start, end);
+                        } else {
+                            //0 to 360 degrees, where yaw is -180 to 180
+                            yaw = parseDouble(text, start, end);
+                            if(yaw > 180.0) yaw -= 360.0;
+                        }
+                        break;
+                    case XmlPullParser.END_TAG:
+                        if(field != none) {
+                            field = none;
+                        } else if(inPoint && "trkpt".equals(parser.getName())) {
+                            inPoint = false;
+                            if(pointTime == NO_TIME) break;
+                            if(!sink.hasStarted()) sink.begin(pointTime);
+                            sink.add(pointTime - sink.getStartMillis(), 0.0, 0.0,
+                                    Double.isNaN(yaw) ? 0.0 : yaw, lati, longi,
+                                    Double.isNaN(alt) ? 0.0 : alt);
+                        }
+                        break;
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Not a readable GPX file", e);
+        }
+    }
+
+    /** Parse a numeric attribute of the current tag; NaN if missing. */
+    private static double parseAttribute(XmlPullParser parser, String name) {
+        final String value = parser.getAttributeValue(null, name);
+        if(value == null) return Double.NaN;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** Read the rows of a CSV file. The first row names the columns, in any
+     * order and case; unknown columns are ignored. Recognized are:
+     * <ul>
+     * <li>latitude and longitude, in signed degrees (required): lati, lat,
+     * latitude; longi, lon, lng, long, longitude</li>
+     * <li>a unix time, in milliseconds or seconds, or an ISO 8601 time:
+     * timeUnixMillis, time, timestamp, datetime</li>
+     * <li>milliseconds since the start of the flight: deltaTMillis</li>
+     * <li>altitude, in feet: altitude, alt, altitude_ft; or in meters: ele,
+     * elevation, altitude_m</li>
+     * <li>roll, pitch and yaw, in degrees: roll; pitch; yaw, heading, course</li>
+     * <li>whether the position was dead reckoned, as 1 or 0: posEstimated</li>
+     * </ul>
+     * A time, a delta t or both are required. Without a time, the flight is
+     * taken to start when it is imported. */
+    private void parseCsv(Reader reader, SampleSink sink) throws IOException {
+        final CsvReader csv = new CsvReader(reader);
+        if(!csv.next()) throw new IOException("Empty file");
+
+        int timeCol = -1, deltaTCol = -1, latiCol = -1, longiCol = -1, altCol = -1;
+        int rollCol = -1, pitchCol = -1, yawCol = -1, posEstimatedCol = -1;
+        boolean altInMeters = false;
+        for(int i = 0; i < csv.getFieldCount(); i++) {
+            final String name = csv.getString(i).replace("\uFEFF", "")
+                    .trim().toLowerCase(Locale.US);
+            switch(name) {
+                case "lati": case "lat": case "latitude":
+                    latiCol = i;
+                    break;
+                case "longi": case "lon": case "lng": case "long": case "longitude":
+                    longiCol = i;
+                    break;
+                case "timeunixmillis": case "time": case "timestamp": case "datetime":
+                    timeCol = i;
+                    break;
+                case "deltatmillis":
+                    deltaTCol = i;
+                    break;
+                case "altitude": case "alt": case "altitude_ft":
+                    altCol = i;
+                    altInMeters = false;
+                    break;
+                case "ele": case "elevation": case "altitude_m":
+                    altCol = i;
+                    altInMeters = true;
+                    break;
+                case "roll":
+                    rollCol = i;
+                    break;
+                case "pitch":
+                    pitchCol = i;
+                    break;
+                case "yaw": case "heading": case "course":
+                    yawCol = i;
+                    break;
+                case "posestimated":
+                    posEstimatedCol = i;
+                    break;
+            }
+        }
+        if(latiCol < 0 || longiCol < 0) {
+            throw new IOException("No latitude and longitude columns");
+        }
+        if(timeCol < 0 && deltaTCol < 0) throw new IOException("No time column");
+
+        while(csv.next()) {
+            final long time = csv.getTime(timeCol);
+            final long deltaT = csv.getDeltaT(deltaTCol);
+            if(!sink.hasStarted()) {
+                if(time != NO_TIME) {
+                    sink.begin(deltaT != NO_TIME ? time - deltaT : time);
+                } else if(deltaT != NO_TIME && timeCol < 0) {
+                    sink.begin(System.currentTimeMillis());
+                } else {
+                    continue;
+                }
+            }
+
+            final long sampleDeltaT = deltaT != NO_TIME ? deltaT :
+                    time != NO_TIME ? time - sink.getStartMillis() : NO_TIME;
+            if(sampleDeltaT == NO_TIME) continue;
+            double alt = csv.getDouble(altCol, 0.0);
+            if(altInMeters) alt *= FEET_PER_METER;
+            sink.add(sampleDeltaT, csv.getDouble(rollCol, 0.0),
+                    csv.getDouble(pitchCol, 0.0), csv.getDouble(yawCol, 0.0),
+                    csv.getDouble(latiCol, Double.NaN), csv.getDouble(longiCol, Double.NaN),
+                    alt, csv.getDouble(posEstimatedCol, 0.0) != 0.0);
+        }
+    }
+
+    /** Parse a decimal number, such as -80.1234567 or 1.5e3, from a range of
+     * characters; NaN if it isn't one. Up to 18 significant digits are kept. */
+    static double parseDouble(char[] chars, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if(i < end && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        for(; i < end && chars[i] >= '0' && chars[i] <= '9'; i++) {
+            anyDigits = true;
+            if(significant < 18) {
+                mantissa = mantissa * 10 + (chars[i] - '0');
+                if(mantissa != 0) significant++;
+            } else {
+                exponent++;
+            }
+        }
+        if(i < end && chars[i] == '.') {
+            for(i++; i < end && chars[i] >= '0' && chars[i] <= '9'; i++) {
+                anyDigits = true;
+                if(significant < 18) {
+                    mantissa = mantissa * 10 + (chars[i] - '0');
+                    if(mantissa != 0) significant++;
+                    exponent--;
+                }
+            }
+        }
+        if(!anyDigits) return Double.NaN;
+
+        if(i < end && (chars[i] == 'e' || chars[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if(i < end && (chars[i] == '-' || chars[i] == '+')) {
+                negativeExponent = chars[i] == '-';
+                i++;
+            }
+            if(i == end) return Double.NaN;
+            int written = 0;
+            for(; i < end && chars[i] >= '0' && chars[i] <= '9'; i++) {
+                if(written < 10000) written = written * 10 + (chars[i] - '0');
+            }
+            exponent += negativeExponent ? -written : written;
+        }
+        if(i != end) return Double.NaN;
+
+        //Rare enough to leave to the library
+        if(exponent < -22 || exponent > 22) {
+            return Double.parseDouble(new String(chars, start, end - start));
+        }
+        final double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] :
+                mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    /** Parse an ISO 8601 time, such as 2015-04-20T16:05:09.25Z or
+     * 2015-04-20 12:05:09-04:00, from a range of characters. Times without a
+     * time zone are taken to be UTC.
+     * @return the time as a unix time in milliseconds, or NO_TIME if it
+     * isn't one */
+    static long parseIsoTime(char[] chars, int start, int end) {
+        if(end - start < 19 || chars[start + 4] != '-' || chars[start + 7] != '-'
+                || (chars[start + 10] != 'T' && chars[start + 10] != ' ')
+                || chars[start + 13] != ':' || chars[start + 16] != ':') {
+            return NO_TIME;
+        }
+        final int year = parseDigits(chars, start, 4, end);
+        final int month = parseDigits(chars, start + 5, 2, end);
+        final int day = parseDigits(chars, start + 8, 2, end);
+        final int hour = parseDigits(chars, start + 11, 2, end);
+        final int minute = parseDigits(chars, start + 14, 2, end);
+        final int second = parseDigits(chars, start + 17, 2, end);
+        if(year < 0 || month < 1 || month > 12 || day < 1 || hour < 0
+                || minute < 0 || second < 0) {
+            return NO_TIME;
+        }
+
+        int i = start + 19;
+        long millis = 0;
+        if(i < end && chars[i] == '.') {
+            int scale = 100;
+            for(i++; i < end && chars[i] >= '0' && chars[i] <= '9'; i++) {
+                millis += (chars[i] - '0') * scale;
+                scale /= 10;
+            }
+        }
+
+        int offsetMinutes = 0;
+        if(i < end && chars[i] == 'Z') {
+            i++;
+        } else if(i < end && (chars[i] == '+' || chars[i] == '-')) {
+            final int sign = chars[i] == '-' ? -1 : 1;
+            final int offsetHours = parseDigits(chars, i + 1, 2, end);
+            i += 3;
+            if(i < end && chars[i] == ':') i++;
+            int offsetMins = 0;
+            if(i < end) {
+                offsetMins = parseDigits(chars, i, 2, end);
+                i += 2;
+            }
+            if(offsetHours < 0 || offsetMins < 0) return NO_TIME;
+            offsetMinutes = sign * (offsetHours * 60 + offsetMins);
+        }
+        if(i != end) return NO_TIME;
+
+        final long minutes = (daysFromCivil(year, month, day) * 24 + hour) * 60
+                + minute - offsetMinutes;
+        return minutes * 60000L + second * 1000L + millis;
+    }
+
+    /** Parse a fixed number of digits; -1 if any of them isn't one. */
+    private static int parseDigits(char[] chars, int start, int count, int end) {
+        if(start + count > end) return -1;
+        int value = 0;
+        for(int i = start; i < start + count; i++) {
+            if(chars[i] < '0' || chars[i] > '9') return -1;
+            value = value * 10 + (chars[i] - '0');
+        }
+        return value;
+    }
+
+    /** Get the number of days from 1970-01-01 to a date of the (proleptic)
+     * Gregorian calendar. */
+    private static long daysFromCivil(int year, int month, int day) {
+        if(month <= 2) year--;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /** Collects the samples of the file being imported into a new flight,
+     * which is only created once the first sample's time is known. */
+    private final class SampleSink {
+        private final CountingInputStream counter;
+        private final long totalBytes;
+        private final ImportListener listener;
+
+        private long flightID = -1;
+        private long startMillis;
+        private FlightDataBatchWriter writer;
+
+        private long lastDeltaT = 0;
+
+        SampleSink(CountingInputStream counter, long totalBytes, ImportListener listener) {
+            this.counter = counter;
+            this.totalBytes = totalBytes;
+            this.listener = listener;
+        }
+
+        boolean hasStarted() {
+            return writer != null;
+        }
+
+        long getStartMillis() {
+            return startMillis;
+        }
+
+        /** Create the flight. */
+        void begin(long startMillis) {
+            this.startMillis = startMillis;
+            flightID = database.beginImportedFlight(startMillis);
+            //Nothing but the chunk size decides when to commit
+            writer = new FlightDataBatchWriter(database.getWritableDatabase(), flightID,
+                    CHUNK_SAMPLES, Long.MAX_VALUE, false);
+        }
+
+        /** Add a sample with a measured position; see the other add. */
+        void add(long deltaT, double roll, double pitch, double yaw,
+                 double lati, double longi, double alt) {
+            add(deltaT, roll, pitch, yaw, lati, longi, alt, false);
+        }
+
+        /** Add a sample, unless it has no position or comes before the start
+         * of the flight.
+         * @param posEstimated whether the position was dead reckoned */
+        void add(long deltaT, double roll, double pitch, double yaw,
+                 double lati, double longi, double alt, boolean posEstimated) {
+            if(deltaT < 0 || Double.isNaN(lati) || Double.isNaN(longi)) return;
+
+            lastDeltaT = Math.max(lastDeltaT, deltaT);
+            if(writer.appendMicros(deltaT * 1000L, roll, pitch, yaw, lati, longi, alt,
+                    posEstimated)) {
+                reportProgress();
+            }
+        }
+
+        private void reportProgress() {
+            if(listener == null) return;
+            //Samples at a delta t already imported are dropped, so count
+            //only what was committed
+            final long samplesSoFar = writer.getInsertedCount();
+            final long bytesRead = counter.getCount();
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onImportProgress(samplesSoFar, bytesRead, totalBytes);
+                }
+            });
+        }
+
+        /** Commit the last chunk and finish the flight.
+         * @return the flight's ID */
+        long finish() throws IOException {
+            if(writer == null) throw new IOException("No samples with a time and position");
+            writer.close();
+            final long total = writer.getInsertedCount();
+            writer = null;
+            database.concludeImportedFlight(flightID, lastDeltaT);
+
+            if(listener != null) {
+                final long id = flightID;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onImportFinished(id, total);
+                    }
+                });
+            }
+            return flightID;
+        }
+
+        /** Delete whatever was imported. */
+        void abandon() {
+            if(flightID < 0) return;
+            database.abandonImportedFlight(flightID);
+            flightID = -1;
+            writer = null;
+        }
+    }
+
+    /** Reads CSV one line at a time into a reused buffer, noting where each
+     * field starts and ends instead of splitting the line into Strings.
+     * Fields may be surrounded by spaces or quotes, but may not contain commas. */
+    private static final class CsvReader {
+        private final Reader in;
+        private final char[] buffer = new char[READ_BUFFER_SIZE];
+        private int position = 0;
+        private int limit = 0;
+
+        /** The current line, without its line break */
+        private char[] line = new char[256];
+        private int lineLength = 0;
+
+        //Where each field of the current line starts and ends
+        private int[] fieldStarts = new int[16];
+        private int[] fieldEnds = new int[16];
+        private int fieldCount = 0;
+
+        CsvReader(Reader in) {
+            this.in = in;
+        }
+
+        /** Read the next line.
+         * @return false at the end of the file */
+        boolean next() throws IOException {
+            lineLength = 0;
+            boolean anything = false;
+            while(true) {
+                if(position == limit) {
+                    limit = in.read(buffer, 0, buffer.length);
+                    position = 0;
+                    if(limit <= 0) {
+                        limit = 0;
+                        if(!anything) return false;
+                        break;
+                    }
+                }
+                anything = true;
+
+                int lineEnd = position;
+                while(lineEnd < limit && buffer[lineEnd] != '\n') lineEnd++;
+                append(position, lineEnd - position);
+                if(lineEnd < limit) {
+                    position = lineEnd + 1;
+                    break;
+                }
+                position = lineEnd;
+            }
+            if(lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+            split();
+            return true;
+        }
+
+        /** Add characters of the read buffer to the current line. */
+        private void append(int start, int count) {
+            if(lineLength + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + count));
+            }
+            System.arraycopy(buffer, start, line, lineLength, count);
+            lineLength += count;
+        }
+
+        /** Find the fields of the current line. */
+        private void split() {
+            fieldCount = 0;
+            int start = 0;
+            for(int i = 0; i <= lineLength; i++) {
+                if(i < lineLength && line[i] != ',') continue;
+
+                int fieldStart = start, fieldEnd = i;
+                while(fieldStart < fieldEnd && (line[fieldStart] == ' '
+                        || line[fieldStart] == '"')) fieldStart++;
+                while(fieldEnd > fieldStart && (line[fieldEnd - 1] == ' '
+                        || line[fieldEnd - 1] == '"')) fieldEnd--;
+                if(fieldCount == fieldStarts.length) {
+                    fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+                    fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+                }
+                fieldStarts[fieldCount] = fieldStart;
+                fieldEnds[fieldCount] = fieldEnd;
+                fieldCount++;
+                start = i + 1;
+            }
+        }
+
+        int getFieldCount() {
+            return fieldCount;
+        }
+
+        /** Get a field as a String; only for the header. */
+        String getString(int field) {
+            return new String(line, fieldStarts[field], fieldEnds[field] - fieldStarts[field]);
+        }
+
+        /** Get a field as a number.
+         * @param field the field's index; -1 for a missing column
+         * @param missing returned if the field is missing or isn't a number */
+        double getDouble(int field, double missing) {
+            if(field < 0 || field >= fieldCount) return missing;
+            final double value = parseDouble(line, fieldStarts[field], fieldEnds[field]);
+            return Double.isNaN(value) ? missing : value;
+        }
+
+        /** Get a field as a whole number of milliseconds; NO_TIME if missing. */
+        long getDeltaT(int field) {
+            final double value = getDouble(field, Double.NaN);
+            return Double.isNaN(value) ? NO_TIME : Math.round(value);
+        }
+
+        /** Get a field as a unix time in milliseconds, whether it is written
+         * in seconds, in milliseconds or in ISO 8601; NO_TIME if missing. */
+        long getTime(int field) {
+            if(field < 0 || field >= fieldCount) return NO_TIME;
+            final int start = fieldStarts[field], end = fieldEnds[field];
+            for(int i = start; i < end; i++) {
+                if(line[i] == ':') return parseIsoTime(line, start, end);
+            }
+            final double value = parseDouble(line, start, end);
+            if(Double.isNaN(value)) return NO_TIME;
+            return Math.round(value < MAX_UNIX_SECONDS ? value * 1000.0 : value);
+        }
+    }
+
+    /** Counts the bytes read through it, for progress. */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if(b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if(read > 0) count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightJournal.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to durably record flight samples in a memory-mapped file. */
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/** An append-only journal of the samples of one flight, written through a
+ * memory-mapped file. Writing a sample is just a copy into mapped memory,
+ * which the kernel keeps even if the app process dies, so nothing logged is
+ * lost between database commits. The journal is deleted once its flight is
+ * concluded; any journal found afterward belongs to a flight that never
+ * finished, and can be replayed with a Reader.
+ * <p>
+ * The file starts with a header record (magic number, version, flight ID and
+ * Unix start time), followed by one fixed-size record per sample. Each record
+ * ends in a CRC32 of its contents, so a partially written record is detected
+ * and the journal is read up to the last good one. Since version 2, a
+ * record's delta t is in microseconds rather than milliseconds. Since
+ * version 3, a record's flags, in what was its padding, tell whether its
+ * position was dead reckoned. */
+class FlightJournal {
+
+    /** Directory, within the app's files, that holds journals */
+    private static final String JOURNAL_DIR = "journals";
+    /** File extension of a journal */
+    private static final String SUFFIX = ".journal";
+
+    /** Identifies a journal file ("FDRJ") */
+    private static final int MAGIC = 0x4644524A;
+    /** Version of the journal layout */
+    private static final int VERSION = 3;
+    /** The last version without record flags; still replayed */
+    private static final int VERSION_NO_FLAGS = 2;
+    /** The last version with delta t in milliseconds; still replayed */
+    private static final int VERSION_MILLIS = 1;
+
+    /** Size of the header and of every record, in bytes */
+    private static final int RECORD_SIZE = 64;
+    /** Bytes of a record covered by its checksum; delta t, six doubles and
+     * the flags */
+    private static final int PAYLOAD_SIZE = 60;
+    /** Bytes covered by the checksum before version 3, which had no flags;
+     * the record was padded out with zeros after the checksum */
+    private static final int PAYLOAD_SIZE_NO_FLAGS = 56;
+    /** Record flag: the position was dead reckoned */
+    private static final int FLAG_POS_ESTIMATED = 1;
+    /** Bytes of the file mapped at a time; a multiple of RECORD_SIZE */
+    private static final int CHUNK_SIZE = 4096 * RECORD_SIZE;
+
+    /** The journal file */
+    private final File file;
+    /** The open journal file, kept open to map further chunks */
+    private final RandomAccessFile raf;
+    /** The currently mapped part of the journal */
+    private MappedByteBuffer chunk;
+    /** File offset at which the current chunk starts */
+    private long chunkStart;
+
+    //Scratch space for building records without allocating
+    private final byte[] payload = new byte[PAYLOAD_SIZE];
+    private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+    private final CRC32 crc = new CRC32();
+
+    /** Create a new journal file for a flight, replacing any old one.
+     * @param context a Context used to find the app's files directory
+     * @param flightID the ID of the flight being logged
+     * @param realStartMillis the Unix start time of the flight
+     * @throws IOException if the file cannot be created or mapped */
+    FlightJournal(Context context, long flightID, long realStartMillis)
+            throws IOException {
+        file = getJournalFile(context, flightID);
+        file.getParentFile().mkdirs();
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+
+        chunkStart = 0;
+        chunk = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE);
+
+        //Header record; padded out to a full record
+        chunk.putInt(MAGIC);
+        chunk.putInt(VERSION);
+        chunk.putLong(flightID);
+        chunk.putLong(realStartMillis);
+        chunk.position(RECORD_SIZE);
+    }
+
+    /** Get the file a flight's journal is kept in. */
+    private static File getJournalFile(Context context, long flightID) {
+        return new File(new File(context.getFilesDir(), JOURNAL_DIR),
+                flightID + SUFFIX);
+    }
+
+    /** Get every journal file left over in the app's files directory. */
+    static File[] listJournals(Context context) {
+        File[] journals = new File(context.getFilesDir(), JOURNAL_DIR)
+                .listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String filename) {
+                        return filename.endsWith(SUFFIX);
+                    }
+                });
+        return journals != null ? journals : new File[0];
+    }
+
+    /** Append one sample to the journal.
+     * @param deltaTmicros microseconds since the start of the flight
+     * @param posEstimated whether the position was dead reckoned
+     * @throws IOException if the journal could not be extended */
+    void append(long deltaTmicros, double roll, double pitch, double yaw,
+                double lati, double longi, double alt, boolean posEstimated)
+            throws IOException {
+        if(chunk.remaining() < RECORD_SIZE) {
+            chunkStart += chunk.position();
+            chunk = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    chunkStart, CHUNK_SIZE);
+        }
+
+        payloadBuffer.putLong(0, deltaTmicros);
+        payloadBuffer.putDouble(8, roll);
+        payloadBuffer.putDouble(16, pitch);
+        payloadBuffer.putDouble(24, yaw);
+        payloadBuffer.putDouble(32, lati);
+        payloadBuffer.putDouble(40, longi);
+        payloadBuffer.putDouble(48, alt);
+        payloadBuffer.putInt(56, posEstimated ? FLAG_POS_ESTIMATED : 0);
+        crc.reset();
+        crc.update(payload, 0, PAYLOAD_SIZE);
+
+        //The checksum goes in last; a record cut off before it is discarded
+        chunk.put(payload);
+        chunk.putInt((int) crc.getValue());
+    }
+
+    /** Close and delete the journal, once its samples are safely committed. */
+    void delete() {
+        try {
+            raf.close();
+        } catch (IOException ignored) {}
+        chunk = null;
+        file.delete();
+    }
+
+    /** Reads back the samples of a journal left by an unfinished flight.
+     * Reading stops at the first record that fails its checksum. */
+    static class Reader {
+        private final File file;
+        private final MappedByteBuffer data;
+        private final long flightID;
+        private final long realStartMillis;
+        /** Microseconds per unit of a record's delta t */
+        private final long microsPerDeltaT;
+        /** Bytes of each record covered by its checksum, in this version */
+        private final int payloadSize;
+
+        private final byte[] payload = new byte[PAYLOAD_SIZE];
+        private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        private final CRC32 crc = new CRC32();
+
+        /** Open a journal file for reading.
+         * @throws IOException if the file cannot be read or is not a journal */
+        Reader(File journal) throws IOException {
+            file = journal;
+            RandomAccessFile raf = new RandomAccessFile(journal, "r");
+            try {
+                data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        raf.length());
+            } finally {
+                raf.close();
+            }
+
+            final int magic = data.remaining() < RECORD_SIZE ? 0 : data.getInt();
+            final int version = magic == MAGIC ? data.getInt() : 0;
+            if(version < VERSION_MILLIS || version > VERSION) {
+                throw new IOException(journal + " is not a flight journal");
+            }
+            microsPerDeltaT = version == VERSION_MILLIS ? 1000L : 1L;
+            payloadSize = version <= VERSION_NO_FLAGS ? PAYLOAD_SIZE_NO_FLAGS : PAYLOAD_SIZE;
+            flightID = data.getLong();
+            realStartMillis = data.getLong();
+            data.position(RECORD_SIZE);
+        }
+
+        /** Get the ID of the flight this journal belongs to */
+        long getFlightID() {
+            return flightID;
+        }
+
+        /** Get the Unix start time, in milliseconds, of the journal's flight */
+        long getRealStartMillis() {
+            return realStartMillis;
+        }
+
+        /** Advance to the next intact record.
+         * @return false if there are no more intact records */
+        boolean next() {
+            if(data.remaining() < RECORD_SIZE) return false;
+            data.get(payload, 0, payloadSize);
+            final int storedCrc = data.getInt();
+            if(payloadSize < PAYLOAD_SIZE) {
+                //Padding, and no flags
+                data.getInt();
+                payloadBuffer.putInt(PAYLOAD_SIZE_NO_FLAGS, 0);
+            }
+
+            crc.reset();
+            crc.update(payload, 0, payloadSize);
+            if((int) crc.getValue() != storedCrc) {
+                //Torn or never written; nothing after it can be trusted
+                data.position(data.limit());
+                return false;
+            }
+            return true;
+        }
+
+        //Values of the current record
+        /** Get the delta t of the current record, in microseconds */
+        long getDeltaTMicros() {
+            return payloadBuffer.getLong(0) * microsPerDeltaT;
+        }
+
+        double getRoll() {
+            return payloadBuffer.getDouble(8);
+        }
+
+        double getPitch() {
+            return payloadBuffer.getDouble(16);
+        }
+
+        double getYaw() {
+            return payloadBuffer.getDouble(24);
+        }
+
+        double getLatitude() {
+            return payloadBuffer.getDouble(32);
+        }
+
+        double getLongitude() {
+            return payloadBuffer.getDouble(40);
+        }
+
+        double getAltitude() {
+            return payloadBuffer.getDouble(48);
+        }
+
+        boolean isPosEstimated() {
+            return (payloadBuffer.getInt(56) & FLAG_POS_ESTIMATED) != 0;
+        }
+
+        /** Delete the journal file, once it has been replayed. */
+        void delete() {
+            file.delete();
+        }
+    }
+}
@@ -4,23 +4,60 @@ package edu.erau.mad.trb.flightdatarecorder;
  * by Thomas Bassa
  * A Java class to handle the storage of flight data in a database. */
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /** Database class for the storage of all flight data. Utilizes the
- * SQLiteOpenHelper to accomplish the management of the database. */
+ * SQLiteOpenHelper to accomplish the management of the database.
+ * <p>
+ * The database runs in write-ahead logging mode. The one SQLiteDatabase
+ * object then keeps a dedicated primary connection, used for every write
+ * transaction (i.e. the LoggingService thread), and a pool of read-only
+ * connections that serve queries made outside of a transaction. Browsing the
+ * history or plotting a flight therefore never waits on a recording in
+ * progress, and vice versa. While a flight is logged, automatic checkpoints
+ * are turned off and the WAL is instead checkpointed right after a batch is
+ * committed; see {@link #setCheckpointInterval(int)}. */
 public class FlightLogDatabase extends SQLiteOpenHelper {
 
+    /** Tag used for log messages */
+    private final static String TAG = "FlightLogDatabase";
+
     /** Version of the database schema, used in onCreate/onUpgrade */
-    private final static int VERSION_NO = 1;
+    private final static int VERSION_NO = 12;
     /** Database file name used within the Android file system (not seen much) */
     private final static String DB_NAME = "FlightLogs.db";
 
+    /** The WAL auto-checkpoint threshold, in pages, used outside of logging.
+     * This is SQLite's own default. */
+    private final static int DEFAULT_AUTO_CHECKPOINT_PAGES = 1000;
+    /** Default number of committed batches between checkpoints while logging */
+    private final static int DEFAULT_CHECKPOINT_INTERVAL = 8;
+
     /** Name of the table of orientation records. Its columns follow. */
     public final static String TABLE_FLIGHT_DATA = "FlightOrientationData";
 
@@ -34,6 +71,10 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
     /** How many milliseconds have passed since the start of this flight */
     public final static String COL_DELTA_T_MS = "deltaTMillis";
 
+    /** Microseconds past deltaTMillis, from 0 to 999. Part of the key along
+     * with it, so that samples logged at a high rate never collide. */
+    public final static String COL_DELTA_T_SUB_US = "deltaTSubMicros";
+
     /** Roll of the device, in degrees from "flat," positive in right tilt
      * direction, negative in left */
     public final static String COL_ROLL = "roll";
@@ -56,6 +97,10 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
     /** Altitude, height AMSL, in feet */
     public final static String COL_ALT = "altitude";
 
+    /** 1 if the position was dead reckoned from the last GPS fix, 0 if it
+     * is the fix itself */
+    public final static String COL_POS_ESTIMATED = "posEstimated";
+
 
     /** The table name for the list of flights. Its columns follow, although
      * FLIGHT_ID is shared among both tables. */
@@ -69,6 +114,250 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
     /** The time this flight ended, as a Unix timestamp in milliseconds */
     public final static String COL_END_REAL = "endTimeUnixMillis";
 
+    /** The number of tiers of the retention policy the flight has been
+     * compacted to; 0 if it has every sample logged */
+    public final static String COL_RETENTION_TIER = "retentionTier";
+
+    /** 1 while the flight is being imported, and its samples are still being
+     * written; 0 otherwise */
+    public final static String COL_IMPORTING = "importing";
+
+
+    /** The table name for packed flight data; each row holds a run of
+     * samples encoded by FlightSegmentCodec. Its columns follow, along with
+     * FLIGHT_ID. Concluded flights are moved here from TABLE_FLIGHT_DATA. */
+    public final static String TABLE_FLIGHT_SEGMENTS = "FlightSegments";
+
+    /** Delta t of the first sample in a segment */
+    public final static String COL_SEG_START = "segStartMillis";
+
+    /** Delta t of the last sample in a segment */
+    public final static String COL_SEG_END = "segEndMillis";
+
+    /** Number of samples in a segment */
+    public final static String COL_SEG_COUNT = "sampleCount";
+
+    /** Bounding box of a segment's positions, in signed degrees */
+    public final static String COL_SEG_MIN_LATI = "minLati";
+    public final static String COL_SEG_MAX_LATI = "maxLati";
+    public final static String COL_SEG_MIN_LONGI = "minLongi";
+    public final static String COL_SEG_MAX_LONGI = "maxLongi";
+
+    /** The encoded segment itself */
+    public final static String COL_SEG_DATA = "data";
+
+    /** The table name for per-flight statistics, kept up to date as a flight
+     * is logged so that none of them require scanning its samples. One row per
+     * flight, keyed by FLIGHT_ID; see FlightSummary. Its columns follow. */
+    public final static String TABLE_FLIGHT_SUMMARY = "FlightSummary";
+
+    /** Number of samples logged */
+    public final static String COL_SUM_POINTS = "pointCount";
+
+    /** Delta t of the first and last samples */
+    public final static String COL_SUM_FIRST_DELTA_T = "firstDeltaTMillis";
+    public final static String COL_SUM_LAST_DELTA_T = "lastDeltaTMillis";
+
+    /** Bounding box of the flight's positions, in signed degrees; null if the
+     * flight never had a position fix */
+    public final static String COL_SUM_MIN_LATI = "minLati";
+    public final static String COL_SUM_MAX_LATI = "maxLati";
+    public final static String COL_SUM_MIN_LONGI = "minLongi";
+    public final static String COL_SUM_MAX_LONGI = "maxLongi";
+
+    /** Lowest and highest altitudes, in feet; null if never a position fix */
+    public final static String COL_SUM_MIN_ALT = "minAlt";
+    public final static String COL_SUM_MAX_ALT = "maxAlt";
+
+    /** Distance traveled along the logged track, in meters */
+    public final static String COL_SUM_DISTANCE = "distanceMeters";
+
+    /** Logged duration, from the first sample to the last, in milliseconds;
+     * kept so that flights can be searched by duration through an index */
+    public final static String COL_SUM_DURATION = "durationMillis";
+
+    /** The table name for the time ranges of the track boxes in the spatial
+     * index. Each box covers a short run of one flight's positions; see
+     * FlightTrackIndexer. Its columns follow, along with FLIGHT_ID. */
+    public final static String TABLE_TRACK_BOXES = "FlightTrackBoxes";
+
+    /** The ID of a box, shared with TABLE_TRACK_INDEX */
+    public final static String COL_BOX_ID = "boxId";
+
+    /** Delta t of the first and last positions within a box */
+    public final static String COL_BOX_START = "startDeltaTMillis";
+    public final static String COL_BOX_END = "endDeltaTMillis";
+
+    /** The table name for the spatial index: the bounding box of each box in
+     * TABLE_TRACK_BOXES. An R*Tree where SQLite supports it, otherwise a plain
+     * table; see FlightLogMigrations.createSpatialTable. Its columns are
+     * BOX_ID and the following, in signed degrees. */
+    public final static String TABLE_TRACK_INDEX = "FlightTrackIndex";
+    public final static String COL_BOX_MIN_LATI = "minLati";
+    public final static String COL_BOX_MAX_LATI = "maxLati";
+    public final static String COL_BOX_MIN_LONGI = "minLongi";
+    public final static String COL_BOX_MAX_LONGI = "maxLongi";
+
+    /** The table name for the level-of-detail pyramid of each flight's track.
+     * Every row is one tile: a run of positions at one level of decimation,
+     * encoded by FlightSegmentCodec; see FlightTrackLodBuilder. Its columns
+     * are FLIGHT_ID, the following, and the SEG_ columns of
+     * TABLE_FLIGHT_SEGMENTS, which have the same meaning for a tile. */
+    public final static String TABLE_TRACK_LOD = "FlightTrackLod";
+
+    /** The level of a tile; 0 has every position, and each level above it
+     * has a quarter of the positions of the level below. A packed flight has
+     * no level 0 tiles; its segments are level 0 instead. */
+    public final static String COL_LOD_LEVEL = "level";
+
+    /** The number of a tile within its level, in time order */
+    public final static String COL_LOD_TILE = "tile";
+
+    /** The tables other than the flight data whose rows belong to a flight,
+     * and go when it is deleted */
+    private final static String[] FLIGHT_CHILD_TABLES = {TABLE_FLIGHT_SEGMENTS,
+            TABLE_FLIGHT_SUMMARY, TABLE_TRACK_BOXES, TABLE_TRACK_LOD};
+
+    /** Index of track boxes by flight, for deleting a flight's boxes */
+    private final static String INDEX_TRACK_BOX_FLIGHT = "FlightTrackBoxesFlightIndex";
+    /** Trigger that removes a box from the spatial index along with its time
+     * range, since a virtual table cannot take part in ON DELETE CASCADE */
+    private final static String TRIGGER_TRACK_BOX_DELETE = "FlightTrackBoxesDelete";
+
+    /** Index of the flight list by start time */
+    private final static String INDEX_FLIGHT_START = "FlightListStartIndex";
+    /** Indexes of flight summaries by duration and by highest altitude, for
+     * FlightSearch */
+    private final static String INDEX_SUMMARY_DURATION = "FlightSummaryDurationIndex";
+    private final static String INDEX_SUMMARY_MAX_ALT = "FlightSummaryMaxAltIndex";
+
+    /** Number of flight data rows deleted per transaction when deleting flights */
+    private final static int DELETE_CHUNK_ROWS = 4000;
+    /** Number of free pages returned to the filesystem per incremental vacuum */
+    private final static int VACUUM_CHUNK_PAGES = 256;
+    /** Value of PRAGMA auto_vacuum for incremental vacuuming */
+    private final static int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Number of samples packed into each segment; 10 minutes at 1 Hz */
+    private final static int SEGMENT_SIZE = 600;
+    /** Number of samples compacted per transaction, and the most held in
+     * memory at once, when compacting a flight */
+    private final static int RETENTION_WINDOW_SAMPLES = 4096;
+
+    /** Most flight data rows fetched per query by readFlightTrack. Small
+     * enough that a page always fits in one CursorWindow, so the query never
+     * has to be stepped through again to refill the window. */
+    private final static int TRACK_PAGE_ROWS = 4096;
+    /** Samples read at once when a flight is streamed to rebuild its
+     * derived data */
+    private final static int STREAM_WINDOW_SAMPLES = 1024;
+    /** Most segments fetched per query by readFlightTrack */
+    private final static int TRACK_PAGE_SEGMENTS = 8;
+
+    //Queries made over and over again. These never change, and values are
+    //bound as arguments, so each connection compiles them only once and then
+    //reuses the statement from its cache; see onOpen.
+
+    /** Every concluded flight, along with parts of its summary */
+    private final static String SELECT_FLIGHTS = "SELECT l." + COL_FLIGHT_ID +
+            " AS " + COL_FLIGHT_ID_ALIAS + ", " + COL_START_REAL + ", " +
+            COL_END_REAL + ", " + COL_SUM_POINTS + ", " + COL_SUM_DISTANCE + ", " +
+            COL_SUM_DURATION + ", " + COL_SUM_MIN_ALT + ", " + COL_SUM_MAX_ALT +
+            " FROM " + TABLE_FLIGHT_LIST + " l LEFT JOIN " +
+            TABLE_FLIGHT_SUMMARY + " s ON s." + COL_FLIGHT_ID + "=l." + COL_FLIGHT_ID +
+            " WHERE " + COL_END_REAL + " NOT NULL";
+    /** Every concluded flight, newest first */
+    private final static String QUERY_ALL_FLIGHTS = SELECT_FLIGHTS + " ORDER BY " +
+            COL_START_REAL + " DESC";
+    /** The part of a query for a page of concluded flights that picks the
+     * flights after a given one. The start time index holds the rowid after
+     * the start time, so it gives the flights in exactly this order, and the
+     * page is found without sorting. */
+    private final static String WHERE_FLIGHTS_AFTER = " AND " + COL_START_REAL +
+            "<=? AND NOT (" + COL_START_REAL + "=? AND l." + COL_FLIGHT_ID + ">=?)";
+    /** The order and size of a page of flights */
+    private final static String ORDER_FLIGHTS_PAGE = " ORDER BY " + COL_START_REAL +
+            " DESC, l." + COL_FLIGHT_ID + " DESC LIMIT ?";
+    /** The IDs of every concluded flight, newest first */
+    private final static String QUERY_ALL_FLIGHT_IDS = "SELECT " + COL_FLIGHT_ID +
+            " FROM " + TABLE_FLIGHT_LIST + " WHERE " + COL_END_REAL + " NOT NULL" +
+            " ORDER BY " + COL_START_REAL + " DESC";
+    /** Whether a flight exists */
+    private final static String QUERY_FLIGHT_EXISTS = "SELECT EXISTS(SELECT 1 FROM " +
+            TABLE_FLIGHT_LIST + " WHERE " + COL_FLIGHT_ID + "=?)";
+    /** The oldest concluded flight started before a time and compacted to
+     * fewer than some number of retention tiers */
+    private final static String QUERY_FLIGHT_TO_COMPACT = "SELECT " + COL_FLIGHT_ID +
+            " FROM " + TABLE_FLIGHT_LIST + " WHERE " + COL_END_REAL + " NOT NULL AND " +
+            COL_START_REAL + "<? AND " + COL_RETENTION_TIER + "<?" +
+            " ORDER BY " + COL_START_REAL + " ASC LIMIT 1";
+    /** The number of samples of a packed flight */
+    private final static String QUERY_SEGMENT_SAMPLE_COUNT = "SELECT TOTAL(" +
+            COL_SEG_COUNT + ") FROM " + TABLE_FLIGHT_SEGMENTS + " WHERE " +
+            COL_FLIGHT_ID + "=?";
+    /** The segments of a flight that overlap a range of delta t */
+    private final static String QUERY_SEGMENTS_OVERLAPPING = "SELECT " + COL_SEG_START +
+            ", " + COL_SEG_DATA + " FROM " + TABLE_FLIGHT_SEGMENTS + " WHERE " +
+            COL_FLIGHT_ID + "=? AND " + COL_SEG_START + "<=? AND " + COL_SEG_END + ">=?" +
+            " ORDER BY " + COL_SEG_START + " ASC";
+    /** The start time of a flight */
+    private final static String QUERY_FLIGHT_START = "SELECT " + COL_START_REAL +
+            " FROM " + TABLE_FLIGHT_LIST + " WHERE " + COL_FLIGHT_ID + "=?";
+    /** The summary of a flight */
+    private final static String QUERY_FLIGHT_SUMMARY = "SELECT * FROM " +
+            TABLE_FLIGHT_SUMMARY + " WHERE " + COL_FLIGHT_ID + "=?";
+    /** Whether a flight has any segments */
+    private final static String QUERY_FLIGHT_PACKED = "SELECT EXISTS(SELECT 1 FROM " +
+            TABLE_FLIGHT_SEGMENTS + " WHERE " + COL_FLIGHT_ID + "=?)";
+    /** A page of a flight's segments that end at or after a delta t */
+    private final static String QUERY_TRACK_SEGMENTS = "SELECT " + COL_SEG_DATA +
+            " FROM " + TABLE_FLIGHT_SEGMENTS + " WHERE " + COL_FLIGHT_ID + "=? AND " +
+            COL_SEG_END + ">=? ORDER BY " + COL_SEG_START + " ASC LIMIT ?";
+    /** Time ranges of every track box overlapping an area */
+    private final static String QUERY_AREA = "SELECT b." + COL_FLIGHT_ID + ", b." +
+            COL_BOX_START + ", b." + COL_BOX_END + " FROM " + TABLE_TRACK_INDEX +
+            " i JOIN " + TABLE_TRACK_BOXES + " b ON b." + COL_BOX_ID + "=i." + COL_BOX_ID +
+            " WHERE i." + COL_BOX_MAX_LATI + ">=? AND i." + COL_BOX_MIN_LATI + "<=?" +
+            " AND i." + COL_BOX_MAX_LONGI + ">=? AND i." + COL_BOX_MIN_LONGI + "<=?" +
+            " ORDER BY b." + COL_FLIGHT_ID + ", b." + COL_BOX_START;
+    /** The number of levels of a flight's pyramid */
+    private final static String QUERY_LOD_LEVEL_COUNT = "SELECT IFNULL(MAX(" +
+            COL_LOD_LEVEL + ")+1, 0) FROM " + TABLE_TRACK_LOD +
+            " WHERE " + COL_FLIGHT_ID + "=?";
+    /** Positions per level of a flight's pyramid within an area, counting a
+     * packed flight's segments as level 0; the area is given twice */
+    private final static String QUERY_LOD_LEVEL_POINTS = "SELECT 0, TOTAL(" +
+            COL_SEG_COUNT + ") FROM " + TABLE_FLIGHT_SEGMENTS +
+            " WHERE " + COL_FLIGHT_ID + "=?" +
+            " AND " + COL_SEG_MAX_LATI + ">=? AND " + COL_SEG_MIN_LATI + "<=?" +
+            " AND " + COL_SEG_MAX_LONGI + ">=? AND " + COL_SEG_MIN_LONGI + "<=?" +
+            " HAVING COUNT(*)>0" +
+            " UNION ALL SELECT " + COL_LOD_LEVEL +
+            ", TOTAL(" + COL_SEG_COUNT + ") FROM " + TABLE_TRACK_LOD +
+            " WHERE " + COL_FLIGHT_ID + "=?" +
+            " AND " + COL_SEG_MAX_LATI + ">=? AND " + COL_SEG_MIN_LATI + "<=?" +
+            " AND " + COL_SEG_MAX_LONGI + ">=? AND " + COL_SEG_MIN_LONGI + "<=?" +
+            " GROUP BY " + COL_LOD_LEVEL + " ORDER BY 1 ASC";
+    /** Tiles of one level of a flight's pyramid within an area */
+    private final static String QUERY_LOD_TILES = "SELECT " + COL_LOD_TILE + ", " +
+            COL_SEG_DATA + " FROM " + TABLE_TRACK_LOD +
+            " WHERE " + COL_FLIGHT_ID + "=? AND " + COL_LOD_LEVEL + "=?" +
+            " AND " + COL_SEG_MAX_LATI + ">=? AND " + COL_SEG_MIN_LATI + "<=?" +
+            " AND " + COL_SEG_MAX_LONGI + ">=? AND " + COL_SEG_MIN_LONGI + "<=?" +
+            " ORDER BY " + COL_LOD_TILE + " ASC";
+    /** Segments of a flight within an area, as the tiles of level 0 of its
+     * pyramid, numbered by their start */
+    private final static String QUERY_SEGMENT_TILES = "SELECT " + COL_SEG_START + ", " +
+            COL_SEG_DATA + " FROM " + TABLE_FLIGHT_SEGMENTS +
+            " WHERE " + COL_FLIGHT_ID + "=?" +
+            " AND " + COL_SEG_MAX_LATI + ">=? AND " + COL_SEG_MIN_LATI + "<=?" +
+            " AND " + COL_SEG_MAX_LONGI + ">=? AND " + COL_SEG_MIN_LONGI + "<=?" +
+            " ORDER BY " + COL_SEG_START + " ASC";
+    /** The segments of a flight before a delta t, latest first */
+    private final static String QUERY_SEGMENTS_BEFORE = "SELECT " + COL_SEG_DATA +
+            " FROM " + TABLE_FLIGHT_SEGMENTS + " WHERE " + COL_FLIGHT_ID + "=? AND " +
+            COL_SEG_START + "<? ORDER BY " + COL_SEG_START + " DESC LIMIT ?";
+
     /** The saved instance of the FlightLogDatabase; used for singleton pattern */
     private static FlightLogDatabase instance;
 
@@ -77,12 +366,245 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
     /** Whether the value of lastNewID is valid */
     private boolean lastIDvalid = false;
 
+    /** Application context, used to locate flight journals */
+    private final Context context;
+
+    /** Durable record of every sample of the flight being logged that may
+     * not have been committed yet; null if not logging or if the journal
+     * could not be created */
+    private FlightJournal journal;
+
+    /** Buffers and group-commits the samples of the flight being logged;
+     * non-null between openLoggingDBConnection and concludeLogging */
+    private FlightDataBatchWriter batchWriter;
+    /** Number of samples committed together while logging */
+    private int maxBatchSize = FlightDataBatchWriter.DEFAULT_MAX_BATCH_SIZE;
+    /** Longest time, in milliseconds, a logged sample may wait to be committed */
+    private long maxBatchAgeMillis = FlightDataBatchWriter.DEFAULT_MAX_BATCH_AGE_MS;
+
+    /** Number of committed batches between WAL checkpoints while logging;
+     * 0 leaves checkpoints entirely to the caller */
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    /** Batches committed since the last checkpoint of the current flight */
+    private int batchesSinceCheckpoint = 0;
+
+    /** Puts the samples drained by logFlightSamples on the flight's time
+     * grid; null unless startResampling was called this flight */
+    private SampleResampler resampler;
+    /** Delta t, in microseconds, of the last sample logged from a ring this
+     * flight; -1 if none */
+    private long lastRingDeltaTMicros = -1;
+
+    /** The position and orientation logged by logFlightData; only used on
+     * the logging thread */
+    private final DevicePosAndOrient.Snapshot loggedState = new DevicePosAndOrient.Snapshot();
+
+    /** Logs each sample the resampler puts out */
+    private final SampleResampler.Output resampledSink = new SampleResampler.Output() {
+        @Override
+        public void accept(long deltaTmicros, double roll, double pitch, double yaw,
+                           double lati, double longi, double alt, boolean posEstimated) {
+            lastRingDeltaTMicros = deltaTmicros;
+            logSample(deltaTmicros, roll, pitch, yaw, lati, longi, alt, posEstimated);
+        }
+    };
+
+    /** IDs of the flights this process is importing, which are unfinished
+     * but must not be recovered; see beginImportedFlight */
+    private final Set<Long> importingFlights = new HashSet<>();
+
+    /** Whether concluded flights are packed into segments */
+    private boolean segmentStorageEnabled = true;
+
+    /** Old copies of the flight data table whose rows are still being moved
+     * into the current one, oldest first; see FlightLogMigrations */
+    private volatile String[] legacySampleTables = new String[0];
+    /** The queries over the flight data rows, for legacySampleTables */
+    private volatile SampleQueries sampleQueries = new SampleQueries(legacySampleTables);
+
+    /** The queries that read flight data rows, wherever they are stored. Made
+     * again only when the legacy tables change, so the text of each query
+     * stays the same in between and SQLite's statement cache keeps it. */
+    private static final class SampleQueries {
+        /** A page of a flight's samples, with every column in the order of
+         * FlightSegmentCodec.COLUMNS, then the microseconds, after a (ms, us)
+         * key; arguments are the flight, the key's ms twice and us, and the
+         * most rows */
+        final String samplePage;
+        /** Likewise, with delta t, latitude and longitude only */
+        final String trackPage;
+        /** Every sample of a flight, in the columns of samplePage */
+        final String allSamples;
+        /** The number of samples of a flight */
+        final String sampleCount;
+        /** The last delta t of a flight, rows or segments; the flight is
+         * given twice */
+        final String lastDeltaT;
+
+        SampleQueries(String[] legacy) {
+            final String source = sampleSource(legacy);
+            final String order = " ORDER BY " + COL_DELTA_T_MS + " ASC, " +
+                    COL_DELTA_T_SUB_US + " ASC";
+            final String after = " AND (" + COL_DELTA_T_MS + ">? OR (" +
+                    COL_DELTA_T_MS + "=? AND " + COL_DELTA_T_SUB_US + ">?))";
+            final String samples = "SELECT " + COL_DELTA_T_MS + ", " + COL_ROLL + ", " +
+                    COL_PITCH + ", " + COL_YAW + ", " + COL_LATI + ", " + COL_LONGI +
+                    ", " + COL_ALT + ", " + COL_POS_ESTIMATED + ", " + COL_DELTA_T_SUB_US +
+                    " FROM " + source + " WHERE " + COL_FLIGHT_ID + "=?";
+            samplePage = samples + after + order + " LIMIT ?";
+            trackPage = "SELECT " + COL_DELTA_T_MS + ", " + COL_LATI + ", " + COL_LONGI +
+                    ", " + COL_DELTA_T_SUB_US + " FROM " + source + " WHERE " +
+                    COL_FLIGHT_ID + "=?" + after + order + " LIMIT ?";
+            allSamples = samples + order;
+            sampleCount = "SELECT COUNT(*) FROM " + source + " WHERE " +
+                    COL_FLIGHT_ID + "=?";
+            lastDeltaT = "SELECT MAX((SELECT IFNULL(MAX(" + COL_DELTA_T_MS + "), 0) FROM " +
+                    source + " WHERE " + COL_FLIGHT_ID + "=?), (SELECT IFNULL(MAX(" +
+                    COL_SEG_END + "), 0) FROM " + TABLE_FLIGHT_SEGMENTS + " WHERE " +
+                    COL_FLIGHT_ID + "=?))";
+        }
+    }
+
+    /** Change the legacy tables flight data rows are read from. */
+    private void setLegacySampleTables(String[] tables) {
+        sampleQueries = new SampleQueries(tables);
+        legacySampleTables = tables;
+    }
+
+    /** Moves one chunk of legacy flight data per run, reposting itself until
+     * every legacy table is drained and dropped. Each chunk is moved holding
+     * the database's lock, so reset() cannot drop the table in between. */
+    private final Runnable legacyMigrationTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized(FlightLogDatabase.this) {
+                //Checked again under the lock, as reset() may have run since
+                final String[] pending = legacySampleTables;
+                if(pending.length == 0) return;
+
+                SQLiteDatabase db = getWritableDatabase();
+                if(FlightLogMigrations.moveLegacySampleChunk(db, pending[0])) {
+                    //Stop reading from it before it disappears
+                    setLegacySampleTables(Arrays.copyOfRange(pending, 1, pending.length));
+                    FlightLogMigrations.dropLegacySampleTable(db, pending[0]);
+                }
+                if(legacySampleTables.length == 0) return;
+            }
+            //Repost rather than loop, so other background work can interleave
+            runInBackground(this);
+        }
+    };
+
+    /** Builds the summary and spatial index of one concluded flight that has
+     * no summary yet per run (i.e. flights logged before either existed),
+     * reposting itself until there are none left. */
+    private final Runnable derivedDataBackfillTask = new Runnable() {
+        @Override
+        public void run() {
+            SQLiteDatabase db = getWritableDatabase();
+            final String query = String.format("SELECT %s FROM %s " +
+                            "WHERE %s NOT NULL AND %s NOT IN (SELECT %s FROM %s) LIMIT 1",
+                    COL_FLIGHT_ID, TABLE_FLIGHT_LIST,
+                    COL_END_REAL, COL_FLIGHT_ID,
+                    COL_FLIGHT_ID, TABLE_FLIGHT_SUMMARY);
+            final long id;
+            try {
+                id = DatabaseUtils.longForQuery(db, query, null);
+            } catch (SQLiteDoneException e) {
+                //Every flight is summarized
+                return;
+            }
+            rebuildDerivedData(db, id);
+            runInBackground(this);
+        }
+    };
+
+    /** The policy flights are compacted under as they age */
+    private volatile FlightRetentionPolicy retentionPolicy =
+            FlightRetentionPolicy.createDefault();
+    /** Whether retentionTask is posted or running */
+    private boolean retentionScheduled = false;
+    /** The compaction retentionTask is partway through, if any; only used on
+     * the background thread */
+    private RetentionJob retentionJob;
+
+    /** A flight being compacted, a window of samples at a time, and how far
+     * the rewrite has come. */
+    private static class RetentionJob {
+        final long flightID;
+        /** The tier count the flight is compacted to */
+        final int tiers;
+        /** The tier that chooses the samples kept */
+        final FlightRetentionPolicy.Tier tier;
+        /** The window being compacted, and whether each of its samples is kept */
+        final FlightSampleWindow window = new FlightSampleWindow(RETENTION_WINDOW_SAMPLES);
+        final boolean[] keep = new boolean[RETENTION_WINDOW_SAMPLES];
+
+        /** The delta t, in microseconds, the next window starts after */
+        long afterMicros = -1;
+        /** The delta t of the last sample kept so far; Long.MIN_VALUE if none */
+        long lastKeptDeltaT = Long.MIN_VALUE;
+
+        RetentionJob(long flightID, int tiers, FlightRetentionPolicy.Tier tier) {
+            this.flightID = flightID;
+            this.tiers = tiers;
+            this.tier = tier;
+        }
+    }
+
+    /** Compacts flights under the retention policy one short transaction per
+     * run, reposting itself until no flight needs compacting, so that logging,
+     * reading and other background work carry on in between. */
+    private final Runnable retentionTask = new Runnable() {
+        @Override
+        public void run() {
+            SQLiteDatabase db = getWritableDatabase();
+            boolean more;
+            try {
+                if(retentionJob == null) {
+                    more = startRetentionJob(db);
+                } else {
+                    if(!continueRetentionJob(db)) finishRetentionJob(db);
+                    more = true;
+                }
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Could not compact flight", e);
+                retentionJob = null;
+                more = false;
+            }
+
+            if(more) {
+                runInBackground(this);
+            } else {
+                reclaimFreePages(db);
+                synchronized(FlightLogDatabase.this) {
+                    retentionScheduled = false;
+                }
+            }
+        }
+    };
+
+    /** Number of times cancelMaintenance has been called; maintenance
+     * started before the latest call stops. Guarded by this. */
+    private int maintenanceCancels = 0;
+    /** Cancels the statement runMaintenance is running, if any; guarded by
+     * this, and only ever set from API 16 on */
+    private CancellationSignal maintenanceSignal;
+
+    /** A reset requested while a flight was being logged, to be run once
+     * that flight is concluded; null if none is waiting */
+    private Runnable pendingReset;
+
+    /** Handler for database work that is deferred to a background thread,
+     * such as packing flights; created on first use. */
+    private Handler backgroundHandler;
+
     /** Get the only FlightLogDatabase object, or make one if it doesn't exist.
      * @param context an Android context object to associate the database with
      *                if not created yet; an application context will be
      *                obtained from this.
      * @return the only instance of a FlightLogDatabase that will exist */
-    public static FlightLogDatabase getInstance(Context context) {
+    public static synchronized FlightLogDatabase getInstance(Context context) {
         if(instance == null) {
             instance = new FlightLogDatabase(context.getApplicationContext());
         }
@@ -93,23 +615,573 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
      * handle the initialization. */
     private FlightLogDatabase(Context context) {
         super(context, DB_NAME, null, VERSION_NO);
-        //creationContext = context;
+        this.context = context;
+    }
+
+    /** Set how logged samples are grouped into transactions. Takes effect on
+     * the next call to openLoggingDBConnection.
+     * @param maxSamples commit once this many samples are buffered; 1 commits
+     *                   every sample on its own
+     * @param maxAgeMillis commit once the oldest buffered sample is this old */
+    public void setBatchingPolicy(int maxSamples, long maxAgeMillis) {
+        if(maxSamples < 1) throw new IllegalArgumentException("Batch size " +
+                "must be at least 1!");
+        maxBatchSize = maxSamples;
+        maxBatchAgeMillis = maxAgeMillis;
+    }
+
+    /** Set how often the WAL is checkpointed while a flight is logged.
+     * Checkpoints only ever run directly after a batch is committed, so they
+     * never land in the middle of a burst of inserts.
+     * @param batches the number of committed batches between checkpoints, or
+     *                0 to only checkpoint through {@link #checkpoint()} */
+    public void setCheckpointInterval(int batches) {
+        if(batches < 0) throw new IllegalArgumentException("Checkpoint " +
+                "interval cannot be negative!");
+        checkpointInterval = batches;
+    }
+
+    /** Copy committed pages from the WAL back into the database file without
+     * blocking readers or the writer (a PASSIVE checkpoint). Pages that are
+     * still in use by a reader are left for the next checkpoint. */
+    public void checkpoint() {
+        //PRAGMAs always run on the primary (writer) connection
+        DatabaseUtils.longForQuery(getWritableDatabase(),
+                "PRAGMA wal_checkpoint(PASSIVE)", null);
+    }
+
+    /** Set the number of WAL pages after which the writer checkpoints by itself.
+     * @param pages the page threshold, or 0 to disable automatic checkpoints */
+    private static void setAutoCheckpoint(SQLiteDatabase db, int pages) {
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + pages, null);
+    }
+
+    /** Set whether flights are packed into compressed segments once logging
+     * concludes. Flights that are already packed stay that way.
+     * @param enabled true to pack flights, false to keep one row per sample */
+    public void setSegmentStorageEnabled(boolean enabled) {
+        segmentStorageEnabled = enabled;
+    }
+
+    /** Set the policy flights are compacted under as they age; see
+     * applyRetentionInBackground. The default is
+     * FlightRetentionPolicy.createDefault().
+     * @param policy the policy; one with no tiers keeps every sample */
+    public void setRetentionPolicy(FlightRetentionPolicy policy) {
+        retentionPolicy = policy;
+    }
+
+    /** Compact every flight the retention policy calls for, on the
+     * database's background thread, a flight at a time and a chunk of each
+     * flight per transaction. Flights are compacted in place: whether stored
+     * as rows or as segments, the samples the policy drops are deleted, and
+     * the flight's spatial index and pyramid are then rebuilt from those
+     * kept. Its summary is left as it was logged. Freed space is then given
+     * back to the filesystem. Done whenever the database is opened, and by
+     * FlightLogMaintenanceService. */
+    public synchronized void applyRetentionInBackground() {
+        if(retentionScheduled) return;
+        retentionScheduled = true;
+        runInBackground(retentionTask);
+    }
+
+    /** Interface to be told when a background deletion has finished. */
+    public interface OnFlightsDeletedListener {
+        /** Called on the main thread once the flights are gone.
+         * @param count the number of flights deleted */
+        void onFlightsDeleted(int count);
+    }
+
+    /** Run a task on the database's background thread, after any
+     * previously posted tasks. */
+    synchronized void runInBackground(Runnable task) {
+        if(backgroundHandler == null) {
+            HandlerThread thread = new HandlerThread("FlightLogDatabaseWorker",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            backgroundHandler = new Handler(thread.getLooper());
+        }
+        backgroundHandler.post(task);
+    }
+
+    /** Get the table expression to read flight data rows from. This is just
+     * TABLE_FLIGHT_DATA, unless a migration is still moving rows out of an
+     * older copy of it, in which case it is the union of every copy. Only the
+     * original sample columns, the sub-millisecond delta t and whether the
+     * position was estimated are guaranteed to be present; every older copy
+     * predates the last two, so there they are 0.
+     * @param legacy the older copies still being moved out of */
+    private static String sampleSource(String[] legacy) {
+        if(legacy.length == 0) return TABLE_FLIGHT_DATA;
+
+        final String columns = COL_FLIGHT_ID + ", " + COL_DELTA_T_MS + ", " +
+                COL_ROLL + ", " + COL_PITCH + ", " + COL_YAW + ", " +
+                COL_LATI + ", " + COL_LONGI + ", " + COL_ALT;
+        StringBuilder union = new StringBuilder("(SELECT ").append(columns)
+                .append(", ").append(COL_DELTA_T_SUB_US)
+                .append(", ").append(COL_POS_ESTIMATED)
+                .append(" FROM ").append(TABLE_FLIGHT_DATA);
+        for(final String table : legacy) {
+            union.append(" UNION ALL SELECT ").append(columns)
+                    .append(", 0 AS ").append(COL_DELTA_T_SUB_US)
+                    .append(", 0 AS ").append(COL_POS_ESTIMATED)
+                    .append(" FROM ").append(table);
+        }
+        return union.append(')').toString();
+    }
+
+    /** Delete the flight data rows of a flight, wherever they are stored. */
+    private void deleteSampleRows(SQLiteDatabase db, long flightID) {
+        db.delete(TABLE_FLIGHT_DATA, COL_FLIGHT_ID + "=" + flightID, null);
+        for(final String table : legacySampleTables) {
+            db.delete(table, COL_FLIGHT_ID + "=" + flightID, null);
+        }
+    }
+
+    /** Tell a listener, on the main thread, that a deletion has finished. */
+    private static void notifyDeleted(final OnFlightsDeletedListener listener,
+                                      final int count) {
+        if(listener == null) return;
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFlightsDeleted(count);
+            }
+        });
+    }
+
+    /** Delete a set of flights and everything stored about them, on the
+     * database's background thread. Each flight's samples are deleted a chunk
+     * at a time in short transactions, so logging and reading carry on
+     * throughout; the rest of the flight then goes with its flight list row,
+     * in one transaction. Freed space is then given back to the
+     * filesystem. The flight being logged, if any, is never deleted.
+     * @param flightIDs the IDs of the flights to delete
+     * @param listener told on the main thread when done; may be null */
+    public void deleteFlights(final long[] flightIDs,
+                              final OnFlightsDeletedListener listener) {
+        final long[] ids = flightIDs.clone();
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getWritableDatabase();
+                int deleted = 0;
+                for(final long id : ids) {
+                    if(deleteFlight(db, id)) deleted++;
+                }
+                reclaimFreePages(db);
+                notifyDeleted(listener, deleted);
+            }
+        });
+    }
+
+    /** Delete one flight in chunks; see deleteFlights.
+     * @return true if the flight existed and was deleted */
+    private boolean deleteFlight(SQLiteDatabase db, long flightID) {
+        synchronized(this) {
+            if(lastIDvalid && flightID == lastNewID) return false;
+        }
+
+        //Each chunk ends at the key DELETE_CHUNK_ROWS rows in, so it holds
+        //exactly that many rows however many share a millisecond
+        final String[] args = {Long.toString(flightID)};
+        final String chunkEndQuery = String.format("SELECT %s, %s FROM %s " +
+                        "WHERE %s=? ORDER BY %s, %s LIMIT 1 OFFSET %d",
+                COL_DELTA_T_MS, COL_DELTA_T_SUB_US, TABLE_FLIGHT_DATA,
+                COL_FLIGHT_ID, COL_DELTA_T_MS, COL_DELTA_T_SUB_US, DELETE_CHUNK_ROWS - 1);
+        final String chunkWhere = String.format("%s=? AND (%s<? OR (%s=? AND %s<=?))",
+                COL_FLIGHT_ID, COL_DELTA_T_MS, COL_DELTA_T_MS, COL_DELTA_T_SUB_US);
+        while(true) {
+            Cursor chunkEnd = db.rawQuery(chunkEndQuery, args);
+            try {
+                if(!chunkEnd.moveToFirst()) break;
+                //Each chunk commits on its own
+                db.delete(TABLE_FLIGHT_DATA, chunkWhere, new String[] {args[0],
+                        chunkEnd.getString(0), chunkEnd.getString(0), chunkEnd.getString(1)});
+            } finally {
+                chunkEnd.close();
+            }
+        }
+        //Fewer than a chunk is left
+        db.delete(TABLE_FLIGHT_DATA, COL_FLIGHT_ID + "=?", args);
+
+        //Everything derived from it goes explicitly, along with the flight,
+        //rather than by ON DELETE CASCADE, which only works while foreign
+        //keys are on. The spatial index follows the boxes by trigger.
+        db.beginTransactionNonExclusive();
+        try {
+            for(final String table : FLIGHT_CHILD_TABLES) {
+                db.delete(table, COL_FLIGHT_ID + "=?", args);
+            }
+            final boolean deleted = db.delete(TABLE_FLIGHT_LIST, COL_FLIGHT_ID + "=?", args) > 0;
+            db.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Give the database's free pages back to the filesystem, a chunk at a
+     * time, if the database is in incremental auto-vacuum mode. */
+    private static void reclaimFreePages(SQLiteDatabase db) {
+        if(DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) return;
+
+        while(DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0) {
+            //Returns no rows, but has to be stepped through like a query
+            Cursor vacuum = db.rawQuery("PRAGMA incremental_vacuum(" +
+                    VACUUM_CHUNK_PAGES + ")", null);
+            try {
+                vacuum.moveToFirst();
+            } finally {
+                vacuum.close();
+            }
+        }
+    }
+
+    /** Run routine upkeep: refresh the query planner's statistics, checkpoint
+     * the WAL, and give free pages back to the filesystem. The first run on a
+     * database upgraded from before incremental vacuuming also rebuilds it
+     * with a full VACUUM to switch it over. Skipped while a flight is logged,
+     * and stopped between steps, or partway through one from API 16 on, by
+     * cancelMaintenance or a flight starting. Meant to be run when the
+     * device is idle; see FlightLogMaintenanceService.
+     * @return false if it was skipped or stopped */
+    public boolean runMaintenance() {
+        final int cancels;
+        synchronized(this) {
+            cancels = maintenanceCancels;
+        }
+        return runMaintenance(cancels);
+    }
+
+    /** Run runMaintenance, unless cancelMaintenance is called after
+     * maintenanceCancels was the given number. */
+    private boolean runMaintenance(int cancels) {
+        if(isMaintenanceStopped(cancels)) return false;
+        SQLiteDatabase db = getWritableDatabase();
+
+        //auto_vacuum can only be changed by rebuilding the whole file
+        if(DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+            if(!runMaintenanceStep(db, "VACUUM", cancels)) return false;
+        }
+        if(!runMaintenanceStep(db, "ANALYZE", cancels)) return false;
+        if(isMaintenanceStopped(cancels)) return false;
+        checkpoint();
+        reclaimFreePages(db);
+        return true;
+    }
+
+    /** Stop runMaintenance as soon as it can be, e.g. because the device is
+     * no longer idle; the statement it is running is interrupted where the
+     * API level allows. Any thread may call this. */
+    public synchronized void cancelMaintenance() {
+        maintenanceCancels++;
+        if(maintenanceSignal != null) maintenanceSignal.cancel();
+    }
+
+    private synchronized boolean isMaintenanceStopped(int cancels) {
+        return maintenanceCancels != cancels || lastIDvalid;
+    }
+
+    /** Run one statement of runMaintenance, without holding this object's
+     * lock, so that starting a flight is never held up by it.
+     * @return false if maintenance was stopped before or during it */
+    private boolean runMaintenanceStep(SQLiteDatabase db, String sql, int cancels) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            if(isMaintenanceStopped(cancels)) return false;
+            db.execSQL(sql);
+            return true;
+        }
+        return runCancellableStep(db, sql, cancels);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private boolean runCancellableStep(SQLiteDatabase db, String sql, int cancels) {
+        final CancellationSignal signal = new CancellationSignal();
+        synchronized(this) {
+            if(isMaintenanceStopped(cancels)) return false;
+            maintenanceSignal = signal;
+        }
+        try {
+            //Returns no rows, but has to be stepped through like a query
+            Cursor step = db.rawQuery(sql, null, signal);
+            try {
+                step.moveToFirst();
+            } finally {
+                step.close();
+            }
+            return true;
+        } catch (OperationCanceledException e) {
+            return false;
+        } finally {
+            synchronized(this) {
+                maintenanceSignal = null;
+            }
+        }
+    }
+
+    /** Find the next flight the retention policy calls for compacting. The
+     * byte budget is checked first, every time, so that work on the age
+     * tiers can't keep the database over it.
+     * @return false if no flight needs compacting */
+    private boolean startRetentionJob(SQLiteDatabase db) {
+        final FlightRetentionPolicy policy = retentionPolicy;
+        final int tierCount = policy.getTierCount();
+        if(tierCount == 0) return false;
+
+        //Over budget, the oldest flights go to the last tier early
+        long flightID = -1;
+        if(usedBytes(db) > policy.getByteBudget()) {
+            flightID = findFlightToCompact(db, Long.MAX_VALUE, tierCount);
+        }
+        if(flightID >= 0) {
+            retentionJob = new RetentionJob(flightID, tierCount,
+                    policy.getTier(tierCount - 1));
+            return true;
+        }
+
+        //Oldest tiers first, so a flight goes straight to the tier its age calls for
+        final long now = System.currentTimeMillis();
+        int tier = tierCount;
+        while(flightID < 0 && tier > 0) {
+            tier--;
+            flightID = findFlightToCompact(db,
+                    now - policy.getTier(tier).getMinAgeMillis(), tier + 1);
+        }
+        if(flightID < 0) return false;
+
+        retentionJob = new RetentionJob(flightID, tier + 1, policy.getTier(tier));
+        return true;
+    }
+
+    /** Get the oldest concluded flight that started before a time and is
+     * compacted to fewer than some number of tiers; -1 if none. */
+    private static long findFlightToCompact(SQLiteDatabase db, long startedBefore,
+                                            int tiers) {
+        try {
+            return DatabaseUtils.longForQuery(db, QUERY_FLIGHT_TO_COMPACT, new String[] {
+                    Long.toString(startedBefore), Integer.toString(tiers)});
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /** Get the number of bytes the database's pages use, not counting free pages */
+    private static long usedBytes(SQLiteDatabase db) {
+        final long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) -
+                DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        return pages * db.getPageSize();
+    }
+
+    /** Compact the next window of samples of the flight being compacted, in
+     * a single transaction. The last sample of a full window is left to the
+     * next one, which starts with it, so that the tier sees where each
+     * window joins the next.
+     * @return false once the last window has been done */
+    private boolean continueRetentionJob(SQLiteDatabase db) {
+        final RetentionJob job = retentionJob;
+        final FlightSampleWindow window = job.window;
+        final boolean more;
+
+        db.beginTransactionNonExclusive();
+        try {
+            final int read = readFlightSamplesMicros(job.flightID, job.afterMicros, window);
+            more = read == window.getCapacity();
+            final int done = more ? read - 1 : read;
+            job.tier.selectSamples(window, read, job.lastKeptDeltaT, !more, job.keep);
+            for(int i = done - 1; i >= 0; i--) {
+                if(job.keep[i]) {
+                    job.lastKeptDeltaT = window.deltaT[i];
+                    break;
+                }
+            }
+
+            if(done > 0) {
+                //Samples may be split between tables until a migration is done
+                if(isFlightPacked(db, job.flightID)) {
+                    rewriteSegments(db, job, done);
+                } else {
+                    deleteDroppedRows(db, job, done);
+                }
+            }
+            if(more) job.afterMicros = window.deltaTMicros[read - 2];
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return more;
+    }
+
+    /** Delete the samples of the window being compacted that are dropped,
+     * wherever their rows are stored.
+     * @param count the number of samples of the window done with */
+    private void deleteDroppedRows(SQLiteDatabase db, RetentionJob job, int count) {
+        final String[] legacy = legacySampleTables;
+        final SQLiteStatement[] deletes = new SQLiteStatement[legacy.length + 1];
+        deletes[0] = db.compileStatement("DELETE FROM " + TABLE_FLIGHT_DATA + " WHERE " +
+                COL_FLIGHT_ID + "=? AND " + COL_DELTA_T_MS + "=? AND " +
+                COL_DELTA_T_SUB_US + "=?");
+        try {
+            //Older copies of the table only have whole milliseconds
+            for(int t = 0; t < legacy.length; t++) {
+                deletes[t + 1] = db.compileStatement("DELETE FROM " + legacy[t] +
+                        " WHERE " + COL_FLIGHT_ID + "=? AND " + COL_DELTA_T_MS + "=?");
+            }
+            for(final SQLiteStatement delete : deletes) {
+                delete.bindLong(1, job.flightID);
+            }
+
+            for(int i = 0; i < count; i++) {
+                if(job.keep[i]) continue;
+                final long micros = job.window.deltaTMicros[i];
+                final long millis = floorMillis(micros);
+                deletes[0].bindLong(2, millis);
+                deletes[0].bindLong(3, micros - millis * 1000L);
+                if(deletes[0].executeUpdateDelete() > 0 || micros != millis * 1000L) continue;
+                for(int t = 1; t < deletes.length; t++) {
+                    deletes[t].bindLong(2, millis);
+                    deletes[t].executeUpdateDelete();
+                }
+            }
+        } finally {
+            for(final SQLiteStatement delete : deletes) {
+                if(delete != null) delete.close();
+            }
+        }
+    }
+
+    /** Rewrite the segments of the flight being compacted that hold samples
+     * of the window being compacted, with only the samples it keeps.
+     * @param count the number of samples of the window done with */
+    private void rewriteSegments(SQLiteDatabase db, RetentionJob job, int count) {
+        final FlightSampleWindow window = job.window;
+        final long firstMicros = window.deltaTMicros[0];
+        final long lastMicros = window.deltaTMicros[count - 1];
+        final String id = Long.toString(job.flightID);
+        SQLiteStatement insertSegment = compileSegmentInsert(db);
+        final FlightSegmentCodec.Decoder decoder = new FlightSegmentCodec.Decoder();
+        final FlightSegmentCodec.Encoder encoder = new FlightSegmentCodec.Encoder();
+        Cursor segments = db.rawQuery(QUERY_SEGMENTS_OVERLAPPING, new String[] {id,
+                Long.toString(floorMillis(lastMicros)),
+                Long.toString(floorMillis(firstMicros))});
+        try {
+            while(segments.moveToNext()) {
+                final long segmentStart = segments.getLong(0);
+                decoder.reset(segments.getBlob(1));
+                encoder.reset();
+                while(decoder.next()) {
+                    final long micros = decoder.getDeltaTMicros();
+                    //Samples outside the window are left to their own window
+                    if(micros >= firstMicros && micros <= lastMicros) {
+                        final int index = Arrays.binarySearch(window.deltaTMicros, 0,
+                                count, micros);
+                        if(index >= 0 && !job.keep[index]) continue;
+                    }
+                    encoder.addMicros(micros, decoder.get(FlightSegmentCodec.ROLL),
+                            decoder.get(FlightSegmentCodec.PITCH),
+                            decoder.get(FlightSegmentCodec.YAW),
+                            decoder.get(FlightSegmentCodec.LATI),
+                            decoder.get(FlightSegmentCodec.LONGI),
+                            decoder.get(FlightSegmentCodec.ALT),
+                            decoder.isPosEstimated());
+                }
+                if(encoder.getCount() == decoder.getCount()) continue;
+
+                db.delete(TABLE_FLIGHT_SEGMENTS, COL_FLIGHT_ID + "=? AND " +
+                        COL_SEG_START + "=?", new String[] {id, Long.toString(segmentStart)});
+                if(encoder.getCount() > 0) insertSegment(insertSegment, job.flightID, encoder);
+            }
+        } finally {
+            segments.close();
+            insertSegment.close();
+        }
+    }
+
+    /** Rebuild the spatial index and pyramid of a flight that has been
+     * compacted, and record its new tier. */
+    private void finishRetentionJob(SQLiteDatabase db) {
+        final RetentionJob job = retentionJob;
+        retentionJob = null;
+        //Deleted, or the database reset, while it was being compacted
+        if(DatabaseUtils.longForQuery(db, QUERY_FLIGHT_EXISTS,
+                new String[] {Long.toString(job.flightID)}) == 0) return;
+
+        rebuildDerivedData(db, job.flightID, false);
+        if(getTrackLodLevelCount(db, job.flightID) > 0) buildTrackLod(job.flightID);
+        ContentValues values = new ContentValues(1);
+        values.put(COL_RETENTION_TIER, job.tiers);
+        db.update(TABLE_FLIGHT_LIST, values, COL_FLIGHT_ID + "=" + job.flightID, null);
+    }
+
+    /** Run runMaintenance on the database's background thread. A call to
+     * cancelMaintenance from here on stops it, even before it starts.
+     * @param onDone run on the background thread once finished; may be null */
+    public void runMaintenanceInBackground(final Runnable onDone) {
+        final int cancels;
+        synchronized(this) {
+            cancels = maintenanceCancels;
+        }
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runMaintenance(cancels);
+                } finally {
+                    if(onDone != null) onDone.run();
+                }
+            }
+        });
     }
 
     /** Get a Cursor for all known flights in the flight list,
-     * where the flights are pre-sorted in descending order. */
+     * where the flights are pre-sorted in descending order. Each flight's
+     * point count, distance and maximum altitude are included from its
+     * summary; these are null if it has not been summarized yet. */
     public Cursor getAllFlights() {
-        SQLiteDatabase db = getReadableDatabase();
-        //Essentially SELECT * FROM flightList ORDER BY start DESC with some renaming
-        final String query = String.format("SELECT %s AS %s, %s, %s FROM %s " +
-                        "WHERE %s NOT NULL ORDER BY %s DESC",
-                COL_FLIGHT_ID, COL_FLIGHT_ID_ALIAS,
-                COL_START_REAL, COL_END_REAL,
-                TABLE_FLIGHT_LIST,
-                COL_END_REAL,
-                COL_START_REAL);
+        return getReadableDatabase().rawQuery(QUERY_ALL_FLIGHTS, null);
+    }
 
-        return db.rawQuery(query, null);
+    /** Get a page of the flights getAllFlights gives, in the same order.
+     * Pages are found by the last flight of the page before, rather than by
+     * an offset, so the start time index leads straight to any page, however
+     * far down the list it is, and flights added or deleted in between don't
+     * shift the pages.
+     * @param search the flights to find; null for all of them
+     * @param afterStartMillis the start time of the last flight of the page
+     *                         before; Long.MAX_VALUE for the first page
+     * @param afterFlightID the ID of that flight; Long.MAX_VALUE for the first page
+     * @param limit the most flights in the page
+     * @return a Cursor with the columns of getAllFlights */
+    public Cursor getFlightsPage(FlightSearch search, long afterStartMillis,
+                                 long afterFlightID, int limit) {
+        final StringBuilder sql = new StringBuilder(SELECT_FLIGHTS).append(WHERE_FLIGHTS_AFTER);
+        final List<String> args = new ArrayList<>();
+        final String start = Long.toString(afterStartMillis);
+        args.add(start);
+        args.add(start);
+        args.add(Long.toString(afterFlightID));
+        if(search != null) search.appendWhere(sql, args);
+        sql.append(ORDER_FLIGHTS_PAGE);
+        args.add(Integer.toString(limit));
+        return getReadableDatabase().rawQuery(sql.toString(),
+                args.toArray(new String[args.size()]));
+    }
+
+    /** Get the IDs of every flight getAllFlights gives, in the same order. */
+    public long[] getAllFlightIDs() {
+        Cursor ids = getReadableDatabase().rawQuery(QUERY_ALL_FLIGHT_IDS, null);
+        try {
+            final long[] flightIDs = new long[ids.getCount()];
+            for(int i = 0; ids.moveToNext(); i++) {
+                flightIDs[i] = ids.getLong(0);
+            }
+            return flightIDs;
+        } finally {
+            ids.close();
+        }
     }
 
     /** Get the real-world start time of a flight with the given id,
@@ -118,27 +1190,538 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
      * @param id the Flight ID to determine the start time of
      * @return a unix time, in milliseconds, representing when the flight started */
     private long getFlightStart(SQLiteDatabase db, long id) {
-        final String query = String.format("SELECT %s FROM %s WHERE %s=%d",
-                COL_START_REAL,
-                TABLE_FLIGHT_LIST,
-                COL_FLIGHT_ID, id);
-        return DatabaseUtils.longForQuery(db, query, null);
+        return DatabaseUtils.longForQuery(db, QUERY_FLIGHT_START,
+                new String[] {Long.toString(id)});
+    }
+
+    /** Read part of a flight's track straight into arrays, in delta t order.
+     * Nothing is allocated per sample. Flight data rows are fetched in pages
+     * that each fit in one CursorWindow, every page continuing on from the
+     * last delta t read rather than from an offset, so no page is slower than
+     * the first however long the flight is. Packed flights are decoded
+     * directly from their segments. To read a whole flight, call again with
+     * the last delta t read, until fewer samples are read than fit in the
+     * arrays.
+     * @param flightID the ID of the flight
+     * @param afterDeltaTMicros read only the samples after this delta t, in
+     *                          microseconds; -1 to read from the start
+     * @param deltaTMicros filled with the delta t of each sample, in
+     *                     microseconds
+     * @param latis filled with the latitude of each sample, in signed degrees
+     * @param longis filled with the longitude of each sample, in signed degrees
+     * @return the number of samples read; at most the length of the
+     * shortest array */
+    public int readFlightTrack(long flightID, long afterDeltaTMicros, long[] deltaTMicros,
+                               double[] latis, double[] longis) {
+        final int capacity = Math.min(deltaTMicros.length,
+                Math.min(latis.length, longis.length));
+        return readSamples(flightID, afterDeltaTMicros, capacity, deltaTMicros, latis,
+                longis, null, null, null, null, null, null);
+    }
+
+    /** Read the next window of a flight's samples, with every column, in
+     * delta t order. Works just like readFlightTrack, and likewise allocates
+     * nothing, so the same window can be refilled over and over to stream
+     * a flight of any length. Samples logged less than a millisecond apart
+     * may be cut off at the end of the window this way;
+     * readFlightSamplesMicros carries on to the microsecond.
+     * @param flightID the ID of the flight
+     * @param afterDeltaT read only the samples after this delta t, in ms;
+     *                    -1 to read from the start of the flight
+     * @param window filled with the samples read, from its start
+     * @return the number of samples read; less than the window's capacity
+     * once the end of the flight is reached */
+    public int readFlightSamples(long flightID, long afterDeltaT, FlightSampleWindow window) {
+        return readFlightSamplesMicros(flightID, afterDeltaT * 1000L + 999L, window);
     }
 
-    /** Get a Cursor for all latitudes, longitudes, and delta times associated
-     * with a given flight ID.
+    /** Read the next window of a flight's samples, continuing on from a delta
+     * t in microseconds. To stream a flight logged at a high rate without
+     * missing any samples, call again with the window's last deltaTMicros.
      * @param flightID the ID of the flight
-     * @return a Cursor with the given info */
-    public Cursor getFlightPositionsForFlight(long flightID) {
+     * @param afterDeltaTMicros read only the samples after this delta t, in
+     *                          microseconds; -1 to read from the start
+     * @param window filled with the samples read, from its start
+     * @return the number of samples read; less than the window's capacity
+     * once the end of the flight is reached
+     * @see #readFlightSamples(long, long, FlightSampleWindow) */
+    public int readFlightSamplesMicros(long flightID, long afterDeltaTMicros,
+                                       FlightSampleWindow window) {
+        return readSamples(flightID, afterDeltaTMicros, window.getCapacity(),
+                window.deltaTMicros, window.lati, window.longi, window.deltaT,
+                window.roll, window.pitch, window.yaw, window.alt, window.posEstimated);
+    }
+
+    /** Get the whole milliseconds in a delta t in microseconds, rounding down */
+    private static long floorMillis(long micros) {
+        return micros >= 0 ? micros / 1000L : (micros - 999L) / 1000L;
+    }
+
+    /** Read samples of a flight into arrays; see readFlightTrack. The
+     * millisecond, roll, pitch, yaw, altitude and estimated position arrays
+     * are either all given or all null, in which case only delta t and
+     * position are read.
+     * @param afterMicros read only the samples after this delta t, in
+     *                    microseconds */
+    private int readSamples(long flightID, long afterMicros, int capacity,
+                            long[] deltaTMicros, double[] latis, double[] longis,
+                            long[] deltaTs, double[] rolls, double[] pitches,
+                            double[] yaws, double[] alts, boolean[] posEstimates) {
+        final boolean allColumns = alts != null;
+        final String id = Long.toString(flightID);
         SQLiteDatabase db = getReadableDatabase();
+        int read = 0;
+        //Where the next page carries on from
+        long after = afterMicros;
 
-        final String query = String.format("SELECT %s, %s, %s FROM %s " +
-                        "WHERE %s=%d ORDER BY %s ASC",
-                COL_DELTA_T_MS, COL_LATI, COL_LONGI,
-                TABLE_FLIGHT_DATA,
-                COL_FLIGHT_ID, flightID,
-                COL_DELTA_T_MS);
-        return db.rawQuery(query, null);
+        if(!isFlightPacked(db, flightID)) {
+            //Either the same column order as the segments, or just the track,
+            //then the microseconds; pages carry on from the full (ms, us) key
+            final SampleQueries queries = sampleQueries;
+            final String query = allColumns ? queries.samplePage : queries.trackPage;
+            final int latiCol = allColumns ? FlightSegmentCodec.LATI : 1;
+            final int longiCol = allColumns ? FlightSegmentCodec.LONGI : 2;
+            final int subCol = allColumns ? FlightSegmentCodec.COLUMNS.length : 3;
+            while(read < capacity) {
+                final int page = Math.min(capacity - read, TRACK_PAGE_ROWS);
+                final String afterMillis = Long.toString(floorMillis(after));
+                Cursor rows = db.rawQuery(query, new String[] {id, afterMillis, afterMillis,
+                        Long.toString(after - floorMillis(after) * 1000L),
+                        Integer.toString(page)});
+                final int pageStart = read;
+                try {
+                    while(rows.moveToNext()) {
+                        final long millis = rows.getLong(FlightSegmentCodec.DELTA_T);
+                        after = millis * 1000L + rows.getLong(subCol);
+                        deltaTMicros[read] = after;
+                        latis[read] = getDoubleOrNaN(rows, latiCol);
+                        longis[read] = getDoubleOrNaN(rows, longiCol);
+                        if(allColumns) {
+                            deltaTs[read] = millis;
+                            rolls[read] = getDoubleOrNaN(rows, FlightSegmentCodec.ROLL);
+                            pitches[read] = getDoubleOrNaN(rows, FlightSegmentCodec.PITCH);
+                            yaws[read] = getDoubleOrNaN(rows, FlightSegmentCodec.YAW);
+                            alts[read] = getDoubleOrNaN(rows, FlightSegmentCodec.ALT);
+                            posEstimates[read] =
+                                    rows.getInt(FlightSegmentCodec.POS_ESTIMATED) != 0;
+                        }
+                        read++;
+                    }
+                } finally {
+                    rows.close();
+                }
+                if(read - pageStart < page) break;
+            }
+            //Either the end of the flight, or it was packed in between pages
+            if(read == capacity || !isFlightPacked(db, flightID)) return read;
+        }
+
+        final FlightSegmentCodec.Decoder decoder = new FlightSegmentCodec.Decoder();
+        boolean moreSegments = true;
+        while(read < capacity && moreSegments) {
+            Cursor segments = db.rawQuery(QUERY_TRACK_SEGMENTS, new String[] {id,
+                    Long.toString(floorMillis(after)), Integer.toString(TRACK_PAGE_SEGMENTS)});
+            final long pageAfter = after;
+            try {
+                moreSegments = segments.getCount() == TRACK_PAGE_SEGMENTS;
+                while(read < capacity && segments.moveToNext()) {
+                    decoder.reset(segments.getBlob(0));
+                    while(read < capacity && decoder.next()) {
+                        //The first segment may start before where we left off
+                        final long micros = decoder.getDeltaTMicros();
+                        if(micros <= pageAfter) continue;
+                        after = micros;
+                        deltaTMicros[read] = micros;
+                        latis[read] = decoder.get(FlightSegmentCodec.LATI);
+                        longis[read] = decoder.get(FlightSegmentCodec.LONGI);
+                        if(allColumns) {
+                            deltaTs[read] = decoder.getDeltaT();
+                            rolls[read] = decoder.get(FlightSegmentCodec.ROLL);
+                            pitches[read] = decoder.get(FlightSegmentCodec.PITCH);
+                            yaws[read] = decoder.get(FlightSegmentCodec.YAW);
+                            alts[read] = decoder.get(FlightSegmentCodec.ALT);
+                            posEstimates[read] = decoder.isPosEstimated();
+                        }
+                        read++;
+                    }
+                }
+            } finally {
+                segments.close();
+            }
+        }
+        return read;
+    }
+
+    /** Get the real-world start time of a flight.
+     * @param flightID the ID of the flight
+     * @return a unix time, in milliseconds, representing when the flight started
+     * @throws SQLiteDoneException if there is no such flight */
+    public long getFlightStartMillis(long flightID) {
+        return getFlightStart(getReadableDatabase(), flightID);
+    }
+
+    /** Get the summary statistics of a flight.
+     * @param flightID the ID of the flight
+     * @return the flight's summary, or null if it has not been summarized yet */
+    public FlightSummary getFlightSummary(long flightID) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.rawQuery(QUERY_FLIGHT_SUMMARY,
+                new String[] {Long.toString(flightID)});
+        try {
+            return cursor.moveToFirst() ? FlightSummary.fromCursor(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Find every flight whose track passes through an area, along with when
+     * it was there. Uses the spatial index, so only the flights that actually
+     * pass nearby are read. The time ranges are those of whole track boxes
+     * (FlightTrackIndexer.BOX_SAMPLES positions each), so they may start a
+     * little before and end a little after the flight is within the area.
+     * @param minLati the southern edge of the area, in signed degrees
+     * @param maxLati the northern edge of the area, in signed degrees
+     * @param minLongi the western edge of the area, in signed degrees
+     * @param maxLongi the eastern edge of the area, in signed degrees
+     * @return the matching time ranges, ordered by flight and then time, with
+     * adjacent ranges of a flight merged together */
+    public List<FlightTimeRange> findFlightsInArea(double minLati, double maxLati,
+                                                   double minLongi, double maxLongi) {
+        if(minLati > maxLati || minLongi > maxLongi) {
+            throw new IllegalArgumentException("Area has negative size!");
+        }
+
+        SQLiteDatabase db = getReadableDatabase();
+        List<FlightTimeRange> ranges = new ArrayList<>();
+        //Any box that overlaps the area at all
+        Cursor boxes = db.rawQuery(QUERY_AREA, new String[] {
+                Double.toString(minLati), Double.toString(maxLati),
+                Double.toString(minLongi), Double.toString(maxLongi)});
+        try {
+            long id = -1, start = 0, end = 0;
+            while(boxes.moveToNext()) {
+                final long boxFlight = boxes.getLong(0);
+                final long boxStart = boxes.getLong(1);
+                final long boxEnd = boxes.getLong(2);
+                //Consecutive boxes share an end point, so they merge
+                if(boxFlight == id && boxStart <= end) {
+                    end = Math.max(end, boxEnd);
+                    continue;
+                }
+                if(id >= 0) ranges.add(new FlightTimeRange(id, start, end));
+                id = boxFlight;
+                start = boxStart;
+                end = boxEnd;
+            }
+            if(id >= 0) ranges.add(new FlightTimeRange(id, start, end));
+        } finally {
+            boxes.close();
+        }
+        return ranges;
+    }
+
+    /** Recompute a flight's summary and spatial index from its stored
+     * samples, replacing any it already has. Used where samples were written
+     * without them being kept, i.e. by recovery and the backfill of older
+     * flights. */
+    private void rebuildDerivedData(SQLiteDatabase db, long flightID) {
+        rebuildDerivedData(db, flightID, true);
+    }
+
+    /** Recompute a flight's spatial index, and optionally its summary, from
+     * its stored samples, replacing any it already has.
+     * @param summarize false to leave the summary as it is */
+    private void rebuildDerivedData(SQLiteDatabase db, long flightID, boolean summarize) {
+        FlightSummary summary = summarize ? new FlightSummary() : null;
+        SQLiteStatement upsert = summarize ? FlightSummary.compileUpsert(db) : null;
+        FlightTrackIndexer trackIndexer = new FlightTrackIndexer(db, flightID);
+
+        db.beginTransactionNonExclusive();
+        try {
+            //The spatial index is cleared by trigger
+            db.delete(TABLE_TRACK_BOXES, COL_FLIGHT_ID + "=" + flightID, null);
+            summarizeSamples(db, flightID, summary, trackIndexer);
+            trackIndexer.writeOpenBox();
+            if(summarize) summary.write(upsert, flightID);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if(upsert != null) upsert.close();
+            trackIndexer.close();
+        }
+    }
+
+    /** Feed every stored sample of a flight, in order, to a summary, if not
+     * null, and a track indexer. */
+    private void summarizeSamples(SQLiteDatabase db, long flightID,
+                                  FlightSummary summary,
+                                  FlightTrackIndexer trackIndexer) {
+        if(summary == null) {
+            //The index needs only the track
+            final long[] deltaTMicros = new long[STREAM_WINDOW_SAMPLES];
+            final double[] latis = new double[STREAM_WINDOW_SAMPLES];
+            final double[] longis = new double[STREAM_WINDOW_SAMPLES];
+            long after = -1;
+            int read;
+            do {
+                read = readFlightTrack(flightID, after, deltaTMicros, latis, longis);
+                for(int i = 0; i < read; i++) {
+                    trackIndexer.add(floorMillis(deltaTMicros[i]), latis[i], longis[i]);
+                }
+                if(read > 0) after = deltaTMicros[read - 1];
+            } while(read == STREAM_WINDOW_SAMPLES);
+            return;
+        }
+        final FlightSampleWindow window = new FlightSampleWindow(STREAM_WINDOW_SAMPLES);
+        long after = -1;
+        int read;
+        do {
+            read = readFlightSamplesMicros(flightID, after, window);
+            for(int i = 0; i < read; i++) {
+                summary.add(window.deltaT[i], window.lati[i], window.longi[i],
+                        window.alt[i]);
+                trackIndexer.add(window.deltaT[i], window.lati[i], window.longi[i]);
+            }
+            if(read > 0) after = window.deltaTMicros[read - 1];
+        } while(read == window.getCapacity());
+    }
+
+    /** Get the number of stored samples of a flight, packed or not. */
+    private long countSamples(SQLiteDatabase db, long flightID) {
+        final String[] args = {Long.toString(flightID)};
+        return isFlightPacked(db, flightID) ?
+                DatabaseUtils.longForQuery(db, QUERY_SEGMENT_SAMPLE_COUNT, args) :
+                DatabaseUtils.longForQuery(db, sampleQueries.sampleCount, args);
+    }
+
+    /** Build (or rebuild) the level-of-detail pyramid of a flight's track
+     * from its stored samples, in a single transaction.
+     * @param flightID the ID of a flight that is no longer being logged
+     * @return the number of levels built; 0 if the flight has no positions */
+    public int buildTrackLod(long flightID) {
+        SQLiteDatabase db = getWritableDatabase();
+        FlightTrackLodBuilder builder = null;
+
+        db.beginTransactionNonExclusive();
+        try {
+            db.delete(TABLE_TRACK_LOD, COL_FLIGHT_ID + "=" + flightID, null);
+            builder = new FlightTrackLodBuilder(db, flightID, countSamples(db, flightID),
+                    isFlightPacked(db, flightID));
+            final FlightSampleWindow window = new FlightSampleWindow(STREAM_WINDOW_SAMPLES);
+            long after = -1;
+            int read;
+            do {
+                read = readFlightSamplesMicros(flightID, after, window);
+                for(int i = 0; i < read; i++) {
+                    builder.add(window.deltaT[i], window.roll[i], window.pitch[i],
+                            window.yaw[i], window.lati[i], window.longi[i], window.alt[i]);
+                }
+                if(read > 0) after = window.deltaTMicros[read - 1];
+            } while(read == window.getCapacity());
+            builder.finish();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if(builder != null) builder.close();
+        }
+        return getTrackLodLevelCount(db, flightID);
+    }
+
+    /** Get the number of levels of a flight's stored pyramid; 0 if none. */
+    private static int getTrackLodLevelCount(SQLiteDatabase db, long flightID) {
+        return (int) DatabaseUtils.longForQuery(db, QUERY_LOD_LEVEL_COUNT,
+                new String[] {Long.toString(flightID)});
+    }
+
+    /** Make sure a flight has a level-of-detail pyramid, building it right
+     * away if it is missing, e.g. for flights logged before pyramids existed.
+     * Must not be called on the UI thread.
+     * @param flightID the ID of a concluded flight
+     * @return the number of levels; 0 if the flight has no positions */
+    public int ensureTrackLod(long flightID) {
+        final int levels = getTrackLodLevelCount(getReadableDatabase(), flightID);
+        if(levels > 0) return levels;
+
+        //Nothing to build if the flight is known to have no position
+        final FlightSummary summary = getFlightSummary(flightID);
+        if(summary != null && !summary.hasPosition()) return 0;
+        return buildTrackLod(flightID);
+    }
+
+    /** Pick the most detailed level of a flight's pyramid that shows no more
+     * than a given number of positions within an area.
+     * @param flightID the ID of a flight with a pyramid
+     * @param minLati the southern edge of the area, in signed degrees
+     * @param maxLati the northern edge of the area, in signed degrees
+     * @param minLongi the western edge of the area, in signed degrees
+     * @param maxLongi the eastern edge of the area, in signed degrees
+     * @param maxPoints the most positions to show
+     * @return the chosen level, the top level if none are within maxPoints,
+     * or -1 if the flight has no positions within the area */
+    public int chooseTrackLodLevel(long flightID, double minLati, double maxLati,
+                                   double minLongi, double maxLongi, int maxPoints) {
+        SQLiteDatabase db = getReadableDatabase();
+        int level = -1;
+        final String id = Long.toString(flightID);
+        final String south = Double.toString(minLati), north = Double.toString(maxLati);
+        final String west = Double.toString(minLongi), east = Double.toString(maxLongi);
+        Cursor levels = db.rawQuery(QUERY_LOD_LEVEL_POINTS, new String[] {
+                id, south, north, west, east, id, south, north, west, east});
+        try {
+            while(levels.moveToNext()) {
+                level = levels.getInt(0);
+                if(levels.getDouble(1) <= maxPoints) break;
+            }
+        } finally {
+            levels.close();
+        }
+        return level;
+    }
+
+    /** Get the tiles of one level of a flight's pyramid that overlap an area.
+     * @param flightID the ID of a flight with a pyramid
+     * @param level the level, e.g. from chooseTrackLodLevel
+     * @param minLati the southern edge of the area, in signed degrees
+     * @param maxLati the northern edge of the area, in signed degrees
+     * @param minLongi the western edge of the area, in signed degrees
+     * @param maxLongi the eastern edge of the area, in signed degrees
+     * @return a Cursor of tile number and tile data (see FlightSegmentCodec),
+     * in time order. Level 0 of a packed flight is its segments, numbered by
+     * their start; unlike the other tiles, these don't share their boundary
+     * positions, see readPositionBeforeTile. */
+    public Cursor getTrackLodTiles(long flightID, int level, double minLati,
+                                   double maxLati, double minLongi, double maxLongi) {
+        SQLiteDatabase db = getReadableDatabase();
+        final String id = Long.toString(flightID);
+        final String south = Double.toString(minLati), north = Double.toString(maxLati);
+        final String west = Double.toString(minLongi), east = Double.toString(maxLongi);
+        if(level == 0 && isFlightPacked(db, flightID)) {
+            return db.rawQuery(QUERY_SEGMENT_TILES, new String[] {
+                    id, south, north, west, east});
+        }
+        return db.rawQuery(QUERY_LOD_TILES, new String[] {
+                id, Integer.toString(level), south, north, west, east});
+    }
+
+    /** Find the position a level 0 tile of a packed flight joins up to: the
+     * last position before it, which is in an earlier segment. Tiles of every
+     * other level start at the end of the tile before, so need no joining.
+     * @param flightID the ID of a flight with a pyramid
+     * @param level the level of the tile
+     * @param tile the tile's number, from getTrackLodTiles
+     * @param position set to the latitude and longitude, in signed degrees
+     * @return false if there is no such position, or the tile needs none */
+    public boolean readPositionBeforeTile(long flightID, int level, long tile,
+                                          double[] position) {
+        SQLiteDatabase db = getReadableDatabase();
+        if(level != 0 || !isFlightPacked(db, flightID)) return false;
+
+        final FlightSegmentCodec.Decoder decoder = new FlightSegmentCodec.Decoder();
+        long before = tile;
+        //The segments just before may have no position at all, e.g. before the first fix
+        while(true) {
+            Cursor segments = db.rawQuery(QUERY_SEGMENTS_BEFORE, new String[] {
+                    Long.toString(flightID), Long.toString(before),
+                    Integer.toString(TRACK_PAGE_SEGMENTS)});
+            try {
+                if(segments.getCount() == 0) return false;
+                while(segments.moveToNext()) {
+                    decoder.reset(segments.getBlob(0));
+                    boolean found = false;
+                    while(decoder.next()) {
+                        final double lati = decoder.get(FlightSegmentCodec.LATI);
+                        final double longi = decoder.get(FlightSegmentCodec.LONGI);
+                        if(!FlightSummary.hasPosition(lati, longi)) continue;
+                        position[0] = lati;
+                        position[1] = longi;
+                        found = true;
+                    }
+                    if(found) return true;
+                    before = decoder.getStartDeltaT();
+                }
+            } finally {
+                segments.close();
+            }
+        }
+    }
+
+    /** Determine whether a flight's samples have been packed into segments. */
+    private static boolean isFlightPacked(SQLiteDatabase db, long flightID) {
+        return DatabaseUtils.longForQuery(db, QUERY_FLIGHT_PACKED,
+                new String[] {Long.toString(flightID)}) != 0;
+    }
+
+    /** Move all of a flight's samples out of the flight data table and into
+     * segments of up to SEGMENT_SIZE samples each. This happens in a single
+     * transaction, so readers see either all rows or all segments.
+     * @param flightID the ID of a flight that is no longer being logged */
+    public void packFlightSegments(long flightID) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insertSegment = compileSegmentInsert(db);
+        FlightSegmentCodec.Encoder encoder = new FlightSegmentCodec.Encoder();
+
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor rows = db.rawQuery(sampleQueries.allSamples,
+                    new String[] {Long.toString(flightID)});
+            try {
+                while(rows.moveToNext()) {
+                    encoder.addMicros(rows.getLong(0) * 1000L + rows.getLong(8),
+                            getDoubleOrNaN(rows, 1), getDoubleOrNaN(rows, 2),
+                            getDoubleOrNaN(rows, 3), getDoubleOrNaN(rows, 4),
+                            getDoubleOrNaN(rows, 5), getDoubleOrNaN(rows, 6),
+                            rows.getInt(7) != 0);
+                    if(encoder.getCount() >= SEGMENT_SIZE) {
+                        insertSegment(insertSegment, flightID, encoder);
+                        encoder.reset();
+                    }
+                }
+                if(encoder.getCount() > 0) insertSegment(insertSegment, flightID, encoder);
+            } finally {
+                rows.close();
+            }
+
+            deleteSampleRows(db, flightID);
+            //The segments are level 0 of its pyramid from now on
+            db.delete(TABLE_TRACK_LOD, COL_FLIGHT_ID + "=? AND " + COL_LOD_LEVEL + "=0",
+                    new String[] {Long.toString(flightID)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertSegment.close();
+        }
+    }
+
+    /** Get a column of a Cursor as a double; NaN if it is null, as SQLite
+     * stores a NaN. */
+    private static double getDoubleOrNaN(Cursor cursor, int column) {
+        return cursor.isNull(column) ? Double.NaN : cursor.getDouble(column);
+    }
+
+    /** Compile the statement that stores a segment with insertSegment. */
+    private static SQLiteStatement compileSegmentInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR REPLACE " +
+                "INTO " + TABLE_FLIGHT_SEGMENTS + "(" +
+                COL_FLIGHT_ID + ", " + COL_SEG_START + ", " + COL_SEG_END + ", " +
+                COL_SEG_COUNT + ", " +
+                COL_SEG_MIN_LATI + ", " + COL_SEG_MAX_LATI + ", " +
+                COL_SEG_MIN_LONGI + ", " + COL_SEG_MAX_LONGI + ", " +
+                COL_SEG_DATA + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    /** Write the contents of a segment encoder using a compiled segment insert. */
+    private static void insertSegment(SQLiteStatement insert, long flightID,
+                                      FlightSegmentCodec.Encoder encoder) {
+        insert.bindLong(1, flightID);
+        insert.bindLong(2, encoder.getStartDeltaT());
+        insert.bindLong(3, encoder.getEndDeltaT());
+        insert.bindLong(4, encoder.getCount());
+        insert.bindDouble(5, encoder.getMinLatitude());
+        insert.bindDouble(6, encoder.getMaxLatitude());
+        insert.bindDouble(7, encoder.getMinLongitude());
+        insert.bindDouble(8, encoder.getMaxLongitude());
+        insert.bindBlob(9, encoder.toByteArray());
+        insert.executeInsert();
     }
 
     /** Initiate a new flight log, and get a database object to be used with
@@ -148,9 +1731,11 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
      * @return a database object for use by other FlightLogDatabase methods
      * @throws RuntimeException if called more than once in sequence without
      * calling concludeLogging afterward */
-    public SQLiteDatabase openLoggingDBConnection(long realStartMillis) {
+    public synchronized SQLiteDatabase openLoggingDBConnection(long realStartMillis) {
         if(lastIDvalid) throw new RuntimeException("Opened new connection " +
                 "without closing the old one!");
+        //Logging comes first
+        cancelMaintenance();
 
         SQLiteDatabase db = getWritableDatabase();
 
@@ -165,10 +1750,30 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
         lastNewID = db.insert(TABLE_FLIGHT_LIST, null, values);
         lastIDvalid = true;
 
+        //The summary and spatial index are kept up to date with every batch
+        batchWriter = new FlightDataBatchWriter(db, lastNewID, maxBatchSize,
+                maxBatchAgeMillis, true);
+        try {
+            journal = new FlightJournal(context, lastNewID, realStartMillis);
+        } catch (IOException e) {
+            //Still log, just without crash protection
+            Log.w(TAG, "Could not create a journal for flight " + lastNewID, e);
+            journal = null;
+        }
+
+        //Checkpoints are issued between batches from here on
+        setAutoCheckpoint(db, 0);
+        batchesSinceCheckpoint = 0;
+        resampler = null;
+        lastRingDeltaTMicros = -1;
+
         return db;
     }
 
-    /** Log a set of flight data using the provided inputs.
+    /** Log a set of flight data using the provided inputs. The sample is
+     * written to the flight's journal right away, then buffered and committed
+     * along with others in a single transaction;
+     * see {@link #setBatchingPolicy(int, long)}.
      * @param db a SQLiteDatabase to maintain continuity between logs
      * @param posAndOrient the position/orientation data to log
      * @param deltaTmillis the amount of time passed since the last log
@@ -176,34 +1781,119 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
      * openLoggingDBConnection first */
     public void logFlightData(SQLiteDatabase db, DevicePosAndOrient posAndOrient,
                               long deltaTmillis) {
-        ContentValues values = new ContentValues(8);
+        if(!lastIDvalid) throw new RuntimeException("Connection was not opened " +
+                "with openLoggingDBConnection!");
 
+        //Every column of the row from the same moment; no position at all
+        //until the first fix
+        posAndOrient.readSnapshot(loggedState);
+        final boolean hasFix = loggedState.getFixTimeNanos() != 0;
+        logSample(deltaTmillis * 1000L, loggedState.getRoll(), loggedState.getPitch(),
+                loggedState.getAz(), hasFix ? loggedState.getLatitude() : Double.NaN,
+                hasFix ? loggedState.getLongitude() : Double.NaN,
+                hasFix ? loggedState.getAltitude() : Double.NaN,
+                loggedState.isPositionEstimated());
+    }
+
+    /** Have the samples of the flight being logged drained from a ring by
+     * logFlightSamples, and logged on an exact time grid: one sample every
+     * period, at a whole number of periods from the start, with every
+     * channel interpolated from the readings either side; see SampleResampler.
+     * @param startNanos the time at which the flight started, on the clock
+     *                   the ring's samples are stamped on
+     * @param periodMicros microseconds between logged samples
+     * @throws RuntimeException if called without a corresponding call to
+     * openLoggingDBConnection first */
+    void startResampling(long startNanos, long periodMicros) {
         if(!lastIDvalid) throw new RuntimeException("Connection was not opened " +
                 "with openLoggingDBConnection!");
+        resampler = new SampleResampler(startNanos, periodMicros, resampledSink);
+    }
 
-        values.put(COL_FLIGHT_ID, lastNewID);
-        values.put(COL_DELTA_T_MS, deltaTmillis);
+    /** Change the time between samples logged from a ring, from the next
+     * sample on; see startResampling.
+     * @param periodMicros microseconds between logged samples */
+    void setResamplingPeriod(long periodMicros) {
+        if(resampler == null) throw new IllegalStateException("Not resampling");
+        resampler.setPeriod(periodMicros);
+    }
+
+    /** Log the samples waiting in a ring filled by the sensor callbacks, in
+     * batches, the same way as logFlightData, once they are on the time grid
+     * set up by startResampling. Meant to be called once per burst of
+     * batched sensor readings, or every so often. A sample is logged once
+     * the readings after it are in, so the last ones logged trail the ring.
+     * Readings out of order are skipped.
+     * @param db a SQLiteDatabase to maintain continuity between logs
+     * @param ring the ring to drain; this thread must be its only consumer
+     * @return the delta t, in milliseconds, of the last sample logged from
+     * the ring so far this flight; -1 if none
+     * @throws IllegalStateException if startResampling was not called this
+     * flight */
+    long logFlightSamples(SQLiteDatabase db, ImuSampleRing ring) {
+        if(resampler == null) throw new IllegalStateException("Not resampling");
 
-        values.put(COL_ROLL, posAndOrient.getRoll());
-        values.put(COL_PITCH, posAndOrient.getPitch());
-        values.put(COL_YAW, posAndOrient.getAz());
+        //Each drain ends where a batch fills up, so a burst of batched
+        //readings goes through in whole batches, and the ring frees up as
+        //each one commits
+        int drained;
+        do {
+            drained = ring.drain(resampler, Math.max(1,
+                    maxBatchSize - batchWriter.getPendingCount()));
+        } while(drained > 0);
+        return lastRingDeltaTMicros < 0 ? -1 : lastRingDeltaTMicros / 1000L;
+    }
+
+    /** Journal one sample, buffer it to be committed, and checkpoint if a
+     * batch just went through.
+     * @param deltaTmicros microseconds since the start of the flight
+     * @param posEstimated whether the position was dead reckoned */
+    private void logSample(long deltaTmicros, double roll, double pitch, double yaw,
+                           double lati, double longi, double alt, boolean posEstimated) {
+        if(journal != null) {
+            try {
+                journal.append(deltaTmicros, roll, pitch, yaw, lati, longi, alt,
+                        posEstimated);
+            } catch (IOException e) {
+                Log.w(TAG, "Flight journal failed; continuing without it", e);
+                journal.delete();
+                journal = null;
+            }
+        }
 
-        values.put(COL_LATI, posAndOrient.getLatitude());
-        values.put(COL_LONGI, posAndOrient.getLongitude());
-        values.put(COL_ALT, posAndOrient.getAltitude());
+        final boolean committed = batchWriter.appendMicros(deltaTmicros,
+                roll, pitch, yaw, lati, longi, alt, posEstimated);
 
-        db.insert(TABLE_FLIGHT_DATA, null, values);
+        //A batch just went through; this is the quiet spot to checkpoint in
+        if(committed && checkpointInterval > 0
+                && ++batchesSinceCheckpoint >= checkpointInterval) {
+            checkpoint();
+            batchesSinceCheckpoint = 0;
+        }
     }
 
-    /** Finalize a set of log data with the provided inputs.
+    /** Finalize a set of log data with the provided inputs. Any samples still
+     * buffered are committed first, along with the final flight summary and
+     * the last box of its track. When resampling, the samples held back for
+     * late fixes are logged as the last ones; otherwise, the current
+     * position and orientation is.
      * @param db a SQLiteDatabase to maintain continuity between logs
      * @param posAndOrient the position/orientation data to log
      * @param deltaTmillis the amount of time passed since the last log
      * @throws RuntimeException if called without a corresponding call to
      * openLoggingDBConnection first */
-    public void concludeLogging(SQLiteDatabase db, DevicePosAndOrient posAndOrient,
-                                long deltaTmillis) {
-        logFlightData(db, posAndOrient, deltaTmillis);
+    public synchronized void concludeLogging(SQLiteDatabase db,
+                                             DevicePosAndOrient posAndOrient,
+                                             long deltaTmillis) {
+        if(resampler != null) {
+            resampler.flush();
+            resampler = null;
+        } else {
+            logFlightData(db, posAndOrient, deltaTmillis);
+        }
+        batchWriter.close();
+        final boolean rebuildDerived = batchWriter.isDerivedDataStale();
+        batchWriter = null;
 
         /* For some reason, LoggingService is able to call this after the call
          to reset() even though it is killed as part of the delete-all sequence.
@@ -218,22 +1908,279 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
             db.update(TABLE_FLIGHT_LIST, values, COL_FLIGHT_ID + "=" + lastNewID, null);
         } catch (SQLiteDoneException ignored) {}
 
+        //Everything is committed; the journal is no longer needed
+        if(journal != null) {
+            journal.delete();
+            journal = null;
+        }
         lastIDvalid = false;
-        db.close();
+
+        //A reset asked for during the flight can go ahead now
+        if(pendingReset != null) {
+            runInBackground(pendingReset);
+            pendingReset = null;
+        }
+
+        //Pack the finished flight and build its pyramid off of the caller's thread
+        final long finishedID = lastNewID;
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                //A batch failed to commit at some point; its retry wasn't summarized
+                if(rebuildDerived) rebuildDerivedData(getWritableDatabase(), finishedID);
+                if(segmentStorageEnabled) packFlightSegments(finishedID);
+                buildTrackLod(finishedID);
+            }
+        });
+
+        //Hand checkpointing back to SQLite. The connection itself stays open,
+        //since it is shared with any readers.
+        checkpoint();
+        setAutoCheckpoint(db, DEFAULT_AUTO_CHECKPOINT_PAGES);
+    }
+
+    /** Finish every flight that was interrupted before concludeLogging, such
+     * as by the app process being killed. Leftover journals are replayed into
+     * the database, and every unfinished flight is then given an end time
+     * based on its last logged sample, and its summary and spatial index are
+     * rebuilt. The flight currently being logged, if any, is left alone. */
+    public synchronized void recoverUnfinishedFlights() {
+        cancelMaintenance();
+        SQLiteDatabase db = getWritableDatabase();
+        final long activeID = lastIDvalid ? lastNewID : -1;
+
+        for(final File file : FlightJournal.listJournals(context)) {
+            final FlightJournal.Reader reader;
+            try {
+                reader = new FlightJournal.Reader(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable journal " + file, e);
+                file.delete();
+                continue;
+            }
+            if(reader.getFlightID() == activeID) continue;
+            replayJournal(db, reader);
+            reader.delete();
+        }
+
+        //Close off unfinished flights at their last sample, wherever it is
+        final String query = String.format("SELECT %s, %s, %s FROM %s " +
+                        "WHERE %s IS NULL AND %s!=%d",
+                COL_FLIGHT_ID, COL_START_REAL, COL_IMPORTING,
+                TABLE_FLIGHT_LIST,
+                COL_END_REAL, COL_FLIGHT_ID, activeID);
+        Cursor orphans = db.rawQuery(query, null);
+        try {
+            while(orphans.moveToNext()) {
+                final long id = orphans.getLong(0);
+                if(importingFlights.contains(id)) continue;
+                //An import that was cut short; only part of the file is here
+                if(orphans.getInt(2) != 0) {
+                    deleteFlight(db, id);
+                    continue;
+                }
+                final String flight = Long.toString(id);
+                final long lastDeltaT = DatabaseUtils.longForQuery(db,
+                        sampleQueries.lastDeltaT, new String[] {flight, flight});
+
+                ContentValues values = new ContentValues(1);
+                values.put(COL_END_REAL, orphans.getLong(1) + lastDeltaT);
+                db.update(TABLE_FLIGHT_LIST, values, COL_FLIGHT_ID + "=" + id, null);
+
+                //Its summary and index only cover the batches committed before
+                //the interruption
+                rebuildDerivedData(db, id);
+                if(segmentStorageEnabled) packFlightSegments(id);
+                buildTrackLod(id);
+            }
+        } finally {
+            orphans.close();
+        }
+    }
+
+    /** Start a flight for samples that were recorded elsewhere. Its samples
+     * are then written with a FlightDataBatchWriter that doesn't keep derived
+     * data, and the flight is finished with concludeImportedFlight. Until
+     * then it is not in the list of flights, and it is marked as importing:
+     * recoverUnfinishedFlights leaves it alone while this process is still
+     * importing it, and deletes it otherwise. Used by FlightImporter.
+     * @param realStartMillis when the flight started, as a unix time in ms
+     * @return the ID of the new flight */
+    synchronized long beginImportedFlight(long realStartMillis) {
+        ContentValues values = new ContentValues(2);
+        values.put(COL_START_REAL, realStartMillis);
+        values.put(COL_IMPORTING, 1);
+        final long id = getWritableDatabase().insert(TABLE_FLIGHT_LIST, null, values);
+        if(id < 0) throw new SQLiteException("Could not add an imported flight");
+        importingFlights.add(id);
+        return id;
+    }
+
+    /** Finish an imported flight once all of its samples are written. It is
+     * given its end time, then its summary, spatial index, segments and
+     * pyramid are each built in a single pass over its samples, rather than
+     * kept up to date as they were written.
+     * @param flightID the ID from beginImportedFlight
+     * @param lastDeltaT the delta t of the flight's last sample, in ms */
+    void concludeImportedFlight(long flightID, long lastDeltaT) {
+        SQLiteDatabase db = getWritableDatabase();
+        synchronized(this) {
+            ContentValues values = new ContentValues(2);
+            values.put(COL_END_REAL, getFlightStart(db, flightID) + lastDeltaT);
+            values.put(COL_IMPORTING, 0);
+            db.update(TABLE_FLIGHT_LIST, values, COL_FLIGHT_ID + "=" + flightID, null);
+            importingFlights.remove(flightID);
+        }
+
+        rebuildDerivedData(db, flightID);
+        if(segmentStorageEnabled) packFlightSegments(flightID);
+        buildTrackLod(flightID);
+    }
+
+    /** Throw away an imported flight that could not be finished, along with
+     * whatever samples it has so far.
+     * @param flightID the ID from beginImportedFlight */
+    synchronized void abandonImportedFlight(long flightID) {
+        deleteFlight(getWritableDatabase(), flightID);
+        importingFlights.remove(flightID);
+    }
+
+    /** Run recoverUnfinishedFlights on the database's background thread. */
+    public void recoverUnfinishedFlightsInBackground() {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                recoverUnfinishedFlights();
+            }
+        });
+    }
+
+    /** Insert every intact sample of a journal that is not already in the
+     * database. Samples that were committed before the flight was interrupted
+     * are skipped by the unique (flight ID, delta t) constraint. */
+    private void replayJournal(SQLiteDatabase db, FlightJournal.Reader reader) {
+        final long id = reader.getFlightID();
+        final String existsQuery = String.format("SELECT EXISTS(SELECT 1 FROM %s " +
+                        "WHERE %s=%d)",
+                TABLE_FLIGHT_LIST,
+                COL_FLIGHT_ID, id);
+        //The flight was deleted (e.g. by reset) after it was interrupted
+        if(DatabaseUtils.longForQuery(db, existsQuery, null) == 0) return;
+
+        //The flight's derived data is rebuilt from scratch once it is closed off
+        FlightDataBatchWriter writer = new FlightDataBatchWriter(db, id,
+                FlightDataBatchWriter.DEFAULT_MAX_BATCH_SIZE, Long.MAX_VALUE, false);
+        try {
+            while(reader.next()) {
+                writer.appendMicros(reader.getDeltaTMicros(), reader.getRoll(),
+                        reader.getPitch(), reader.getYaw(),
+                        reader.getLatitude(), reader.getLongitude(),
+                        reader.getAltitude(), reader.isPosEstimated());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Reset the database on its background thread, clearing all stored
+     * data. If a flight is being logged, this waits until it is concluded,
+     * and the flight is cleared along with everything else.
+     * @param listener told on the main thread when done; may be null */
+    public void resetInBackground(final OnFlightsDeletedListener listener) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                final int count;
+                synchronized(FlightLogDatabase.this) {
+                    if(lastIDvalid) {
+                        pendingReset = this;
+                        return;
+                    }
+                    count = (int) DatabaseUtils.queryNumEntries(
+                            getWritableDatabase(), TABLE_FLIGHT_LIST);
+                    reset();
+                }
+                reclaimFreePages(getWritableDatabase());
+                notifyDeleted(listener, count);
+            }
+        });
+    }
+
+    /** Reset the database, clearing all stored data. Prefer resetInBackground.
+     * @throws IllegalStateException if a flight is being logged */
+    public synchronized void reset() {
+        if(lastIDvalid) throw new IllegalStateException("Cannot reset while " +
+                "a flight is being logged!");
+        SQLiteDatabase db = getWritableDatabase();
+        final String[] legacy = legacySampleTables;
+        setLegacySampleTables(new String[0]);
+
+        db.beginTransaction();
+        try {
+            //Nuke everything.
+            for(final String table : legacy) {
+                FlightLogMigrations.dropLegacySampleTable(db, table);
+            }
+            String drop = "DROP TABLE IF EXISTS " + TABLE_TRACK_LOD;
+            db.execSQL(drop);
+            drop = "DROP TABLE IF EXISTS " + TABLE_TRACK_INDEX;
+            db.execSQL(drop);
+            drop = "DROP TABLE IF EXISTS " + TABLE_TRACK_BOXES;
+            db.execSQL(drop);
+            drop = "DROP TABLE IF EXISTS " + TABLE_FLIGHT_SUMMARY;
+            db.execSQL(drop);
+            drop = "DROP TABLE IF EXISTS " + TABLE_FLIGHT_SEGMENTS;
+            db.execSQL(drop);
+            drop = "DROP TABLE IF EXISTS " + TABLE_FLIGHT_DATA;
+            db.execSQL(drop);
+            drop = "DROP TABLE IF EXISTS " + TABLE_FLIGHT_LIST;
+            db.execSQL(drop);
+
+            //And recreate the entire database
+            onCreate(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
-    /** Reset the database, clearing all stored data */
-    public void reset() {
-        onUpgrade(getWritableDatabase(), 0, 0);
+    /* Called whenever the database is opened. Enlarges the prepared statement
+    cache, switches to write-ahead logging, which is what gives readers their
+    own connections, and turns on foreign keys, so that no row can be added
+    for a flight that doesn't exist. */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        //Room for every query and statement used while logging and browsing
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+        if(!db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+            db.execSQL("PRAGMA foreign_keys=ON;");
+        }
+
+        //Finish moving data left over from a schema upgrade, if any
+        setLegacySampleTables(FlightLogMigrations.findLegacySampleTables(db));
+        if(legacySampleTables.length > 0) runInBackground(legacyMigrationTask);
+        //Likewise for flights that predate summaries or the spatial index
+        if(!db.isReadOnly()) runInBackground(derivedDataBackfillTask);
+        //And for flights that have aged into another retention tier
+        if(!db.isReadOnly()) applyRetentionInBackground();
     }
 
-    /* Called when the database is created for the first time. */
+    /* Called when the database is created for the first time. Creates the
+    latest version of the schema directly. */
     @Override
     public void onCreate(SQLiteDatabase db) {
+        //Only takes effect before the first table is made; databases made
+        //before this are switched over by runMaintenance
+        db.execSQL("PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+
         String create = "CREATE TABLE " + TABLE_FLIGHT_LIST + "(" +
                 COL_FLIGHT_ID + " INTEGER PRIMARY KEY, " +
                 COL_START_REAL + " INTEGER NOT NULL, " +
-                COL_END_REAL + " INTEGER);";
+                COL_END_REAL + " INTEGER, " +
+                COL_RETENTION_TIER + " INTEGER NOT NULL DEFAULT 0, " +
+                COL_IMPORTING + " INTEGER NOT NULL DEFAULT 0);";
         db.execSQL(create);
 
         create = "CREATE TABLE " + TABLE_FLIGHT_DATA + "(" +
@@ -243,14 +2190,106 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
                 "ON UPDATE RESTRICT ON DELETE CASCADE, " +
 
                 COL_DELTA_T_MS + " INTEGER NOT NULL, " +
+                COL_DELTA_T_SUB_US + " INTEGER NOT NULL DEFAULT 0, " +
                 COL_ROLL + " REAL, " +
                 COL_PITCH + " REAL, " +
                 COL_YAW + " REAL, " +
                 COL_LATI + " REAL, " +
                 COL_LONGI + " REAL, " +
                 COL_ALT + " REAL, " +
-                //All entries should have a unique combination of ID and delta t
-                "UNIQUE(" + COL_FLIGHT_ID + ", " + COL_DELTA_T_MS + "));";
+                COL_POS_ESTIMATED + " INTEGER NOT NULL DEFAULT 0, " +
+                //All entries should have a unique combination of ID and delta t.
+                //Rows are clustered on it, so a flight's rows are stored together.
+                "PRIMARY KEY(" + COL_FLIGHT_ID + ", " + COL_DELTA_T_MS + ", " +
+                COL_DELTA_T_SUB_US + "))" +
+                FlightLogMigrations.withoutRowid() + ";";
+        db.execSQL(create);
+
+        create = "CREATE INDEX " + INDEX_FLIGHT_START + " ON " +
+                TABLE_FLIGHT_LIST + "(" + COL_START_REAL + ");";
+        db.execSQL(create);
+
+        create = "CREATE TABLE " + TABLE_FLIGHT_SEGMENTS + "(" +
+                COL_FLIGHT_ID + " INTEGER NOT NULL REFERENCES " +
+                TABLE_FLIGHT_LIST + "(" + COL_FLIGHT_ID + ")" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+
+                COL_SEG_START + " INTEGER NOT NULL, " +
+                COL_SEG_END + " INTEGER NOT NULL, " +
+                COL_SEG_COUNT + " INTEGER NOT NULL, " +
+                COL_SEG_MIN_LATI + " REAL, " +
+                COL_SEG_MAX_LATI + " REAL, " +
+                COL_SEG_MIN_LONGI + " REAL, " +
+                COL_SEG_MAX_LONGI + " REAL, " +
+                COL_SEG_DATA + " BLOB NOT NULL, " +
+                //Segments of a flight never overlap
+                "PRIMARY KEY(" + COL_FLIGHT_ID + ", " + COL_SEG_START + "));";
+        db.execSQL(create);
+
+        create = "CREATE TABLE " + TABLE_FLIGHT_SUMMARY + "(" +
+                COL_FLIGHT_ID + " INTEGER PRIMARY KEY REFERENCES " +
+                TABLE_FLIGHT_LIST + "(" + COL_FLIGHT_ID + ")" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+
+                COL_SUM_POINTS + " INTEGER NOT NULL, " +
+                COL_SUM_FIRST_DELTA_T + " INTEGER NOT NULL, " +
+                COL_SUM_LAST_DELTA_T + " INTEGER NOT NULL, " +
+                COL_SUM_MIN_LATI + " REAL, " +
+                COL_SUM_MAX_LATI + " REAL, " +
+                COL_SUM_MIN_LONGI + " REAL, " +
+                COL_SUM_MAX_LONGI + " REAL, " +
+                COL_SUM_MIN_ALT + " REAL, " +
+                COL_SUM_MAX_ALT + " REAL, " +
+                COL_SUM_DISTANCE + " REAL NOT NULL, " +
+                COL_SUM_DURATION + " INTEGER NOT NULL);";
+        db.execSQL(create);
+
+        create = "CREATE INDEX " + INDEX_SUMMARY_DURATION + " ON " +
+                TABLE_FLIGHT_SUMMARY + "(" + COL_SUM_DURATION + ");";
+        db.execSQL(create);
+
+        create = "CREATE INDEX " + INDEX_SUMMARY_MAX_ALT + " ON " +
+                TABLE_FLIGHT_SUMMARY + "(" + COL_SUM_MAX_ALT + ");";
+        db.execSQL(create);
+
+        create = "CREATE TABLE " + TABLE_TRACK_BOXES + "(" +
+                COL_BOX_ID + " INTEGER PRIMARY KEY, " +
+                COL_FLIGHT_ID + " INTEGER NOT NULL REFERENCES " +
+                TABLE_FLIGHT_LIST + "(" + COL_FLIGHT_ID + ")" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+                COL_BOX_START + " INTEGER NOT NULL, " +
+                COL_BOX_END + " INTEGER NOT NULL);";
+        db.execSQL(create);
+
+        create = "CREATE INDEX " + INDEX_TRACK_BOX_FLIGHT + " ON " +
+                TABLE_TRACK_BOXES + "(" + COL_FLIGHT_ID + ");";
+        db.execSQL(create);
+
+        FlightLogMigrations.createSpatialTable(db, TABLE_TRACK_INDEX, COL_BOX_ID,
+                COL_BOX_MIN_LATI, COL_BOX_MAX_LATI, COL_BOX_MIN_LONGI, COL_BOX_MAX_LONGI);
+
+        create = "CREATE TRIGGER " + TRIGGER_TRACK_BOX_DELETE + " AFTER DELETE ON " +
+                TABLE_TRACK_BOXES + " BEGIN DELETE FROM " + TABLE_TRACK_INDEX +
+                " WHERE " + COL_BOX_ID + "=OLD." + COL_BOX_ID + "; END;";
+        db.execSQL(create);
+
+        create = "CREATE TABLE " + TABLE_TRACK_LOD + "(" +
+                COL_FLIGHT_ID + " INTEGER NOT NULL REFERENCES " +
+                TABLE_FLIGHT_LIST + "(" + COL_FLIGHT_ID + ")" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+
+                COL_LOD_LEVEL + " INTEGER NOT NULL, " +
+                COL_LOD_TILE + " INTEGER NOT NULL, " +
+                COL_SEG_START + " INTEGER NOT NULL, " +
+                COL_SEG_END + " INTEGER NOT NULL, " +
+                COL_SEG_COUNT + " INTEGER NOT NULL, " +
+                COL_SEG_MIN_LATI + " REAL NOT NULL, " +
+                COL_SEG_MAX_LATI + " REAL NOT NULL, " +
+                COL_SEG_MIN_LONGI + " REAL NOT NULL, " +
+                COL_SEG_MAX_LONGI + " REAL NOT NULL, " +
+                COL_SEG_DATA + " BLOB NOT NULL, " +
+                "PRIMARY KEY(" + COL_FLIGHT_ID + ", " + COL_LOD_LEVEL + ", " +
+                COL_LOD_TILE + "));";
         db.execSQL(create);
 
         /* Temporary testing inserts for new DBs
@@ -304,18 +2343,10 @@ public class FlightLogDatabase extends SQLiteOpenHelper {
         //End of temporary inserts. */
     }
 
-    /* Called when the database schema increases in version number. Currently
-    just resets the entire database schema by dropping all tables and
-    invoking onCreate. */
+    /* Called when the database schema increases in version number. Upgrades
+    the existing tables in place; see FlightLogMigrations. */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        //Nuke everything.
-        String drop = "DROP TABLE " + TABLE_FLIGHT_DATA;
-        db.execSQL(drop);
-        drop = "DROP TABLE " + TABLE_FLIGHT_LIST;
-        db.execSQL(drop);
-
-        //And recreate the entire database
-        onCreate(db);
+        FlightLogMigrations.upgrade(db, oldVersion, newVersion);
     }
 }
@@ -0,0 +1,77 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightLogMaintenanceService.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to run database upkeep while the device is idle and charging. */
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.concurrent.TimeUnit;
+
+/** A JobService that runs FlightLogDatabase.runMaintenance about once a day,
+ * only while the device is idle and charging, so the upkeep of a large
+ * database (compacting old flights, ANALYZE, checkpointing and vacuuming)
+ * never competes with the user. Job scheduling needs Lollipop; older
+ * devices simply go without. */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class FlightLogMaintenanceService extends JobService {
+
+    /** ID of the maintenance job within this app */
+    private static final int JOB_ID = 1;
+
+    /** Schedule the maintenance job, unless it is already scheduled or the
+     * device does not support job scheduling.
+     * @param context a Context used to reach the JobScheduler */
+    public static void schedule(Context context) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+
+        JobScheduler scheduler = (JobScheduler)
+                context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for(final JobInfo job : scheduler.getAllPendingJobs()) {
+            //Rescheduling would restart its period
+            if(job.getId() == JOB_ID) return;
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context,
+                FlightLogMaintenanceService.class))
+                .setPeriodic(TimeUnit.DAYS.toMillis(1))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build());
+    }
+
+    /** Whether the job was stopped before maintenance finished */
+    private volatile boolean stopped = false;
+
+    //Called on the main thread when the job should run.
+    //The work itself happens on the database's background thread.
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        stopped = false;
+        final FlightLogDatabase database = FlightLogDatabase.getInstance(this);
+        database.applyRetentionInBackground();
+        database.runMaintenanceInBackground(new Runnable() {
+            @Override
+            public void run() {
+                //A stopped job is finished by JobScheduler itself
+                if(!stopped) jobFinished(params, false);
+            }
+        });
+        return true;
+    }
+
+    //Called if the device stops being idle or charging before the job finishes.
+    //Maintenance stops at its next chance, and is tried again later.
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopped = true;
+        FlightLogDatabase.getInstance(this).cancelMaintenance();
+        return true;
+    }
+}
@@ -0,0 +1,357 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightLogMigrations.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to upgrade the flight log database schema in place. */
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** The versioned migrations of the FlightLogDatabase schema. Each schema
+ * version has one step that turns the previous version into it, without
+ * losing any data. The steps are deliberately frozen copies of the schema
+ * at that version, rather than references to FlightLogDatabase.onCreate.
+ * <p>
+ * Steps only ever do quick schema work, since they run while the database is
+ * being opened. A step that has to rebuild the flight data table renames the
+ * old table to a "legacy" table and creates the new one. The legacy rows are
+ * then moved over in bounded chunks on a background thread by
+ * {@link #moveLegacySampleChunk(SQLiteDatabase, String)}; until that is done,
+ * readers see both tables (see FlightLogDatabase.sampleSource). */
+final class FlightLogMigrations {
+
+    /** Prefix of the names of flight data tables awaiting migration */
+    static final String LEGACY_FLIGHT_DATA_PREFIX =
+            FlightLogDatabase.TABLE_FLIGHT_DATA + "_legacy";
+
+    /** Number of legacy rows moved per transaction */
+    private static final int CHUNK_ROWS = 4000;
+
+    /** Not instantiable; all migrations are static. */
+    private FlightLogMigrations() {}
+
+    /** Get the clause that makes a table clustered on its primary key, if the
+     * device's SQLite (3.8.2+, i.e. Lollipop) supports it. Older devices still
+     * get the primary key as the only index, just not clustered. */
+    static String withoutRowid() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ?
+                " WITHOUT ROWID" : "";
+    }
+
+    /** Create a table of two-dimensional boxes that can be searched by
+     * overlap. This is an R*Tree if the device's SQLite has the module, and
+     * otherwise a plain table with the same columns, indexed on the first
+     * dimension; queries against either look the same.
+     * @param table the name of the table
+     * @param id the name of the integer ID column
+     * @param minX the name of the column of lower bounds of the first
+     *             dimension; the other bounds columns follow in R*Tree order */
+    static void createSpatialTable(SQLiteDatabase db, String table, String id,
+                                   String minX, String maxX,
+                                   String minY, String maxY) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + table + " USING rtree(" +
+                    id + ", " + minX + ", " + maxX + ", " +
+                    minY + ", " + maxY + ");");
+        } catch (SQLiteException e) {
+            //No R*Tree module in this build of SQLite
+            db.execSQL("CREATE TABLE " + table + "(" +
+                    id + " INTEGER PRIMARY KEY, " +
+                    minX + " REAL NOT NULL, " + maxX + " REAL NOT NULL, " +
+                    minY + " REAL NOT NULL, " + maxY + " REAL NOT NULL);");
+            db.execSQL("CREATE INDEX " + table + "Bounds ON " + table +
+                    "(" + minX + ", " + maxX + ");");
+        }
+    }
+
+    /** Bring a database from one schema version up to another, one version at
+     * a time. Called from within SQLiteOpenHelper's upgrade transaction. */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for(int version = oldVersion + 1; version <= newVersion; version++) {
+            switch(version) {
+                case 2:
+                    addFlightSegments(db);
+                    break;
+                case 3:
+                    clusterFlightData(db);
+                    break;
+                case 4:
+                    addFlightSummaries(db);
+                    break;
+                case 5:
+                    addTrackIndex(db);
+                    break;
+                case 6:
+                    addTrackLod(db);
+                    break;
+                case 7:
+                    addSearchIndexes(db);
+                    break;
+                case 8:
+                    addRetentionTiers(db);
+                    break;
+                case 9:
+                    addSubMillisecondTimes(db);
+                    break;
+                case 10:
+                    addEstimatedPositions(db);
+                    break;
+                case 11:
+                    addImportState(db);
+                    break;
+                case 12:
+                    shareTrackLodLevel0(db);
+                    break;
+                default:
+                    throw new IllegalStateException("No migration to schema " +
+                            "version " + version);
+            }
+        }
+    }
+
+    /** Version 2: add the table of packed flight segments. */
+    private static void addFlightSegments(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE FlightSegments(" +
+                "flightId INTEGER NOT NULL REFERENCES FlightList(flightId)" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+                "segStartMillis INTEGER NOT NULL, " +
+                "segEndMillis INTEGER NOT NULL, " +
+                "sampleCount INTEGER NOT NULL, " +
+                "minLati REAL, maxLati REAL, minLongi REAL, maxLongi REAL, " +
+                "data BLOB NOT NULL, " +
+                "PRIMARY KEY(flightId, segStartMillis));");
+    }
+
+    /** Version 3: store flight data clustered on (flight ID, delta t), rather
+     * than in a rowid table with a separate unique index, and index the flight
+     * list on start time. */
+    private static void clusterFlightData(SQLiteDatabase db) {
+        beginRebuild(db, 3);
+        db.execSQL("CREATE TABLE FlightOrientationData(" +
+                "flightId INTEGER NOT NULL REFERENCES FlightList(flightId)" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+                "deltaTMillis INTEGER NOT NULL, " +
+                "roll REAL, pitch REAL, yaw REAL, " +
+                "lati REAL, longi REAL, altitude REAL, " +
+                "PRIMARY KEY(flightId, deltaTMillis))" + withoutRowid() + ";");
+        db.execSQL("CREATE INDEX FlightListStartIndex " +
+                "ON FlightList(startTimeUnixMillis);");
+    }
+
+    /** Version 4: add the table of per-flight summaries. Existing flights are
+     * summarized afterward, in the background, by FlightLogDatabase. */
+    private static void addFlightSummaries(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE FlightSummary(" +
+                "flightId INTEGER PRIMARY KEY REFERENCES FlightList(flightId)" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+                "pointCount INTEGER NOT NULL, " +
+                "firstDeltaTMillis INTEGER NOT NULL, " +
+                "lastDeltaTMillis INTEGER NOT NULL, " +
+                "minLati REAL, maxLati REAL, minLongi REAL, maxLongi REAL, " +
+                "minAlt REAL, maxAlt REAL, " +
+                "distanceMeters REAL NOT NULL);");
+    }
+
+    /** Version 5: add the spatial index of flight tracks. Summaries are
+     * cleared so that the background backfill of FlightLogDatabase rebuilds
+     * them, and the spatial index along with them, for every flight. */
+    private static void addTrackIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE FlightTrackBoxes(" +
+                "boxId INTEGER PRIMARY KEY, " +
+                "flightId INTEGER NOT NULL REFERENCES FlightList(flightId)" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+                "startDeltaTMillis INTEGER NOT NULL, " +
+                "endDeltaTMillis INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX FlightTrackBoxesFlightIndex " +
+                "ON FlightTrackBoxes(flightId);");
+        createSpatialTable(db, "FlightTrackIndex", "boxId",
+                "minLati", "maxLati", "minLongi", "maxLongi");
+        db.execSQL("CREATE TRIGGER FlightTrackBoxesDelete AFTER DELETE " +
+                "ON FlightTrackBoxes BEGIN " +
+                "DELETE FROM FlightTrackIndex WHERE boxId=OLD.boxId; END;");
+        db.execSQL("DELETE FROM FlightSummary;");
+    }
+
+    /** Version 6: add the level-of-detail pyramids of flight tracks. These
+     * are built for existing flights the first time they are plotted. */
+    private static void addTrackLod(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE FlightTrackLod(" +
+                "flightId INTEGER NOT NULL REFERENCES FlightList(flightId)" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+                "level INTEGER NOT NULL, " +
+                "tile INTEGER NOT NULL, " +
+                "segStartMillis INTEGER NOT NULL, " +
+                "segEndMillis INTEGER NOT NULL, " +
+                "sampleCount INTEGER NOT NULL, " +
+                "minLati REAL NOT NULL, maxLati REAL NOT NULL, " +
+                "minLongi REAL NOT NULL, maxLongi REAL NOT NULL, " +
+                "data BLOB NOT NULL, " +
+                "PRIMARY KEY(flightId, level, tile));");
+    }
+
+    /** Version 7: index flight summaries by duration and highest altitude,
+     * for searching. The duration is stored in the summary so that it can be
+     * indexed; it is filled in here, which only touches one row per flight. */
+    private static void addSearchIndexes(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE FlightSummary " +
+                "ADD COLUMN durationMillis INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE FlightSummary " +
+                "SET durationMillis=lastDeltaTMillis-firstDeltaTMillis;");
+        db.execSQL("CREATE INDEX FlightSummaryDurationIndex " +
+                "ON FlightSummary(durationMillis);");
+        db.execSQL("CREATE INDEX FlightSummaryMaxAltIndex " +
+                "ON FlightSummary(maxAlt);");
+    }
+
+    /** Version 8: record how far each flight has been compacted by the
+     * retention policy. Every existing flight has all its samples. */
+    private static void addRetentionTiers(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE FlightList " +
+                "ADD COLUMN retentionTier INTEGER NOT NULL DEFAULT 0;");
+    }
+
+    /** Version 9: time flight data to the microsecond, so that samples logged
+     * at a high rate can't collide on (flight ID, delta t). The key gains the
+     * microseconds past delta t, which is why the table is rebuilt; existing
+     * samples take 0. */
+    private static void addSubMillisecondTimes(SQLiteDatabase db) {
+        beginRebuild(db, 9);
+        db.execSQL("CREATE TABLE FlightOrientationData(" +
+                "flightId INTEGER NOT NULL REFERENCES FlightList(flightId)" +
+                "ON UPDATE RESTRICT ON DELETE CASCADE, " +
+                "deltaTMillis INTEGER NOT NULL, " +
+                "deltaTSubMicros INTEGER NOT NULL DEFAULT 0, " +
+                "roll REAL, pitch REAL, yaw REAL, " +
+                "lati REAL, longi REAL, altitude REAL, " +
+                "PRIMARY KEY(flightId, deltaTMillis, deltaTSubMicros))" +
+                withoutRowid() + ";");
+    }
+
+    /** Version 10: record whether each sample's position was dead reckoned
+     * between GPS fixes. Every existing sample has a measured position. A
+     * legacy table still being moved keeps its columns; its rows take the
+     * default as they move. */
+    private static void addEstimatedPositions(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE FlightOrientationData " +
+                "ADD COLUMN posEstimated INTEGER NOT NULL DEFAULT 0;");
+    }
+
+    /** Version 11: mark the flights that are still being imported, so an
+     * import cut short by the process dying can be told apart from a flight
+     * whose logging was. No existing flight is being imported. */
+    private static void addImportState(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE FlightList " +
+                "ADD COLUMN importing INTEGER NOT NULL DEFAULT 0;");
+    }
+
+    /** Version 12: a packed flight's segments are level 0 of its track's
+     * pyramid, so its copy of them in the pyramid goes. */
+    private static void shareTrackLodLevel0(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM FlightTrackLod WHERE level=0 AND flightId IN " +
+                "(SELECT flightId FROM FlightSegments);");
+    }
+
+    /** Set the current flight data table aside so that a step can create its
+     * replacement. Its rows are moved into the replacement in the background.
+     * @param version the schema version being migrated to */
+    private static void beginRebuild(SQLiteDatabase db, int version) {
+        db.execSQL("ALTER TABLE " + FlightLogDatabase.TABLE_FLIGHT_DATA +
+                " RENAME TO " + LEGACY_FLIGHT_DATA_PREFIX + version);
+    }
+
+    /** Find the flight data tables still waiting to be migrated, oldest first. */
+    static String[] findLegacySampleTables(SQLiteDatabase db) {
+        List<String> tables = new ArrayList<>();
+        Cursor names = db.rawQuery("SELECT name FROM sqlite_master " +
+                "WHERE type='table' AND name GLOB ? ORDER BY name",
+                new String[] {LEGACY_FLIGHT_DATA_PREFIX + "*"});
+        try {
+            while(names.moveToNext()) {
+                tables.add(names.getString(0));
+            }
+        } finally {
+            names.close();
+        }
+        return tables.toArray(new String[tables.size()]);
+    }
+
+    /** Move up to CHUNK_ROWS rows, in (flight ID, delta t) order, from a
+     * legacy flight data table into the current one, in a single short
+     * transaction. Every version of the table is indexed on that pair, rowid
+     * or not. Columns the two tables share are copied; new columns take their
+     * defaults.
+     * @param legacyTable the name of a table from findLegacySampleTables
+     * @return true if the legacy table is now empty */
+    static boolean moveLegacySampleChunk(SQLiteDatabase db, String legacyTable) {
+        final String columns = sharedColumns(db, legacyTable,
+                FlightLogDatabase.TABLE_FLIGHT_DATA);
+        final String id = FlightLogDatabase.COL_FLIGHT_ID;
+        final String deltaT = FlightLogDatabase.COL_DELTA_T_MS;
+
+        db.beginTransactionNonExclusive();
+        try {
+            //Find the last key of this chunk; none means this is the last chunk
+            String where = "";
+            Cursor last = db.rawQuery("SELECT " + id + ", " + deltaT + " FROM " +
+                    legacyTable + " ORDER BY " + id + ", " + deltaT +
+                    " LIMIT 1 OFFSET " + (CHUNK_ROWS - 1), null);
+            try {
+                if(last.moveToFirst()) {
+                    where = String.format(" WHERE %s<%d OR (%s=%d AND %s<=%d)",
+                            id, last.getLong(0), id, last.getLong(0),
+                            deltaT, last.getLong(1));
+                }
+            } finally {
+                last.close();
+            }
+
+            db.execSQL("INSERT OR IGNORE INTO " + FlightLogDatabase.TABLE_FLIGHT_DATA +
+                    "(" + columns + ") SELECT " + columns + " FROM " + legacyTable + where);
+            db.execSQL("DELETE FROM " + legacyTable + where);
+            db.setTransactionSuccessful();
+            return where.isEmpty();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Drop a legacy flight data table once it has been emptied. */
+    static void dropLegacySampleTable(SQLiteDatabase db, String legacyTable) {
+        db.execSQL("DROP TABLE IF EXISTS " + legacyTable);
+    }
+
+    /** Get a comma-separated list of the columns two tables have in common. */
+    private static String sharedColumns(SQLiteDatabase db, String first, String second) {
+        Set<String> secondColumns = new HashSet<>(columnsOf(db, second));
+        StringBuilder shared = new StringBuilder();
+        for(final String column : columnsOf(db, first)) {
+            if(secondColumns.contains(column)) {
+                if(shared.length() > 0) shared.append(", ");
+                shared.append(column);
+            }
+        }
+        return shared.toString();
+    }
+
+    /** Get the names of a table's columns, in order. */
+    private static List<String> columnsOf(SQLiteDatabase db, String table) {
+        List<String> columns = new ArrayList<>();
+        Cursor info = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            final int nameCol = info.getColumnIndexOrThrow("name");
+            while(info.moveToNext()) {
+                columns.add(info.getString(nameCol));
+            }
+        } finally {
+            info.close();
+        }
+        return columns;
+    }
+}
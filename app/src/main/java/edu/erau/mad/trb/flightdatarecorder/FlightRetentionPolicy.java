@@ -0,0 +1,129 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightRetentionPolicy.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to describe how long flights are kept at what resolution. */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** How FlightLogDatabase compacts flights as they age: a list of tiers, each
+ * applying from some age on (counted from a flight's start), and a byte
+ * budget for the whole database. Flights younger than the first tier keep
+ * every sample. A tier either lowers a flight's sample rate, or simplifies
+ * its track to the samples that give it its shape; see FlightTrackSimplifier.
+ * When the database is over its budget, the oldest flights are compacted to
+ * the last tier early, one at a time, until it is not. Flights are never
+ * deleted, and their summaries keep describing them as they were logged.
+ * <p>
+ * A policy is handed to FlightLogDatabase.setRetentionPolicy, and should not
+ * be changed after that. */
+public class FlightRetentionPolicy {
+
+    /** One step of a policy. */
+    public static final class Tier {
+        private final long minAgeMillis;
+        private final long sampleIntervalMillis;
+        private final double toleranceMeters;
+
+        private Tier(long minAgeMillis, long sampleIntervalMillis, double toleranceMeters) {
+            this.minAgeMillis = minAgeMillis;
+            this.sampleIntervalMillis = sampleIntervalMillis;
+            this.toleranceMeters = toleranceMeters;
+        }
+
+        /** Get the age, in milliseconds, from which this tier applies */
+        public long getMinAgeMillis() {
+            return minAgeMillis;
+        }
+
+        /** Choose the samples of a chunk of a flight this tier keeps.
+         * Consecutive chunks share an end sample.
+         * @param lastKeptDeltaT the delta t of the last sample kept from the
+         *                       chunk before; Long.MIN_VALUE for the first
+         * @param lastChunk whether the chunk ends the flight
+         * @param keep set to whether each sample is kept
+         * @return the number of samples kept */
+        int selectSamples(FlightSampleWindow samples, int count, long lastKeptDeltaT,
+                          boolean lastChunk, boolean[] keep) {
+            if(toleranceMeters > 0.0) {
+                return FlightTrackSimplifier.simplify(samples.lati, samples.longi,
+                        samples.alt, count, toleranceMeters, keep);
+            }
+            final long next = lastKeptDeltaT == Long.MIN_VALUE ? Long.MIN_VALUE :
+                    lastKeptDeltaT + sampleIntervalMillis;
+            return FlightTrackSimplifier.downsample(samples.deltaT, count,
+                    sampleIntervalMillis, next, lastChunk, keep);
+        }
+    }
+
+    /** The tiers, youngest first */
+    private final List<Tier> tiers = new ArrayList<>();
+    /** The most bytes the database may use before flights are compacted early */
+    private long byteBudget = Long.MAX_VALUE;
+
+    /** Create a policy that keeps every sample of every flight; add tiers to
+     * it to compact older flights. */
+    public FlightRetentionPolicy() {}
+
+    /** Get the policy used unless another is set: flights keep every sample
+     * for 90 days, then one sample every 5 seconds, and after a year only
+     * the shape of their track, to within 10 meters. No byte budget. */
+    public static FlightRetentionPolicy createDefault() {
+        return new FlightRetentionPolicy()
+                .downsampleAfter(TimeUnit.DAYS.toMillis(90), 5000)
+                .simplifyAfter(TimeUnit.DAYS.toMillis(365), 10.0);
+    }
+
+    /** Add a tier that keeps one sample per interval of time.
+     * @param ageMillis the age from which it applies; older than the last tier's
+     * @param intervalMillis the shortest time between kept samples
+     * @return this policy */
+    public FlightRetentionPolicy downsampleAfter(long ageMillis, long intervalMillis) {
+        if(intervalMillis <= 0) throw new IllegalArgumentException("Interval must be positive");
+        return addTier(new Tier(ageMillis, intervalMillis, 0.0));
+    }
+
+    /** Add a tier that keeps only the samples that give the track its shape.
+     * @param ageMillis the age from which it applies; older than the last tier's
+     * @param toleranceMeters how far the simplified track may stray from the original
+     * @return this policy */
+    public FlightRetentionPolicy simplifyAfter(long ageMillis, double toleranceMeters) {
+        if(!(toleranceMeters > 0.0)) {
+            throw new IllegalArgumentException("Tolerance must be positive");
+        }
+        return addTier(new Tier(ageMillis, 0, toleranceMeters));
+    }
+
+    private FlightRetentionPolicy addTier(Tier tier) {
+        if(!tiers.isEmpty() && tier.minAgeMillis <= tiers.get(tiers.size() - 1).minAgeMillis) {
+            throw new IllegalArgumentException("Tiers must be added youngest first");
+        }
+        tiers.add(tier);
+        return this;
+    }
+
+    /** Set the most bytes the database may use; flights are compacted early
+     * to bring it under. Long.MAX_VALUE, the default, for no budget.
+     * @return this policy */
+    public FlightRetentionPolicy setByteBudget(long bytes) {
+        byteBudget = bytes;
+        return this;
+    }
+
+    /** Get the most bytes the database may use */
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /** Get the number of tiers */
+    public int getTierCount() {
+        return tiers.size();
+    }
+
+    /** Get a tier; tier 0 is the youngest */
+    public Tier getTier(int index) {
+        return tiers.get(index);
+    }
+}
@@ -0,0 +1,45 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightSampleWindow.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to hold a run of flight samples in primitive arrays. */
+
+/** A fixed-size run of flight samples, stored column by column in primitive
+ * arrays, that FlightLogDatabase.readFlightSamples fills from the start. The
+ * same window is meant to be refilled over and over, so a flight of any
+ * length can be read with no more memory than the window itself. Units are
+ * those of the FlightLogDatabase sample columns. */
+public class FlightSampleWindow {
+
+    /** Milliseconds since the start of the flight */
+    public final long[] deltaT;
+    /** Microseconds since the start of the flight; delta t to full precision */
+    public final long[] deltaTMicros;
+    /** Roll, pitch and yaw, in degrees */
+    public final double[] roll, pitch, yaw;
+    /** Latitude and longitude, in signed degrees */
+    public final double[] lati, longi;
+    /** Altitude, in feet */
+    public final double[] alt;
+    /** Whether the position was dead reckoned, rather than a GPS fix */
+    public final boolean[] posEstimated;
+
+    /** Create a window.
+     * @param capacity the most samples read at once */
+    public FlightSampleWindow(int capacity) {
+        deltaT = new long[capacity];
+        deltaTMicros = new long[capacity];
+        roll = new double[capacity];
+        pitch = new double[capacity];
+        yaw = new double[capacity];
+        lati = new double[capacity];
+        longi = new double[capacity];
+        alt = new double[capacity];
+        posEstimated = new boolean[capacity];
+    }
+
+    /** Get the most samples the window holds */
+    public int getCapacity() {
+        return deltaT.length;
+    }
+}
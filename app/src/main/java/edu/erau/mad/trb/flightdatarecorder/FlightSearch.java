@@ -0,0 +1,286 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightSearch.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to describe which flights to find in the flight log. */
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+/** The criteria of a search of the flight list: a range of start times, of
+ * durations and of altitudes, and an area the track must pass through. Any
+ * criterion left unset matches every flight. Searches are run with
+ * FlightLogDatabase.getFlightsPage.
+ * <p>
+ * Every criterion is answered from an index: start times from the flight
+ * list's start time index, durations and altitudes from indexes of the
+ * precomputed flight summaries, and areas from the spatial index of tracks.
+ * Durations and altitudes come from the summaries, so flights that are not
+ * summarized yet are not found by them. */
+public class FlightSearch {
+
+    /** Start time range, as unix times in milliseconds; the end is exclusive */
+    private long startedFrom = Long.MIN_VALUE, startedBefore = Long.MAX_VALUE;
+    /** Duration range, in milliseconds, both inclusive */
+    private long minDuration = Long.MIN_VALUE, maxDuration = Long.MAX_VALUE;
+    /** Altitude band, in feet, both inclusive */
+    private double lowAlt = Double.NEGATIVE_INFINITY, highAlt = Double.POSITIVE_INFINITY;
+    /** Area, in signed degrees; NaN if not set */
+    private double minLati = Double.NaN, maxLati, minLongi, maxLongi;
+
+    /** Create a search that matches every flight. */
+    public FlightSearch() {}
+
+    /** Only match flights that started in a range of time.
+     * @param fromMillis the earliest start time, as a unix time in milliseconds
+     * @param beforeMillis the time, after fromMillis, all flights started before
+     * @return this search */
+    public FlightSearch setStartedBetween(long fromMillis, long beforeMillis) {
+        startedFrom = fromMillis;
+        startedBefore = beforeMillis;
+        return this;
+    }
+
+    /** Only match flights whose logged duration, from their first sample to
+     * their last, is in a range.
+     * @param minMillis the shortest duration, in milliseconds
+     * @param maxMillis the longest duration, in milliseconds; Long.MAX_VALUE
+     *                  for no limit
+     * @return this search */
+    public FlightSearch setDurationBetween(long minMillis, long maxMillis) {
+        minDuration = minMillis;
+        maxDuration = maxMillis;
+        return this;
+    }
+
+    /** Only match flights that were somewhere within an altitude band, i.e.
+     * whose range of altitudes overlaps it.
+     * @param lowFeet the bottom of the band; negative infinity for no bottom
+     * @param highFeet the top of the band; positive infinity for no top
+     * @return this search */
+    public FlightSearch setAltitudeBetween(double lowFeet, double highFeet) {
+        lowAlt = lowFeet;
+        highAlt = highFeet;
+        return this;
+    }
+
+    /** Only match flights with a logged position within an area. An area
+     * across the 180th meridian must be searched as two areas.
+     * @return this search */
+    public FlightSearch setArea(double minLati, double maxLati,
+                                double minLongi, double maxLongi) {
+        if(minLati > maxLati || minLongi > maxLongi) {
+            throw new IllegalArgumentException("Area has negative size!");
+        }
+        this.minLati = minLati;
+        this.maxLati = maxLati;
+        this.minLongi = minLongi;
+        this.maxLongi = maxLongi;
+        return this;
+    }
+
+    private boolean hasStartRange() {
+        return startedFrom != Long.MIN_VALUE || startedBefore != Long.MAX_VALUE;
+    }
+
+    private boolean hasDurationRange() {
+        return minDuration != Long.MIN_VALUE || maxDuration != Long.MAX_VALUE;
+    }
+
+    private boolean hasAltitudeBand() {
+        return lowAlt != Double.NEGATIVE_INFINITY || highAlt != Double.POSITIVE_INFINITY;
+    }
+
+    private boolean hasArea() {
+        return !Double.isNaN(minLati);
+    }
+
+    /** Check whether this search matches every flight. */
+    public boolean isEmpty() {
+        return !hasStartRange() && !hasDurationRange() && !hasAltitudeBand() && !hasArea();
+    }
+
+    /** Check whether every flight this search matches is also matched by
+     * another search, so that its results can be found by filtering those of
+     * the other with {@link #matches} rather than by querying again. That
+     * takes the same area, or none, in both.
+     * @param other a search whose results are at hand */
+    public boolean narrows(FlightSearch other) {
+        if(hasArea() || other.hasArea()) {
+            if(!(hasArea() && other.hasArea() && minLati == other.minLati
+                    && maxLati == other.maxLati && minLongi == other.minLongi
+                    && maxLongi == other.maxLongi)) {
+                return false;
+            }
+        }
+        return startedFrom >= other.startedFrom && startedBefore <= other.startedBefore
+                && minDuration >= other.minDuration && maxDuration <= other.maxDuration
+                && lowAlt >= other.lowAlt && highAlt <= other.highAlt;
+    }
+
+    /** Check a flight against every criterion except the area.
+     * @param startMillis the flight's start time
+     * @param durationMillis the flight's logged duration; ignored if summarized is false
+     * @param minAltFeet the flight's lowest altitude; NaN if it had no position fix
+     * @param maxAltFeet the flight's highest altitude; NaN if it had no position fix
+     * @param summarized whether the flight has a summary */
+    public boolean matches(long startMillis, long durationMillis,
+                           double minAltFeet, double maxAltFeet, boolean summarized) {
+        if(startMillis < startedFrom || startMillis >= startedBefore) return false;
+        if(hasDurationRange() && (!summarized || durationMillis < minDuration
+                || durationMillis > maxDuration)) {
+            return false;
+        }
+        if(hasAltitudeBand() && (!summarized || Double.isNaN(maxAltFeet)
+                || maxAltFeet < lowAlt || minAltFeet > highAlt)) {
+            return false;
+        }
+        return true;
+    }
+
+    /** Append the SQL conditions of this search, each starting with " AND",
+     * to a query over the flight list (aliased l) left joined to the summary
+     * table (aliased s), and their arguments to a list. Only the criteria
+     * that are set make it into the SQL, so there are few enough different
+     * statements for all of them to stay in the statement cache. */
+    void appendWhere(StringBuilder sql, List<String> args) {
+        if(hasStartRange()) {
+            sql.append(" AND l.").append(FlightLogDatabase.COL_START_REAL).append(">=?")
+                    .append(" AND l.").append(FlightLogDatabase.COL_START_REAL).append("<?");
+            args.add(Long.toString(startedFrom));
+            args.add(Long.toString(startedBefore));
+        }
+        if(hasDurationRange()) {
+            sql.append(" AND s.").append(FlightLogDatabase.COL_SUM_DURATION)
+                    .append(" BETWEEN ? AND ?");
+            args.add(Long.toString(minDuration));
+            args.add(Long.toString(maxDuration));
+        }
+        if(hasAltitudeBand()) {
+            //Infinite bounds are written as the largest doubles SQLite can read
+            sql.append(" AND s.").append(FlightLogDatabase.COL_SUM_MAX_ALT).append(">=?")
+                    .append(" AND s.").append(FlightLogDatabase.COL_SUM_MIN_ALT).append("<=?");
+            args.add(Double.toString(Math.max(lowAlt, -Double.MAX_VALUE)));
+            args.add(Double.toString(Math.min(highAlt, Double.MAX_VALUE)));
+        }
+        if(hasArea()) {
+            //Evaluated once, from the spatial index, into a temporary set of IDs
+            sql.append(" AND l.").append(FlightLogDatabase.COL_FLIGHT_ID)
+                    .append(" IN (SELECT b.").append(FlightLogDatabase.COL_FLIGHT_ID)
+                    .append(" FROM ").append(FlightLogDatabase.TABLE_TRACK_INDEX)
+                    .append(" i JOIN ").append(FlightLogDatabase.TABLE_TRACK_BOXES)
+                    .append(" b ON b.").append(FlightLogDatabase.COL_BOX_ID)
+                    .append("=i.").append(FlightLogDatabase.COL_BOX_ID)
+                    .append(" WHERE i.").append(FlightLogDatabase.COL_BOX_MAX_LATI)
+                    .append(">=? AND i.").append(FlightLogDatabase.COL_BOX_MIN_LATI)
+                    .append("<=? AND i.").append(FlightLogDatabase.COL_BOX_MAX_LONGI)
+                    .append(">=? AND i.").append(FlightLogDatabase.COL_BOX_MIN_LONGI)
+                    .append("<=?)");
+            args.add(Double.toString(minLati));
+            args.add(Double.toString(maxLati));
+            args.add(Double.toString(minLongi));
+            args.add(Double.toString(maxLongi));
+        }
+    }
+
+    /** Make a search from what a user typed, one criterion per word, so that
+     * a search can be run as it is typed. Words that aren't (yet) one of the
+     * following are skipped:
+     * <ul>
+     * <li>a date or the start of one, in local time: 2015, 2015-04, 2015-04-20</li>
+     * <li>a duration in hours or minutes, at least or at most: &gt;1h, &lt;30m</li>
+     * <li>an altitude in feet, at least, at most or about (within 500 feet):
+     * &gt;5000ft, &lt;1000ft, 3000ft</li>
+     * </ul>
+     * @param text the text typed; may be empty */
+    public static FlightSearch fromQueryText(String text) {
+        final FlightSearch search = new FlightSearch();
+        for(final String word : text.trim().toLowerCase(Locale.US).split("\\s+")) {
+            if(word.isEmpty()) continue;
+            if(!search.parseDate(word) && !search.parseDuration(word)) {
+                search.parseAltitude(word);
+            }
+        }
+        return search;
+    }
+
+    /** Read a date, or the start of one, as a start time range. */
+    private boolean parseDate(String word) {
+        final String[] parts = word.split("-", -1);
+        if(parts.length > 3 || parts[0].length() != 4 || !isDigits(parts[0])) return false;
+
+        final Calendar from = Calendar.getInstance();
+        from.clear();
+        from.set(Integer.parseInt(parts[0]), Calendar.JANUARY, 1);
+        int unit = Calendar.YEAR;
+        //Incomplete months and days are left off until they are typed in full
+        if(parts.length > 1 && parts[1].length() == 2 && isDigits(parts[1])) {
+            from.set(Calendar.MONTH, Integer.parseInt(parts[1]) - 1);
+            unit = Calendar.MONTH;
+            if(parts.length > 2 && parts[2].length() == 2 && isDigits(parts[2])) {
+                from.set(Calendar.DAY_OF_MONTH, Integer.parseInt(parts[2]));
+                unit = Calendar.DAY_OF_MONTH;
+            }
+        }
+        final Calendar before = (Calendar) from.clone();
+        before.add(unit, 1);
+        setStartedBetween(Math.max(startedFrom, from.getTimeInMillis()),
+                Math.min(startedBefore, before.getTimeInMillis()));
+        return true;
+    }
+
+    /** Read a duration limit, such as &gt;1h or &lt;30m. */
+    private boolean parseDuration(String word) {
+        if(word.length() < 3 || (word.charAt(0) != '>' && word.charAt(0) != '<')) {
+            return false;
+        }
+        final char unit = word.charAt(word.length() - 1);
+        final long unitMillis = unit == 'h' ? 3600000L : unit == 'm' ? 60000L : 0;
+        final String number = word.substring(1, word.length() - 1);
+        if(unitMillis == 0 || !isNumber(number)) return false;
+
+        final long millis = Math.round(Double.parseDouble(number) * unitMillis);
+        if(word.charAt(0) == '>') {
+            setDurationBetween(Math.max(minDuration, millis), maxDuration);
+        } else {
+            setDurationBetween(minDuration, Math.min(maxDuration, millis));
+        }
+        return true;
+    }
+
+    /** Read an altitude, such as &gt;5000ft or 3000ft. */
+    private boolean parseAltitude(String word) {
+        if(!word.endsWith("ft")) return false;
+        final char limit = word.charAt(0);
+        final String number = word.substring(limit == '>' || limit == '<' ? 1 : 0,
+                word.length() - 2);
+        if(!isNumber(number)) return false;
+
+        final double feet = Double.parseDouble(number);
+        if(limit == '>') {
+            setAltitudeBetween(Math.max(lowAlt, feet), highAlt);
+        } else if(limit == '<') {
+            setAltitudeBetween(lowAlt, Math.min(highAlt, feet));
+        } else {
+            setAltitudeBetween(Math.max(lowAlt, feet - 500.0), Math.min(highAlt, feet + 500.0));
+        }
+        return true;
+    }
+
+    private static boolean isDigits(String s) {
+        if(s.isEmpty()) return false;
+        for(int i = 0; i < s.length(); i++) {
+            if(!Character.isDigit(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static boolean isNumber(String s) {
+        final int dot = s.indexOf('.');
+        if(dot < 0) return isDigits(s);
+        return (dot == 0 || isDigits(s.substring(0, dot)))
+                && (dot == s.length() - 1 || isDigits(s.substring(dot + 1)))
+                && s.length() > 1;
+    }
+}
@@ -0,0 +1,412 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightSegmentCodec.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to pack runs of flight samples into compact binary segments. */
+
+/** Encodes and decodes flight segments: runs of consecutive flight samples
+ * stored as a single blob. A segment is columnar; each of the sample columns
+ * is stored separately, quantized to fixed point and delta encoded as
+ * zigzag varints, so slowly changing values take only a byte or two.
+ * <p>
+ * Layout of a segment: a format version byte, then a header of varints
+ * (sample count, first and last delta t, and the quantized latitude and
+ * longitude bounding box), then the byte length of every column, then the
+ * columns themselves in {@link #COLUMNS} order. Since version 2, the delta t
+ * column is in microseconds, so samples logged less than a millisecond apart
+ * keep their order and spacing; the header's first and last delta t are
+ * still in milliseconds. Since version 3, a last column tells whether each
+ * sample's position was dead reckoned. Version 1 segments, with every delta
+ * t in milliseconds, and version 2 segments, without that column, are still
+ * decoded; their positions count as measured. A missing value (NaN) is
+ * stored as NAN_QUANTUM in every version, since no real value quantizes to
+ * it. */
+final class FlightSegmentCodec {
+
+    /** Current segment format version, written as the first byte */
+    static final int FORMAT_VERSION = 3;
+    /** The first version with the delta t column in microseconds */
+    private static final int MICROS_VERSION = 2;
+    /** The first version with the estimated position column */
+    private static final int POS_ESTIMATED_VERSION = 3;
+
+    /** Names of the columns in a segment, in the order they are stored. These
+     * match the FlightLogDatabase sample columns. */
+    static final String[] COLUMNS = {
+            FlightLogDatabase.COL_DELTA_T_MS,
+            FlightLogDatabase.COL_ROLL,
+            FlightLogDatabase.COL_PITCH,
+            FlightLogDatabase.COL_YAW,
+            FlightLogDatabase.COL_LATI,
+            FlightLogDatabase.COL_LONGI,
+            FlightLogDatabase.COL_ALT,
+            FlightLogDatabase.COL_POS_ESTIMATED};
+
+    //Column indices within a segment
+    static final int DELTA_T = 0;
+    static final int ROLL = 1;
+    static final int PITCH = 2;
+    static final int YAW = 3;
+    static final int LATI = 4;
+    static final int LONGI = 5;
+    static final int ALT = 6;
+    /** 1 if the position was dead reckoned, otherwise 0 */
+    static final int POS_ESTIMATED = 7;
+
+    /** Fixed-point scale of latitude and longitude; 1e-7° is about a centimeter */
+    static final double LATLONG_SCALE = 1e7;
+    /** Fixed-point scale of roll, pitch and yaw; hundredths of a degree */
+    static final double ANGLE_SCALE = 100.0;
+    /** Fixed-point scale of altitude; tenths of a foot */
+    static final double ALT_SCALE = 10.0;
+
+    /** The quantized value that stands for NaN, a missing value */
+    static final long NAN_QUANTUM = Long.MIN_VALUE;
+
+    /** Fixed-point scale of every column, in column order */
+    private static final double[] SCALES = {1.0, ANGLE_SCALE, ANGLE_SCALE,
+            ANGLE_SCALE, LATLONG_SCALE, LATLONG_SCALE, ALT_SCALE, 1.0};
+
+    /** Not instantiable; see Encoder and Decoder. */
+    private FlightSegmentCodec() {}
+
+    /** Quantize a value to the fixed-point representation of a column;
+     * NaN becomes NAN_QUANTUM. */
+    static long quantize(int column, double value) {
+        if(Double.isNaN(value)) return NAN_QUANTUM;
+        return Math.round(value * SCALES[column]);
+    }
+
+    /** Turn a quantized value of a column back into a real value; NAN_QUANTUM
+     * becomes NaN. */
+    static double dequantize(int column, long value) {
+        if(value == NAN_QUANTUM) return Double.NaN;
+        return value / SCALES[column];
+    }
+
+    /** Map signed values to unsigned ones so small magnitudes stay small. */
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    /** Inverse of zigzag. */
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /** A growable byte array that varints are written into. Reused between
+     * segments to avoid reallocating. */
+    private static final class VarintBuffer {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        void writeVarint(long value) {
+            if(size + 10 > bytes.length) {
+                byte[] grown = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+            while((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeSigned(long value) {
+            writeVarint(zigzag(value));
+        }
+    }
+
+    /** Get the number of bytes a varint takes up. */
+    private static int varintLength(long value) {
+        int length = 1;
+        while((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /** Accumulates samples, in delta t order, into one segment at a time. */
+    static final class Encoder {
+        private final VarintBuffer[] columns = new VarintBuffer[COLUMNS.length];
+        /** The last quantized value of each column, to delta against */
+        private final long[] last = new long[COLUMNS.length];
+
+        private int count;
+        private long startMicros;
+        private long endMicros;
+        private long minLati, maxLati, minLongi, maxLongi;
+
+        Encoder() {
+            for(int i = 0; i < columns.length; i++) {
+                columns[i] = new VarintBuffer();
+            }
+            reset();
+        }
+
+        /** Discard everything added so far and start a new segment. */
+        void reset() {
+            for(int i = 0; i < columns.length; i++) {
+                columns[i].size = 0;
+                last[i] = 0;
+            }
+            count = 0;
+            minLati = minLongi = Long.MAX_VALUE;
+            maxLati = maxLongi = Long.MIN_VALUE;
+        }
+
+        /** Add one sample with a measured position to the segment. Samples
+         * must arrive in increasing delta t order.
+         * @param deltaT milliseconds since the start of the flight */
+        void add(long deltaT, double roll, double pitch, double yaw,
+                 double lati, double longi, double alt) {
+            addMicros(deltaT * 1000L, roll, pitch, yaw, lati, longi, alt, false);
+        }
+
+        /** Add one sample to the segment, timed to the microsecond.
+         * @param deltaTMicros microseconds since the start of the flight
+         * @param posEstimated whether the position was dead reckoned */
+        void addMicros(long deltaTMicros, double roll, double pitch, double yaw,
+                       double lati, double longi, double alt, boolean posEstimated) {
+            if(count == 0) startMicros = deltaTMicros;
+            endMicros = deltaTMicros;
+
+            put(DELTA_T, deltaTMicros);
+            put(ROLL, quantize(ROLL, roll));
+            put(PITCH, quantize(PITCH, pitch));
+            put(YAW, quantize(YAW, yaw));
+            final long qLati = quantize(LATI, lati);
+            final long qLongi = quantize(LONGI, longi);
+            put(LATI, qLati);
+            put(LONGI, qLongi);
+            put(ALT, quantize(ALT, alt));
+            put(POS_ESTIMATED, posEstimated ? 1 : 0);
+
+            //Deltas wrap around, so NAN_QUANTUM comes back exactly, but it
+            //has no place in the bounding box
+            if(qLati != NAN_QUANTUM && qLongi != NAN_QUANTUM) {
+                minLati = Math.min(minLati, qLati);
+                maxLati = Math.max(maxLati, qLati);
+                minLongi = Math.min(minLongi, qLongi);
+                maxLongi = Math.max(maxLongi, qLongi);
+            }
+            count++;
+        }
+
+        /** Append a quantized value to a column as a delta from the last. */
+        private void put(int column, long value) {
+            columns[column].writeSigned(value - last[column]);
+            last[column] = value;
+        }
+
+        /** Get the number of samples in the segment so far */
+        int getCount() {
+            return count;
+        }
+
+        long getStartDeltaT() {
+            return startMicros / 1000L;
+        }
+
+        long getEndDeltaT() {
+            return endMicros / 1000L;
+        }
+
+        /** Get the southern edge of the positions so far; NaN if none */
+        double getMinLatitude() {
+            return minLati > maxLati ? Double.NaN : dequantize(LATI, minLati);
+        }
+
+        double getMaxLatitude() {
+            return minLati > maxLati ? Double.NaN : dequantize(LATI, maxLati);
+        }
+
+        double getMinLongitude() {
+            return minLati > maxLati ? Double.NaN : dequantize(LONGI, minLongi);
+        }
+
+        double getMaxLongitude() {
+            return minLati > maxLati ? Double.NaN : dequantize(LONGI, maxLongi);
+        }
+
+        /** Build the encoded segment from the samples added so far.
+         * @return a new byte array with the segment */
+        byte[] toByteArray() {
+            final VarintBuffer header = new VarintBuffer();
+            header.writeVarint(count);
+            header.writeSigned(getStartDeltaT());
+            header.writeSigned(getEndDeltaT());
+            header.writeSigned(minLati);
+            header.writeSigned(maxLati);
+            header.writeSigned(minLongi);
+            header.writeSigned(maxLongi);
+
+            int total = 1 + header.size;
+            for(final VarintBuffer column : columns) {
+                total += varintLength(column.size) + column.size;
+            }
+
+            final byte[] out = new byte[total];
+            out[0] = (byte) FORMAT_VERSION;
+            System.arraycopy(header.bytes, 0, out, 1, header.size);
+            int pos = 1 + header.size;
+            //Column lengths go first so the decoder can find every column
+            header.size = 0;
+            for(final VarintBuffer column : columns) {
+                header.writeVarint(column.size);
+            }
+            System.arraycopy(header.bytes, 0, out, pos, header.size);
+            pos += header.size;
+            for(final VarintBuffer column : columns) {
+                System.arraycopy(column.bytes, 0, out, pos, column.size);
+                pos += column.size;
+            }
+            return out;
+        }
+    }
+
+    /** Streams the samples out of a segment one at a time, reading all of the
+     * columns side by side. Reusable; call reset with each new segment. */
+    static final class Decoder {
+        private byte[] data;
+        /** Read position within each column */
+        private final int[] pos = new int[COLUMNS.length];
+        /** The current quantized value of each column */
+        private final long[] current = new long[COLUMNS.length];
+        /** Byte length of each column, from the header */
+        private final int[] lengths = new int[COLUMNS.length];
+        /** Number of columns stored in the segment; older versions have fewer,
+         * and the rest stay 0 */
+        private int columnCount;
+
+        private int count;
+        private int remaining;
+        /** Microseconds per unit of the delta t column; 1000 in version 1 */
+        private long microsPerDeltaT;
+        private long startDeltaT;
+        private long endDeltaT;
+        private long minLati, maxLati, minLongi, maxLongi;
+
+        /** Read position used while parsing the header */
+        private int headerPos;
+
+        /** Start decoding a new segment.
+         * @param segment a segment built by an Encoder
+         * @throws IllegalArgumentException if the segment format is unknown */
+        void reset(byte[] segment) {
+            data = segment;
+            if(segment[0] < 1 || segment[0] > FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown flight segment " +
+                        "version " + segment[0]);
+            }
+            microsPerDeltaT = segment[0] >= MICROS_VERSION ? 1L : 1000L;
+            columnCount = segment[0] >= POS_ESTIMATED_VERSION ?
+                    COLUMNS.length : POS_ESTIMATED;
+            headerPos = 1;
+            count = (int) readVarint();
+            startDeltaT = unzigzag(readVarint());
+            endDeltaT = unzigzag(readVarint());
+            minLati = unzigzag(readVarint());
+            maxLati = unzigzag(readVarint());
+            minLongi = unzigzag(readVarint());
+            maxLongi = unzigzag(readVarint());
+
+            for(int i = 0; i < columnCount; i++) {
+                lengths[i] = (int) readVarint();
+            }
+            int start = headerPos;
+            for(int i = 0; i < COLUMNS.length; i++) {
+                pos[i] = start;
+                if(i >= columnCount) lengths[i] = 0;
+                current[i] = 0;
+                start += lengths[i];
+            }
+            remaining = count;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[headerPos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return value;
+        }
+
+        /** Advance to the next sample of the segment.
+         * @return false if every sample has already been read */
+        boolean next() {
+            if(remaining == 0) return false;
+            for(int i = 0; i < columnCount; i++) {
+                int p = pos[i];
+                long value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[p++];
+                    value |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0);
+                pos[i] = p;
+                current[i] += unzigzag(value);
+            }
+            remaining--;
+            return true;
+        }
+
+        /** Get the number of samples in the segment */
+        int getCount() {
+            return count;
+        }
+
+        long getStartDeltaT() {
+            return startDeltaT;
+        }
+
+        long getEndDeltaT() {
+            return endDeltaT;
+        }
+
+        double getMinLatitude() {
+            return dequantize(LATI, minLati);
+        }
+
+        double getMaxLatitude() {
+            return dequantize(LATI, maxLati);
+        }
+
+        double getMinLongitude() {
+            return dequantize(LONGI, minLongi);
+        }
+
+        double getMaxLongitude() {
+            return dequantize(LONGI, maxLongi);
+        }
+
+        /** Get the current sample's value of a column (see COLUMNS) */
+        double get(int column) {
+            if(column == DELTA_T) return getDeltaT();
+            return dequantize(column, current[column]);
+        }
+
+        /** Whether the current sample's position was dead reckoned */
+        boolean isPosEstimated() {
+            return current[POS_ESTIMATED] != 0;
+        }
+
+        /** Get the current sample's delta t, in milliseconds */
+        long getDeltaT() {
+            return getDeltaTMicros() / 1000L;
+        }
+
+        /** Get the current sample's delta t, in microseconds */
+        long getDeltaTMicros() {
+            return current[DELTA_T] * microsPerDeltaT;
+        }
+    }
+}
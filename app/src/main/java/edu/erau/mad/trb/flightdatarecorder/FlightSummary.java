@@ -0,0 +1,232 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightSummary.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to hold the overall statistics of one flight. */
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/** The overall statistics of a flight: its sample count, time span, bounding
+ * box, altitude range and distance traveled. A summary is built up one sample
+ * at a time with {@link #add}, so it can be kept current while a flight is
+ * logged, and is stored in FlightLogDatabase.TABLE_FLIGHT_SUMMARY.
+ * <p>
+ * Samples logged before the first GPS fix have no position (see hasPosition);
+ * these count toward the sample count and time span, but not toward any of
+ * the position statistics. */
+public class FlightSummary {
+
+    /** Mean radius of the earth, in meters, for distance calculations */
+    private static final double EARTH_RADIUS_M = 6371008.8;
+    /** Meters in a nautical mile */
+    public static final double METERS_PER_NM = 1852.0;
+
+    private long pointCount = 0;
+    private long firstDeltaT = 0;
+    private long lastDeltaT = 0;
+
+    /** Number of samples that had a position fix */
+    private long positionCount = 0;
+    private double minLati, maxLati, minLongi, maxLongi;
+    private double minAlt, maxAlt;
+    private double distanceMeters = 0.0;
+
+    //Last position, to measure the distance to the next one
+    private double lastLati, lastLongi;
+
+    /** Create an empty summary, to add samples to. */
+    public FlightSummary() {}
+
+    /** Add a sample to the summary. Samples must be added in delta t order.
+     * @param deltaT milliseconds since the start of the flight
+     * @param lati latitude, in signed degrees
+     * @param longi longitude, in signed degrees
+     * @param alt altitude, in feet */
+    public void add(long deltaT, double lati, double longi, double alt) {
+        if(pointCount == 0) firstDeltaT = deltaT;
+        lastDeltaT = deltaT;
+        pointCount++;
+
+        if(!hasPosition(lati, longi)) return;
+
+        if(positionCount == 0) {
+            minLati = maxLati = lati;
+            minLongi = maxLongi = longi;
+            minAlt = maxAlt = alt;
+        } else {
+            minLati = Math.min(minLati, lati);
+            maxLati = Math.max(maxLati, lati);
+            minLongi = Math.min(minLongi, longi);
+            maxLongi = Math.max(maxLongi, longi);
+            minAlt = Math.min(minAlt, alt);
+            maxAlt = Math.max(maxAlt, alt);
+            distanceMeters += distanceBetween(lastLati, lastLongi, lati, longi);
+        }
+        lastLati = lati;
+        lastLongi = longi;
+        positionCount++;
+    }
+
+    /** Check whether a stored sample has a position, i.e. whether it was
+     * logged after the first GPS fix. Samples before it are stored without
+     * a position, so read back as NaN; flights logged before that was so
+     * stored them at exactly 0° N 0° E instead.
+     * @param lati latitude, in signed degrees
+     * @param longi longitude, in signed degrees */
+    public static boolean hasPosition(double lati, double longi) {
+        if(Double.isNaN(lati) || Double.isNaN(longi)) return false;
+        return lati != 0.0 || longi != 0.0;
+    }
+
+    /** Get the great-circle distance between two points, in meters, using the
+     * haversine formula.
+     * @param lati1 latitude of the first point, in degrees
+     * @param longi1 longitude of the first point, in degrees
+     * @param lati2 latitude of the second point, in degrees
+     * @param longi2 longitude of the second point, in degrees */
+    public static double distanceBetween(double lati1, double longi1,
+                                         double lati2, double longi2) {
+        final double phi1 = Math.toRadians(lati1);
+        final double phi2 = Math.toRadians(lati2);
+        final double sinDPhi = Math.sin((phi2 - phi1) / 2.0);
+        final double sinDLambda = Math.sin(Math.toRadians(longi2 - longi1) / 2.0);
+        final double a = sinDPhi * sinDPhi +
+                Math.cos(phi1) * Math.cos(phi2) * sinDLambda * sinDLambda;
+        return 2.0 * EARTH_RADIUS_M * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    /** Get the number of samples in the flight */
+    public long getPointCount() {
+        return pointCount;
+    }
+
+    /** Get the delta t, in milliseconds, of the first sample */
+    public long getFirstDeltaT() {
+        return firstDeltaT;
+    }
+
+    /** Get the delta t, in milliseconds, of the last sample */
+    public long getLastDeltaT() {
+        return lastDeltaT;
+    }
+
+    /** Get the logged duration, in milliseconds, from the first sample to
+     * the last */
+    public long getDurationMillis() {
+        return lastDeltaT - firstDeltaT;
+    }
+
+    /** Whether any sample had a position fix; if not, the position
+     * statistics are meaningless. */
+    public boolean hasPosition() {
+        return positionCount > 0;
+    }
+
+    public double getMinLatitude() {
+        return minLati;
+    }
+
+    public double getMaxLatitude() {
+        return maxLati;
+    }
+
+    public double getMinLongitude() {
+        return minLongi;
+    }
+
+    public double getMaxLongitude() {
+        return maxLongi;
+    }
+
+    /** Get the lowest altitude of the flight, in feet */
+    public double getMinAltitude() {
+        return minAlt;
+    }
+
+    /** Get the highest altitude of the flight, in feet */
+    public double getMaxAltitude() {
+        return maxAlt;
+    }
+
+    /** Get the total distance traveled, in meters, along the logged track */
+    public double getDistanceMeters() {
+        return distanceMeters;
+    }
+
+    /** Compile the statement that stores a summary with {@link #write}. */
+    static SQLiteStatement compileUpsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR REPLACE INTO " +
+                FlightLogDatabase.TABLE_FLIGHT_SUMMARY + "(" +
+                FlightLogDatabase.COL_FLIGHT_ID + ", " +
+                FlightLogDatabase.COL_SUM_POINTS + ", " +
+                FlightLogDatabase.COL_SUM_FIRST_DELTA_T + ", " +
+                FlightLogDatabase.COL_SUM_LAST_DELTA_T + ", " +
+                FlightLogDatabase.COL_SUM_MIN_LATI + ", " +
+                FlightLogDatabase.COL_SUM_MAX_LATI + ", " +
+                FlightLogDatabase.COL_SUM_MIN_LONGI + ", " +
+                FlightLogDatabase.COL_SUM_MAX_LONGI + ", " +
+                FlightLogDatabase.COL_SUM_MIN_ALT + ", " +
+                FlightLogDatabase.COL_SUM_MAX_ALT + ", " +
+                FlightLogDatabase.COL_SUM_DISTANCE + ", " +
+                FlightLogDatabase.COL_SUM_DURATION + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    /** Store this summary as the summary of a flight, replacing any older one.
+     * @param upsert a statement from compileUpsert
+     * @param flightID the ID of the flight this summarizes */
+    void write(SQLiteStatement upsert, long flightID) {
+        upsert.bindLong(1, flightID);
+        upsert.bindLong(2, pointCount);
+        upsert.bindLong(3, firstDeltaT);
+        upsert.bindLong(4, lastDeltaT);
+        if(hasPosition()) {
+            upsert.bindDouble(5, minLati);
+            upsert.bindDouble(6, maxLati);
+            upsert.bindDouble(7, minLongi);
+            upsert.bindDouble(8, maxLongi);
+            upsert.bindDouble(9, minAlt);
+            upsert.bindDouble(10, maxAlt);
+        } else {
+            for(int i = 5; i <= 10; i++) upsert.bindNull(i);
+        }
+        upsert.bindDouble(11, distanceMeters);
+        upsert.bindLong(12, getDurationMillis());
+        upsert.execute();
+    }
+
+    /** Read a stored summary from the current row of a cursor over
+     * TABLE_FLIGHT_SUMMARY. The cursor must have every summary column. */
+    static FlightSummary fromCursor(Cursor cursor) {
+        FlightSummary summary = new FlightSummary();
+        summary.pointCount = cursor.getLong(cursor.getColumnIndexOrThrow(
+                FlightLogDatabase.COL_SUM_POINTS));
+        summary.firstDeltaT = cursor.getLong(cursor.getColumnIndexOrThrow(
+                FlightLogDatabase.COL_SUM_FIRST_DELTA_T));
+        summary.lastDeltaT = cursor.getLong(cursor.getColumnIndexOrThrow(
+                FlightLogDatabase.COL_SUM_LAST_DELTA_T));
+        summary.distanceMeters = cursor.getDouble(cursor.getColumnIndexOrThrow(
+                FlightLogDatabase.COL_SUM_DISTANCE));
+
+        final int minLatiCol = cursor.getColumnIndexOrThrow(
+                FlightLogDatabase.COL_SUM_MIN_LATI);
+        if(!cursor.isNull(minLatiCol)) {
+            //The exact count isn't stored; any non-zero count means "has a fix"
+            summary.positionCount = 1;
+            summary.minLati = cursor.getDouble(minLatiCol);
+            summary.maxLati = cursor.getDouble(cursor.getColumnIndexOrThrow(
+                    FlightLogDatabase.COL_SUM_MAX_LATI));
+            summary.minLongi = cursor.getDouble(cursor.getColumnIndexOrThrow(
+                    FlightLogDatabase.COL_SUM_MIN_LONGI));
+            summary.maxLongi = cursor.getDouble(cursor.getColumnIndexOrThrow(
+                    FlightLogDatabase.COL_SUM_MAX_LONGI));
+            summary.minAlt = cursor.getDouble(cursor.getColumnIndexOrThrow(
+                    FlightLogDatabase.COL_SUM_MIN_ALT));
+            summary.maxAlt = cursor.getDouble(cursor.getColumnIndexOrThrow(
+                    FlightLogDatabase.COL_SUM_MAX_ALT));
+        }
+        return summary;
+    }
+}
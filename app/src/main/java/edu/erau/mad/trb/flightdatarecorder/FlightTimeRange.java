@@ -0,0 +1,45 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightTimeRange.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to identify a span of time within one flight. */
+
+/** A span of time within one flight, such as the part of a flight spent
+ * within an area; see FlightLogDatabase.findFlightsInArea. Times are delta t
+ * values, in milliseconds since the start of the flight. */
+public class FlightTimeRange {
+
+    private final long flightID;
+    private final long startDeltaT;
+    private final long endDeltaT;
+
+    /** Create a time range.
+     * @param flightID the ID of the flight the range is within
+     * @param startDeltaT the start of the range, in ms since the flight started
+     * @param endDeltaT the end of the range, in ms since the flight started */
+    public FlightTimeRange(long flightID, long startDeltaT, long endDeltaT) {
+        this.flightID = flightID;
+        this.startDeltaT = startDeltaT;
+        this.endDeltaT = endDeltaT;
+    }
+
+    /** Get the ID of the flight the range is within */
+    public long getFlightID() {
+        return flightID;
+    }
+
+    /** Get the start of the range, in milliseconds since the flight started */
+    public long getStartDeltaT() {
+        return startDeltaT;
+    }
+
+    /** Get the end of the range, in milliseconds since the flight started */
+    public long getEndDeltaT() {
+        return endDeltaT;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Flight %d, %d-%d ms", flightID, startDeltaT, endDeltaT);
+    }
+}
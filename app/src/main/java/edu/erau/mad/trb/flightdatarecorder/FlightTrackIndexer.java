@@ -0,0 +1,158 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightTrackIndexer.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to add a flight's track to the spatial index as it is logged. */
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/** Cuts the track of a flight into short runs of positions and stores the
+ * bounding box of each run in the spatial index (TABLE_TRACK_INDEX), along
+ * with the time range it covers (TABLE_TRACK_BOXES). Consecutive boxes share
+ * their boundary position, so the leg between two runs is always covered.
+ * <p>
+ * Positions must be added from within a write transaction. Completed boxes
+ * are written as they fill; the box being filled is written by
+ * {@link #writeOpenBox()} and updated in place as it grows, so the index
+ * always covers every committed position. Used internally by
+ * FlightLogDatabase. */
+class FlightTrackIndexer {
+
+    /** Number of positions per box. Small enough that a box of a straight
+     * leg stays tight, large enough to keep the index at a fraction of the
+     * size of the flight data. */
+    static final int BOX_SAMPLES = 30;
+
+    /** The flight being indexed */
+    private final long flightID;
+
+    //Compiled statements: add a box and its bounds, or update the open one
+    private final SQLiteStatement insertBox;
+    private final SQLiteStatement updateBox;
+    private final SQLiteStatement insertBounds;
+    private final SQLiteStatement updateBounds;
+
+    /** ID of the open box, or -1 if it has not been written yet */
+    private long boxID = -1;
+    /** Number of positions in the open box */
+    private int count = 0;
+    /** Whether the open box has changed since it was last written */
+    private boolean dirty = false;
+
+    //Contents of the open box
+    private long startDeltaT, endDeltaT;
+    private double minLati, maxLati, minLongi, maxLongi;
+    //Last position of the open box, to seed the next one
+    private double endLati, endLongi;
+
+    /** Create an indexer for a flight with no boxes stored yet.
+     * @param db the database connection boxes are written through
+     * @param flightID the ID of the flight being indexed */
+    FlightTrackIndexer(SQLiteDatabase db, long flightID) {
+        this.flightID = flightID;
+
+        insertBox = db.compileStatement("INSERT INTO " +
+                FlightLogDatabase.TABLE_TRACK_BOXES + "(" +
+                FlightLogDatabase.COL_FLIGHT_ID + ", " +
+                FlightLogDatabase.COL_BOX_START + ", " +
+                FlightLogDatabase.COL_BOX_END + ") VALUES (?, ?, ?)");
+        updateBox = db.compileStatement("UPDATE " +
+                FlightLogDatabase.TABLE_TRACK_BOXES + " SET " +
+                FlightLogDatabase.COL_BOX_END + "=? WHERE " +
+                FlightLogDatabase.COL_BOX_ID + "=?");
+        insertBounds = db.compileStatement("INSERT INTO " +
+                FlightLogDatabase.TABLE_TRACK_INDEX + "(" +
+                FlightLogDatabase.COL_BOX_ID + ", " +
+                FlightLogDatabase.COL_BOX_MIN_LATI + ", " +
+                FlightLogDatabase.COL_BOX_MAX_LATI + ", " +
+                FlightLogDatabase.COL_BOX_MIN_LONGI + ", " +
+                FlightLogDatabase.COL_BOX_MAX_LONGI + ") VALUES (?, ?, ?, ?, ?)");
+        updateBounds = db.compileStatement("UPDATE " +
+                FlightLogDatabase.TABLE_TRACK_INDEX + " SET " +
+                FlightLogDatabase.COL_BOX_MIN_LATI + "=?, " +
+                FlightLogDatabase.COL_BOX_MAX_LATI + "=?, " +
+                FlightLogDatabase.COL_BOX_MIN_LONGI + "=?, " +
+                FlightLogDatabase.COL_BOX_MAX_LONGI + "=? WHERE " +
+                FlightLogDatabase.COL_BOX_ID + "=?");
+    }
+
+    /** Add a sample's position to the track. Samples without a position fix
+     * (see FlightSummary.hasPosition) are skipped. Samples must be added in
+     * delta t order.
+     * @param deltaT milliseconds since the start of the flight
+     * @param lati latitude, in signed degrees
+     * @param longi longitude, in signed degrees */
+    void add(long deltaT, double lati, double longi) {
+        if(!FlightSummary.hasPosition(lati, longi)) return;
+
+        if(count >= BOX_SAMPLES) {
+            //Close this box; the next one starts at its last position
+            writeOpenBox();
+            boxID = -1;
+            count = 0;
+            include(endDeltaT, endLati, endLongi);
+        }
+        include(deltaT, lati, longi);
+    }
+
+    /** Grow the open box to include a position. */
+    private void include(long deltaT, double lati, double longi) {
+        if(count == 0) {
+            startDeltaT = deltaT;
+            minLati = maxLati = lati;
+            minLongi = maxLongi = longi;
+        } else {
+            minLati = Math.min(minLati, lati);
+            maxLati = Math.max(maxLati, lati);
+            minLongi = Math.min(minLongi, longi);
+            maxLongi = Math.max(maxLongi, longi);
+        }
+        endDeltaT = deltaT;
+        endLati = lati;
+        endLongi = longi;
+        count++;
+        dirty = true;
+    }
+
+    /** Write the open box, if it has changed, so the index covers every
+     * position added so far. Must be called within a write transaction. */
+    void writeOpenBox() {
+        if(!dirty) return;
+
+        if(boxID < 0) {
+            insertBox.bindLong(1, flightID);
+            insertBox.bindLong(2, startDeltaT);
+            insertBox.bindLong(3, endDeltaT);
+            boxID = insertBox.executeInsert();
+
+            insertBounds.bindLong(1, boxID);
+            insertBounds.bindDouble(2, minLati);
+            insertBounds.bindDouble(3, maxLati);
+            insertBounds.bindDouble(4, minLongi);
+            insertBounds.bindDouble(5, maxLongi);
+            insertBounds.executeInsert();
+        } else {
+            updateBox.bindLong(1, endDeltaT);
+            updateBox.bindLong(2, boxID);
+            updateBox.executeUpdateDelete();
+
+            updateBounds.bindDouble(1, minLati);
+            updateBounds.bindDouble(2, maxLati);
+            updateBounds.bindDouble(3, minLongi);
+            updateBounds.bindDouble(4, maxLongi);
+            updateBounds.bindLong(5, boxID);
+            updateBounds.executeUpdateDelete();
+        }
+        dirty = false;
+    }
+
+    /** Release the compiled statements. Anything not yet written with
+     * writeOpenBox is discarded. */
+    void close() {
+        insertBox.close();
+        updateBox.close();
+        insertBounds.close();
+        updateBounds.close();
+    }
+}
@@ -0,0 +1,175 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightTrackLodBuilder.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to build the level-of-detail pyramid of a flight's track. */
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/** Builds the level-of-detail pyramid of a flight's track in a single pass
+ * over its samples. Level 0 holds every position; each level above it keeps
+ * every LEVEL_FACTOR-th position of the one below, up to a top level that
+ * fits in a single tile. A packed flight's level 0 is its segments, which
+ * already hold every position, so only the levels above it are stored, and
+ * always at least one of them. Every level is cut into tiles of up to TILE_POINTS
+ * consecutive positions, encoded with FlightSegmentCodec, and stored in
+ * FlightLogDatabase.TABLE_TRACK_LOD with their time range and bounding box.
+ * Consecutive tiles of a level share their boundary position, so drawing
+ * any set of adjacent tiles gives an unbroken line. Every level also ends at
+ * the last position of the flight. Used internally by FlightLogDatabase. */
+class FlightTrackLodBuilder {
+
+    /** Most positions in one tile */
+    static final int TILE_POINTS = 256;
+    /** Ratio of the number of positions of one level to the next one up */
+    static final int LEVEL_FACTOR = 4;
+
+    /** The flight being built */
+    private final long flightID;
+    /** The compiled tile insert */
+    private final SQLiteStatement insert;
+
+    /** The lowest level stored; 1 if level 0 is the flight's segments */
+    private final int firstLevel;
+    /** Tile being filled, for every level stored; null for the others */
+    private final FlightSegmentCodec.Encoder[] encoders;
+    /** Number of the tile being filled, for every level */
+    private final int[] tileNumbers;
+    /** Position number last added to every level */
+    private final long[] lastAdded;
+
+    /** Number of positions added so far */
+    private long positions = 0;
+
+    //The last position added, to end every level on
+    private long lastDeltaT;
+    private double lastRoll, lastPitch, lastYaw, lastLati, lastLongi, lastAlt;
+
+    /** Create a builder for a flight with no pyramid stored.
+     * @param db the database connection tiles are written through; tiles
+     *           must be added within a write transaction
+     * @param flightID the ID of the flight being built
+     * @param maxPositions the most positions that will be added, which
+     *                     decides the number of levels
+     * @param packed whether the flight is packed into segments, which then
+     *               stand in for level 0 */
+    FlightTrackLodBuilder(SQLiteDatabase db, long flightID, long maxPositions,
+                          boolean packed) {
+        this.flightID = flightID;
+        firstLevel = packed ? 1 : 0;
+
+        int levels = 1;
+        for(long points = maxPositions; points > TILE_POINTS; levels++) {
+            points = (points + LEVEL_FACTOR - 1) / LEVEL_FACTOR;
+        }
+        levels = Math.max(levels, firstLevel + 1);
+        encoders = new FlightSegmentCodec.Encoder[levels];
+        for(int i = firstLevel; i < levels; i++) {
+            encoders[i] = new FlightSegmentCodec.Encoder();
+        }
+        tileNumbers = new int[levels];
+        lastAdded = new long[levels];
+
+        insert = db.compileStatement("INSERT OR REPLACE INTO " +
+                FlightLogDatabase.TABLE_TRACK_LOD + "(" +
+                FlightLogDatabase.COL_FLIGHT_ID + ", " +
+                FlightLogDatabase.COL_LOD_LEVEL + ", " +
+                FlightLogDatabase.COL_LOD_TILE + ", " +
+                FlightLogDatabase.COL_SEG_START + ", " +
+                FlightLogDatabase.COL_SEG_END + ", " +
+                FlightLogDatabase.COL_SEG_COUNT + ", " +
+                FlightLogDatabase.COL_SEG_MIN_LATI + ", " +
+                FlightLogDatabase.COL_SEG_MAX_LATI + ", " +
+                FlightLogDatabase.COL_SEG_MIN_LONGI + ", " +
+                FlightLogDatabase.COL_SEG_MAX_LONGI + ", " +
+                FlightLogDatabase.COL_SEG_DATA + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    /** Add a sample to the pyramid. Samples without a position fix (see
+     * FlightSummary.hasPosition) are skipped. Samples must be added in delta
+     * t order. */
+    void add(long deltaT, double roll, double pitch, double yaw,
+             double lati, double longi, double alt) {
+        if(!FlightSummary.hasPosition(lati, longi)) return;
+
+        long stride = 1;
+        for(int level = 0; level < encoders.length; level++) {
+            if(positions % stride != 0) break;
+            if(level >= firstLevel) {
+                addToLevel(level, deltaT, roll, pitch, yaw, lati, longi, alt);
+            }
+            stride *= LEVEL_FACTOR;
+        }
+
+        lastDeltaT = deltaT;
+        lastRoll = roll;
+        lastPitch = pitch;
+        lastYaw = yaw;
+        lastLati = lati;
+        lastLongi = longi;
+        lastAlt = alt;
+        positions++;
+    }
+
+    /** Add a position to one level, storing its tile once it is full. */
+    private void addToLevel(int level, long deltaT, double roll, double pitch,
+                            double yaw, double lati, double longi, double alt) {
+        final FlightSegmentCodec.Encoder encoder = encoders[level];
+        encoder.add(deltaT, roll, pitch, yaw, lati, longi, alt);
+        lastAdded[level] = positions;
+
+        if(encoder.getCount() >= TILE_POINTS) {
+            writeTile(level);
+            //The next tile starts where this one ended
+            encoder.reset();
+            encoder.add(deltaT, roll, pitch, yaw, lati, longi, alt);
+        }
+    }
+
+    /** Store the tile being filled at a level. */
+    private void writeTile(int level) {
+        final FlightSegmentCodec.Encoder encoder = encoders[level];
+        insert.bindLong(1, flightID);
+        insert.bindLong(2, level);
+        insert.bindLong(3, tileNumbers[level]++);
+        insert.bindLong(4, encoder.getStartDeltaT());
+        insert.bindLong(5, encoder.getEndDeltaT());
+        insert.bindLong(6, encoder.getCount());
+        insert.bindDouble(7, encoder.getMinLatitude());
+        insert.bindDouble(8, encoder.getMaxLatitude());
+        insert.bindDouble(9, encoder.getMinLongitude());
+        insert.bindDouble(10, encoder.getMaxLongitude());
+        insert.bindBlob(11, encoder.toByteArray());
+        insert.executeInsert();
+    }
+
+    /** Store the partly filled tiles of every level, ending each level at
+     * the last position. Must be called within the same write transaction
+     * as the tiles. */
+    void finish() {
+        if(positions == 0) return;
+        for(int level = firstLevel; level < encoders.length; level++) {
+            if(lastAdded[level] != positions - 1) {
+                encoders[level].add(lastDeltaT, lastRoll, lastPitch, lastYaw,
+                        lastLati, lastLongi, lastAlt);
+            }
+            //A lone point is just the end of the last full tile
+            final int count = encoders[level].getCount();
+            if(count > 1 || (count == 1 && tileNumbers[level] == 0)) {
+                writeTile(level);
+            }
+        }
+    }
+
+    /** Release the compiled statement. The builder must not be used afterward. */
+    void close() {
+        insert.close();
+    }
+
+    /** Get the number of levels of the pyramid */
+    int getLevelCount() {
+        return encoders.length;
+    }
+}
@@ -0,0 +1,144 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* FlightTrackSimplifier.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to choose which samples of a flight to keep when compacting it. */
+
+import java.util.Arrays;
+
+/** Chooses the samples of a flight to keep when FlightLogDatabase compacts
+ * it under a FlightRetentionPolicy, either by lowering its sample rate or by
+ * simplifying the shape of its track. Samples are given a bounded chunk at a
+ * time, column by column in delta t order, and the choice is made into a
+ * boolean array. The first and last samples of a flight are always kept, so
+ * a compacted flight spans the same time. */
+final class FlightTrackSimplifier {
+
+    /** Meters in one degree of latitude, near enough */
+    private static final double METERS_PER_DEGREE = 111319.49;
+    /** Meters in a foot; altitudes are in feet */
+    private static final double METERS_PER_FOOT = 0.3048;
+
+    /** Not instantiable; all methods are static. */
+    private FlightTrackSimplifier() {}
+
+    /** Keep one sample in every interval of time: each sample at least the
+     * interval after the last one kept.
+     * @param deltaTs the delta t of each sample
+     * @param count the number of samples
+     * @param intervalMillis the shortest time between kept samples
+     * @param next the earliest delta t the first sample is kept at; the
+     *             delta t of the last sample kept from the chunk before, plus
+     *             the interval, or Long.MIN_VALUE for the first chunk
+     * @param keepLast whether the last sample is kept regardless, as the
+     *                 end of the flight
+     * @param keep set to whether each sample is kept
+     * @return the number of samples kept */
+    static int downsample(long[] deltaTs, int count, long intervalMillis, long next,
+                          boolean keepLast, boolean[] keep) {
+        int kept = 0;
+        for(int i = 0; i < count; i++) {
+            keep[i] = deltaTs[i] >= next || (keepLast && i == count - 1);
+            if(keep[i]) {
+                kept++;
+                next = deltaTs[i] + intervalMillis;
+            }
+        }
+        return kept;
+    }
+
+    /** Keep only the samples that give the track its shape, by the
+     * Douglas-Peucker algorithm: of any run of positions, only those further
+     * than a tolerance from the line between the run's ends are kept, in
+     * three dimensions, altitude included. Samples without a position fix
+     * have no place in the shape, and are dropped. Both ends of the chunk
+     * are kept, so chunks that share their end samples join up.
+     * @param latis latitude of each sample, in signed degrees
+     * @param longis longitude of each sample, in signed degrees
+     * @param alts altitude of each sample, in feet
+     * @param count the number of samples
+     * @param toleranceMeters how far the simplified track may stray from
+     *                        the original
+     * @param keep set to whether each sample is kept
+     * @return the number of samples kept */
+    static int simplify(double[] latis, double[] longis, double[] alts, int count,
+                        double toleranceMeters, boolean[] keep) {
+        Arrays.fill(keep, 0, count, false);
+        if(count == 0) return 0;
+        keep[0] = true;
+        keep[count - 1] = true;
+
+        //Positions, in meters from the first, of the samples that have one
+        int[] fixed = new int[count];
+        int fixedCount = 0;
+        for(int i = 0; i < count; i++) {
+            if(FlightSummary.hasPosition(latis[i], longis[i])) fixed[fixedCount++] = i;
+        }
+        if(fixedCount == 0) return count == 1 ? 1 : 2;
+
+        final double refLati = latis[fixed[0]], refLongi = longis[fixed[0]];
+        final double metersPerDegreeLongi = METERS_PER_DEGREE *
+                Math.cos(Math.toRadians(refLati));
+        final double[] x = new double[fixedCount];
+        final double[] y = new double[fixedCount];
+        final double[] z = new double[fixedCount];
+        for(int i = 0; i < fixedCount; i++) {
+            x[i] = (longis[fixed[i]] - refLongi) * metersPerDegreeLongi;
+            y[i] = (latis[fixed[i]] - refLati) * METERS_PER_DEGREE;
+            z[i] = alts[fixed[i]] * METERS_PER_FOOT;
+        }
+        keep[fixed[0]] = true;
+        keep[fixed[fixedCount - 1]] = true;
+
+        //Runs still to check, as pairs of first and last; no recursion, so
+        //a long flight can't overflow the stack
+        int[] runs = new int[64];
+        int runCount = 0;
+        runs[runCount++] = 0;
+        runs[runCount++] = fixedCount - 1;
+        final double toleranceSquared = toleranceMeters * toleranceMeters;
+        while(runCount > 0) {
+            final int last = runs[--runCount];
+            final int first = runs[--runCount];
+            if(last - first < 2) continue;
+
+            int farthest = -1;
+            double farthestSquared = toleranceSquared;
+            for(int i = first + 1; i < last; i++) {
+                final double d = distanceSquaredToSegment(x, y, z, i, first, last);
+                if(d > farthestSquared) {
+                    farthest = i;
+                    farthestSquared = d;
+                }
+            }
+            if(farthest < 0) continue;
+
+            keep[fixed[farthest]] = true;
+            if(runCount + 4 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+            runs[runCount++] = first;
+            runs[runCount++] = farthest;
+            runs[runCount++] = farthest;
+            runs[runCount++] = last;
+        }
+
+        int kept = 0;
+        for(int i = 0; i < count; i++) {
+            if(keep[i]) kept++;
+        }
+        return kept;
+    }
+
+    /** Get the square of the distance from point p to the line segment from
+     * point a to point b. */
+    private static double distanceSquaredToSegment(double[] x, double[] y, double[] z,
+                                                   int p, int a, int b) {
+        final double abx = x[b] - x[a], aby = y[b] - y[a], abz = z[b] - z[a];
+        final double apx = x[p] - x[a], apy = y[p] - y[a], apz = z[p] - z[a];
+        final double lengthSquared = abx * abx + aby * aby + abz * abz;
+        double t = lengthSquared == 0.0 ? 0.0 :
+                (apx * abx + apy * aby + apz * abz) / lengthSquared;
+        t = Math.max(0.0, Math.min(1.0, t));
+        final double dx = apx - t * abx, dy = apy - t * aby, dz = apz - t * abz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
@@ -4,10 +4,15 @@ package edu.erau.mad.trb.flightdatarecorder;
  * by Thomas Bassa
  * A Java class to handle the list of flights and its manipulation. */
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBarActivity;
+import android.support.v7.widget.SearchView;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.Toast;
@@ -17,10 +22,14 @@ import android.widget.Toast;
 public class HistoryActivity extends ActionBarActivity implements
         HistoryFragment.ListItemClickListener {
 
+    /** Request code for picking a file to import */
+    private static final int REQUEST_IMPORT = 1;
+
     /** The database, which is reset as a result of an action bar... action */
     private FlightLogDatabase database;
 
-    //private HistoryFragment histFrag;
+    /** The list of flights */
+    private HistoryFragment histFrag;
 
     //Called when the activity is created. Simply grabs a database instance.
     @Override
@@ -28,7 +37,7 @@ public class HistoryActivity extends ActionBarActivity implements
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_history);
         database = FlightLogDatabase.getInstance(this);
-        //histFrag = (HistoryFragment) getFragmentManager().findFragmentById(R.id.histFrag);
+        histFrag = (HistoryFragment) getFragmentManager().findFragmentById(R.id.histFrag);
     }
 
     //Initialize the action bar menu items.
@@ -36,6 +45,24 @@ public class HistoryActivity extends ActionBarActivity implements
     public boolean onCreateOptionsMenu(Menu menu) {
         //Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_history, menu);
+
+        //Search as the user types
+        final SearchView search = (SearchView) MenuItemCompat.getActionView(
+                menu.findItem(R.id.action_search));
+        search.setQueryHint(getText(R.string.searchHint));
+        search.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                histFrag.setSearch(FlightSearch.fromQueryText(query));
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                histFrag.setSearch(FlightSearch.fromQueryText(newText));
+                return true;
+            }
+        });
         return true;
     }
 
@@ -43,12 +70,17 @@ public class HistoryActivity extends ActionBarActivity implements
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch(item.getItemId()) {
-            /*case R.id.action_export:
-                //TO-DO switch HistoryFragment to multiple-select mode...
-                Toast.makeText(this, "Export will be implemented.",
-                        Toast.LENGTH_SHORT).show();
+            case R.id.action_export:
+                //Selected flights are exported from the fragment's own actions
+                histFrag.exportAllFlights();
+                return true;
+            case R.id.action_import:
+                //Let the user pick a file from any app that has one
+                Intent pick = new Intent(Intent.ACTION_GET_CONTENT);
+                pick.setType("*/*");
+                pick.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(pick, REQUEST_IMPORT);
                 return true;
-            */
             case R.id.action_delete_all:
                 //Reset the database
                 //Pop dialog to confirm database wipe
@@ -57,13 +89,18 @@ public class HistoryActivity extends ActionBarActivity implements
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         //This is executed on confirm!
-                        //Stop the LoggingService so it doesn't run into DB troubles
+                        //Stop the LoggingService; its flight goes too
                         stopService(new Intent(HistoryActivity.this, LoggingService.class));
-                        //Reset the database
-                        database.reset();
-                        //Inform the user it's done
-                        Toast.makeText(HistoryActivity.this, R.string.historyErased,
-                                Toast.LENGTH_LONG).show();
+                        //Reset the database in the background
+                        final Context appContext = getApplicationContext();
+                        database.resetInBackground(new FlightLogDatabase.OnFlightsDeletedListener() {
+                            @Override
+                            public void onFlightsDeleted(int count) {
+                                //Inform the user it's done
+                                Toast.makeText(appContext, R.string.historyErased,
+                                        Toast.LENGTH_LONG).show();
+                            }
+                        });
                         //Kill this activity since its data is invalid and not needed
                         finish();
                     }
@@ -79,6 +116,53 @@ public class HistoryActivity extends ActionBarActivity implements
         }
     }
 
+    //Called with the file picked to import
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if(requestCode == REQUEST_IMPORT) {
+            if(resultCode == RESULT_OK && data != null && data.getData() != null) {
+                importFlight(data.getData());
+            }
+        } else {
+            super.onActivityResult(requestCode, resultCode, data);
+        }
+    }
+
+    /** Import a GPX or CSV file as a new flight, showing its progress. */
+    private void importFlight(Uri uri) {
+        final ProgressDialog progress = new ProgressDialog(this);
+        progress.setMessage(getText(R.string.importing));
+        progress.setIndeterminate(true);
+        progress.setCancelable(false);
+        progress.show();
+
+        final Context appContext = getApplicationContext();
+        new FlightImporter(this).importInBackground(uri, new FlightImporter.ImportListener() {
+            @Override
+            public void onImportProgress(long samples, long bytesRead, long totalBytes) {
+                if(totalBytes <= 0 || isFinishing()) return;
+                progress.setIndeterminate(false);
+                progress.setMax(100);
+                progress.setProgress((int) (100 * bytesRead / totalBytes));
+            }
+
+            @Override
+            public void onImportFinished(long flightID, long samples) {
+                Toast.makeText(appContext, appContext.getString(R.string.flightImported,
+                        samples), Toast.LENGTH_LONG).show();
+                if(isFinishing()) return;
+                progress.dismiss();
+                histFrag.refresh();
+            }
+
+            @Override
+            public void onImportFailed(Exception e) {
+                Toast.makeText(appContext, R.string.importFailed, Toast.LENGTH_LONG).show();
+                if(!isFinishing()) progress.dismiss();
+            }
+        });
+    }
+
     //Override from the HistoryFragment interface;
     //reacts to list clicks by opening the DetailActivity with associated ID
     @Override
@@ -5,20 +5,35 @@ package edu.erau.mad.trb.flightdatarecorder;
  * A Java class to handle the list of flights. */
 
  import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.ListFragment;
-import android.database.Cursor;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.support.v4.content.FileProvider;
+import android.view.ActionMode;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
+import android.widget.Toast;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
-/** A Fragment that contains the list of flights */
+/** A Fragment that contains the list of flights, loaded a page at a time by
+ * a FlightHistoryAdapter. Long-pressing a flight starts selecting flights,
+ * which can then be exported or deleted together. */
 public class HistoryFragment extends ListFragment implements
-        SimpleCursorAdapter.ViewBinder {
+        AbsListView.MultiChoiceModeListener {
 
     /** A listener for list item clicks (invoked on container Activity) */
     private ListItemClickListener mListener;
@@ -26,13 +41,20 @@ public class HistoryFragment extends ListFragment implements
     /** A database connection */
     private FlightLogDatabase database;
 
+    /** The flights in the list */
+    private FlightHistoryAdapter adapter;
+
+    /** The export choices, in the order of R.array.exportFormats */
+    private static final FlightExporter.Format[] EXPORT_FORMATS = {
+            FlightExporter.Format.CSV, FlightExporter.Format.CSV,
+            FlightExporter.Format.GPX, FlightExporter.Format.KML};
+    /** Whether each export choice is gzipped */
+    private static final boolean[] EXPORT_GZIP = {false, true, false, false};
+
     /** Mandatory empty constructor for the fragment manager to instantiate the
      * fragment (e.g. upon screen orientation changes). */
     public HistoryFragment() { }
 
-    //TO-DO implement multiple selection lists for delete & export
-    //TO-DO close the cursors you're using, with lifecycle methods
-
     //Fragment lifecycle methods
     //Called when fragment first binds to activity; casts to interface, gets DB
     @Override
@@ -49,25 +71,13 @@ public class HistoryFragment extends ListFragment implements
     }
 
     //Called when fragment is first created, used to initialize list
+    //The first page of flights loads in the background
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        //Get list of flights in cursor form
-        Cursor flightsCursor = database.getAllFlights();
-
-        //Map columns to list row Views
-        final String[] fromCols = {FlightLogDatabase.COL_START_REAL,
-                FlightLogDatabase.COL_END_REAL};
-        //TO-DO Implement a better layout, multiple selection layout
-        final int[] toViews = {android.R.id.text1, android.R.id.text2};
-
-        //Build an adapter using the above
-        SimpleCursorAdapter adapter = new SimpleCursorAdapter(getActivity(),
-                android.R.layout.two_line_list_item, flightsCursor, fromCols, toViews, 0);
-        adapter.setViewBinder(this);
-
-        //Give it to our list
+        adapter = new FlightHistoryAdapter(getActivity());
         setListAdapter(adapter);
+        adapter.refresh();
     }
 
     //Called to initialize the view of this Fragment
@@ -76,6 +86,21 @@ public class HistoryFragment extends ListFragment implements
         return inflater.inflate(R.layout.fragment_history, container, false);
     }
 
+    //Called once the view exists; turns on multiple selection
+    @Override
+    public void onViewCreated(View view, Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        getListView().setChoiceMode(AbsListView.CHOICE_MODE_MULTIPLE_MODAL);
+        getListView().setMultiChoiceModeListener(this);
+    }
+
+    //Called when the fragment is done with; stops any page load
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        adapter.close();
+    }
+
     //Called when the fragment is removed from its activity
     @Override
     public void onDetach() {
@@ -94,25 +119,151 @@ public class HistoryFragment extends ListFragment implements
         }
     }
 
-    //Implementation of ViewBinder interface, used by SimpleCursorAdapter
-    // Used to populate the ListView sub-elements with human-readable times.
+    //MultiChoiceModeListener implementation, for selecting flights
+    //Called when selection starts; shows the selection actions
+    @Override
+    public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+        mode.getMenuInflater().inflate(R.menu.menu_history_selection, menu);
+        return true;
+    }
+
+    //Called when the selection actions need updating; they never do
+    @Override
+    public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+        return false;
+    }
+
+    //Called when a flight is selected or deselected
+    @Override
+    public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                          boolean checked) {
+        mode.setTitle(getString(R.string.flightsSelected,
+                getListView().getCheckedItemCount()));
+    }
+
+    //Called when a selection action is clicked
+    @Override
+    public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+        switch(item.getItemId()) {
+            case R.id.action_export:
+                exportFlights(getListView().getCheckedItemIds());
+                mode.finish();
+                return true;
+            case R.id.action_delete:
+                //Deleted in the background; the list is refreshed after
+                database.deleteFlights(getListView().getCheckedItemIds(),
+                        new FlightLogDatabase.OnFlightsDeletedListener() {
+                            @Override
+                            public void onFlightsDeleted(int count) {
+                                if(!isAdded()) return;
+                                Toast.makeText(getActivity(), getString(
+                                        R.string.flightsDeleted, count),
+                                        Toast.LENGTH_SHORT).show();
+                                refresh();
+                            }
+                        });
+                mode.finish();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //Called when selection ends
     @Override
-    public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
-        boolean handled = false;
-        //If the cursor is pointed at a time...
-        if(columnIndex == cursor.getColumnIndex(FlightLogDatabase.COL_START_REAL)
-                || columnIndex == cursor.getColumnIndex(FlightLogDatabase.COL_END_REAL)) {
-            //And we want to change a textview...
-            if(view instanceof TextView) {
-                //Convert it to a human-readable time.
-                final TextView text = (TextView) view;
-                text.setText(String.format("%ta %<tb %<te %<tY - %<tr",
-                        cursor.getLong(columnIndex)));
-                handled = true;
+    public void onDestroyActionMode(ActionMode mode) {}
+
+    /** Reload the list of flights from the database in the background. */
+    void refresh() {
+        adapter.refresh();
+    }
+
+    /** Show only the flights a search finds.
+     * @param search the flights to show; an empty search shows them all */
+    void setSearch(FlightSearch search) {
+        adapter.setSearch(search);
+    }
+
+    /** Export every flight, including those not loaded into the list yet.
+     * They are looked up along with the export, off of the UI thread. */
+    void exportAllFlights() {
+        exportFlights(null);
+    }
+
+    /** Ask which format to export flights to, then export them in the
+     * background and offer to share the files once done.
+     * @param flightIDs the IDs of the flights to export; null for every flight */
+    private void exportFlights(final long[] flightIDs) {
+        if(flightIDs != null && flightIDs.length == 0) {
+            Toast.makeText(getActivity(), R.string.noHistory, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.action_export)
+                .setItems(R.array.exportFormats, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final FlightExporter.Format format = EXPORT_FORMATS[which];
+                        final boolean gzip = EXPORT_GZIP[which];
+                        Toast.makeText(getActivity(), flightIDs != null ?
+                                getString(R.string.exportStarted, flightIDs.length) :
+                                getString(R.string.exportAllStarted),
+                                Toast.LENGTH_SHORT).show();
+                        final FlightExporter.OnExportFinishedListener listener =
+                                new FlightExporter.OnExportFinishedListener() {
+                                    @Override
+                                    public void onExportFinished(List<File> files,
+                                                                 int failures) {
+                                        if(!isAdded()) return;
+                                        if(files.isEmpty() && failures == 0) {
+                                            Toast.makeText(getActivity(), R.string.noHistory,
+                                                    Toast.LENGTH_SHORT).show();
+                                        }
+                                        if(failures > 0) {
+                                            Toast.makeText(getActivity(), getString(
+                                                    R.string.exportFailed, failures),
+                                                    Toast.LENGTH_LONG).show();
+                                        }
+                                        if(!files.isEmpty()) {
+                                            shareFiles(files, format.getMimeType(gzip));
+                                        }
+                                    }
+                                };
+                        final FlightExporter exporter = new FlightExporter(getActivity());
+                        if(flightIDs != null) {
+                            exporter.export(flightIDs, format, gzip, listener);
+                        } else {
+                            exporter.exportAll(format, gzip, listener);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    /** Offer exported files to whichever app the user picks, as content URIs
+     * it is allowed to read, rather than file paths it may not be. */
+    private void shareFiles(List<File> files, String mimeType) {
+        final ArrayList<Uri> uris = new ArrayList<>(files.size());
+        for(final File file : files) {
+            uris.add(FileProvider.getUriForFile(getActivity(),
+                    FlightExporter.FILE_PROVIDER_AUTHORITY, file));
+        }
+        final Intent send = new Intent(Intent.ACTION_SEND_MULTIPLE)
+                .setType(mimeType)
+                .putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris)
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            //The grant only carries over to the streams from Jelly Bean on
+            final List<ResolveInfo> targets = getActivity().getPackageManager()
+                    .queryIntentActivities(send, PackageManager.MATCH_DEFAULT_ONLY);
+            for(final ResolveInfo target : targets) {
+                for(final Uri uri : uris) {
+                    getActivity().grantUriPermission(target.activityInfo.packageName,
+                            uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                }
             }
         }
-        //If handled is false, the Adapter will do default work for us.
-        return handled;
+        startActivity(Intent.createChooser(send, getString(R.string.action_export)));
     }
 
     /** (Auto-generated docs.)
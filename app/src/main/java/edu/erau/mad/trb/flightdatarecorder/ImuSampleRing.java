@@ -0,0 +1,137 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* ImuSampleRing.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to hand high-rate samples from the sensors to the logger. */
+
+/** A fixed-size ring of flight samples passed from one producer thread to
+ * one consumer thread without locks or allocating; when full, new records
+ * are dropped and counted. */
+final class ImuSampleRing {
+
+    /** Receives the records drained from a ring. */
+    interface Sink {
+        /** Called on the consumer thread for every record, oldest first.
+         * @param timestampNanos the sensor event time, in nanoseconds
+         * @param posEstimated whether the position was dead reckoned
+         * @param fixNanos the time the fix the position is from was taken,
+         *                 on the same clock; 0 if none */
+        void accept(long timestampNanos, double roll, double pitch, double yaw,
+                    double lati, double longi, double alt, boolean posEstimated,
+                    long fixNanos);
+    }
+
+    /** Capacity minus one; the capacity is a power of two */
+    private final int mask;
+
+    //Record fields; slot i of each array is one record
+    private final long[] timestamps;
+    private final double[] rolls;
+    private final double[] pitches;
+    private final double[] yaws;
+    private final double[] latis;
+    private final double[] longis;
+    private final double[] alts;
+    private final boolean[] posEstimates;
+    private final long[] fixTimes;
+
+    /** Number of records ever offered and accepted; written by the producer,
+     * only once a record's fields are */
+    private volatile long head = 0;
+    /** Number of records ever drained; written by the consumer, only once a
+     * record's fields are read */
+    private volatile long tail = 0;
+    /** The producer's last look at tail, so it only reads the volatile when
+     * the ring seems full */
+    private long cachedTail = 0;
+    /** Number of records dropped because the ring was full; written by the
+     * producer */
+    private volatile int dropped = 0;
+
+    /** Create a ring.
+     * @param minCapacity the least number of records it must hold; rounded
+     *                    up to a power of two */
+    ImuSampleRing(int minCapacity) {
+        if(minCapacity < 1 || minCapacity > 1 << 30) {
+            throw new IllegalArgumentException("Bad ring capacity " + minCapacity);
+        }
+        final int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+        mask = Math.max(capacity, 1) - 1;
+
+        timestamps = new long[mask + 1];
+        rolls = new double[mask + 1];
+        pitches = new double[mask + 1];
+        yaws = new double[mask + 1];
+        latis = new double[mask + 1];
+        longis = new double[mask + 1];
+        alts = new double[mask + 1];
+        posEstimates = new boolean[mask + 1];
+        fixTimes = new long[mask + 1];
+    }
+
+    /** Add a record; producer thread only.
+     * @param timestampNanos the sensor event time, in nanoseconds
+     * @param posEstimated whether the position was dead reckoned
+     * @param fixNanos the time the fix the position is from was taken, on
+     *                 the same clock; 0 if none
+     * @return false if the ring was full and the record was dropped */
+    boolean offer(long timestampNanos, double roll, double pitch, double yaw,
+                  double lati, double longi, double alt, boolean posEstimated,
+                  long fixNanos) {
+        final long h = head;
+        if(h - cachedTail > mask) {
+            cachedTail = tail;
+            if(h - cachedTail > mask) {
+                dropped++;
+                return false;
+            }
+        }
+
+        final int slot = (int) h & mask;
+        timestamps[slot] = timestampNanos;
+        rolls[slot] = roll;
+        pitches[slot] = pitch;
+        yaws[slot] = yaw;
+        latis[slot] = lati;
+        longis[slot] = longi;
+        alts[slot] = alt;
+        posEstimates[slot] = posEstimated;
+        fixTimes[slot] = fixNanos;
+        //Publishes the record to the consumer
+        head = h + 1;
+        return true;
+    }
+
+    /** Hand the oldest records to a sink, then free their slots; consumer
+     * thread only.
+     * @param max the most records to drain
+     * @return the number of records drained */
+    int drain(Sink sink, int max) {
+        final long t = tail;
+        final int count = (int) Math.min(head - t, max);
+        for(int i = 0; i < count; i++) {
+            final int slot = (int) (t + i) & mask;
+            sink.accept(timestamps[slot], rolls[slot], pitches[slot], yaws[slot],
+                    latis[slot], longis[slot], alts[slot], posEstimates[slot],
+                    fixTimes[slot]);
+        }
+        //Frees the slots for the producer
+        tail = t + count;
+        return count;
+    }
+
+    /** Get the number of records waiting to be drained */
+    int size() {
+        return (int) (head - tail);
+    }
+
+    /** Get the most records the ring holds */
+    int getCapacity() {
+        return mask + 1;
+    }
+
+    /** Get the number of records dropped so far because the ring was full */
+    int getDroppedCount() {
+        return dropped;
+    }
+}
@@ -15,23 +15,65 @@ import android.os.IBinder;
 import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
 
 /** This Service handles the recording of sensor data in the background,
  * so that the device may be used for other tasks while continuing to log data. */
-public class LoggingService extends Service implements Runnable {
+public class LoggingService extends Service implements FixedRateScheduler.Task {
+    private static final String TAG = "LoggingService";
+
     /** A copy of our local IBinder implementation */
     private final IBinder binder = new LoggingBinder();
 
     /** ID used to build notifications. Selected through use of random.org */
     public static final int NOTIFICATION_ID = 42078502;
 
+    /** Extra of the starting Intent with the sample rate, in samples per
+     * second. Left out (or 1), samples are logged once every
+     * EXTRA_LOG_PERIOD_MS; otherwise
+     * the sensors are captured at a high rate, clamped to between
+     * HIGH_RATE_MIN_HZ and HIGH_RATE_MAX_HZ. */
+    public static final String EXTRA_SAMPLE_RATE_HZ = "sampleRateHz";
+    /** Lowest and highest rates of high-rate capture */
+    public static final int HIGH_RATE_MIN_HZ = 50;
+    public static final int HIGH_RATE_MAX_HZ = 200;
+    /** Extra of the starting Intent with the longest time, in milliseconds,
+     * high-rate readings may be held in the sensors' FIFO, so they arrive in
+     * bursts and the processor can sleep in between. Left out (or 0), they
+     * are not batched; ignored when logging once a second. */
+    public static final String EXTRA_BATCH_LATENCY_MS = "batchLatencyMs";
+
+    /** Extra of the starting Intent with the milliseconds between samples
+     * when not capturing at a high rate; left out, 1000 */
+    public static final String EXTRA_LOG_PERIOD_MS = "logPeriodMs";
+    /** Milliseconds between samples unless EXTRA_LOG_PERIOD_MS says otherwise */
+    private static final int DEFAULT_LOG_PERIOD_MS = 1000;
+    /** Boolean extra of the starting Intent; if set, and not capturing at a
+     * high rate, samples are logged more or less often depending on how the
+     * aircraft is moving, instead of every EXTRA_LOG_PERIOD_MS. */
+    public static final String EXTRA_ADAPTIVE_RATE = "adaptiveRate";
+
+    /** Milliseconds between drains of the sample ring at a high rate, when
+     * not batched */
+    private static final long DRAIN_INTERVAL_MS = 100;
+    /** Longest batch latency taken from EXTRA_BATCH_LATENCY_MS */
+    private static final int MAX_BATCH_LATENCY_MS = 60000;
+    /** Seconds of samples the ring holds, so a slow commit drops none;
+     * two bursts' worth more when batched */
+    private static final int RING_SECONDS = 4;
+    /** Longest time, in milliseconds, between drains of the sample ring
+     * when not capturing at a high rate */
+    private static final long MAX_TICK_PERIOD_MS = 1000;
+
     /** Thread used to handle periodic generation of activity */
     private HandlerThread hThread;
     /** Handler used to enqueue tasks to hThread */
     private Handler handler;
+    /** Runs onTick on hThread, once per sample or drain, on fixed deadlines */
+    private FixedRateScheduler scheduler;
 
     /** Object to manage the tracking of position and orientation in space */
     private DevicePosAndOrient posAndOrient;
@@ -39,6 +81,35 @@ public class LoggingService extends Service implements Runnable {
     /** The system uptime at which logging was initiated */
     private long sysStartTime;
 
+    /** Readings of every sensor, waiting to be resampled and logged; null
+     * if there are no orientation sensors, and samples are logged from
+     * posAndOrient every tick instead */
+    private ImuSampleRing sampleRing;
+    /** Microseconds between logged samples */
+    private long samplePeriodMicros;
+    /** The sensor rate of high-rate capture, in Hz */
+    private int sampleRateHz;
+    /** The longest time readings are batched at a high rate, in
+     * milliseconds; 0 if not batched */
+    private int batchLatencyMs;
+    /** Milliseconds between drains of the sample ring at a high rate */
+    private long drainIntervalMs = DRAIN_INTERVAL_MS;
+    /** The SystemClock.elapsedRealtimeNanos at which logging was initiated,
+     * which the ring's samples are stamped on */
+    private long sensorStartNanos;
+    /** Delta t of the last sample logged from the ring; -1 if none */
+    private long lastRingDeltaT = -1;
+    /** The ring's dropped readings as of the last warning about them */
+    private int reportedRingDrops = 0;
+    /** Delta t of the last tick; -1 if none */
+    private long lastTickDeltaT = -1;
+    /** Delta t at which listeners are next updated, if ticking more than
+     * once a second */
+    private long nextPublishDeltaT = 0;
+
+    /** Chooses the logging period from the motion; null unless asked for */
+    private AdaptiveRateController rateController;
+
     /** Database management object */
     private FlightLogDatabase database;
     /** Database connection, used in tandem with the FlightLogDatabase */
@@ -99,20 +170,82 @@ public class LoggingService extends Service implements Runnable {
         //With our notification ready, become a foreground service
         startForeground(NOTIFICATION_ID, notiBuilder.build());
 
+        //Capture at a high rate if asked to; null on a sticky restart
+        final int rate = intent != null ? intent.getIntExtra(EXTRA_SAMPLE_RATE_HZ, 1) : 1;
+        //Every reading goes through the ring, to be resampled onto the
+        //logging period
+        final long tickPeriod;
+        if(rate > 1) {
+            sampleRateHz = Math.max(HIGH_RATE_MIN_HZ, Math.min(HIGH_RATE_MAX_HZ, rate));
+            batchLatencyMs = Math.max(0, Math.min(MAX_BATCH_LATENCY_MS,
+                    intent.getIntExtra(EXTRA_BATCH_LATENCY_MS, 0)));
+            //A burst is logged all at once, so there is no use draining more
+            //often than bursts come in
+            drainIntervalMs = Math.max(DRAIN_INTERVAL_MS, batchLatencyMs / 2);
+            //Gyroscope and magnetometer readings are records as well
+            final int ringMillis = RING_SECONDS * 1000 + 2 * batchLatencyMs;
+            sampleRing = new ImuSampleRing(2 * sampleRateHz * ringMillis / 1000);
+            samplePeriodMicros = Math.round(1e6 / sampleRateHz);
+            tickPeriod = drainIntervalMs;
+        } else {
+            final long logPeriod;
+            if(intent != null && intent.getBooleanExtra(EXTRA_ADAPTIVE_RATE, false)) {
+                rateController = new AdaptiveRateController();
+                logPeriod = rateController.getState().getLoggingPeriodMillis();
+            } else {
+                logPeriod = Math.max(1, intent != null ?
+                        intent.getIntExtra(EXTRA_LOG_PERIOD_MS, DEFAULT_LOG_PERIOD_MS) :
+                        DEFAULT_LOG_PERIOD_MS);
+            }
+            //The ring is made once the sensors' fastest rate is known
+            samplePeriodMicros = logPeriod * 1000L;
+            //Drained at least once a second, however seldom samples are logged
+            tickPeriod = Math.min(logPeriod, MAX_TICK_PERIOD_MS);
+        }
+        //A late tick is logged at its own deadline; missed ones are gaps in
+        //the flight rather than made-up samples
+        scheduler = new FixedRateScheduler(handler, tickPeriod,
+                FixedRateScheduler.OverrunPolicy.SKIP, this);
+
         //Get the time that logging began
         final long realStartTime = System.currentTimeMillis();
         sysStartTime = SystemClock.elapsedRealtime();
+        sensorStartNanos = sysStartTime * 1000000L;
 
         //Initiate activity on our independent thread
         handler.post(new Runnable() {
             @Override
             public void run() {
+                //Finish off any flight that was cut short by the process dying
+                database.recoverUnfinishedFlights();
                 //Open the database connection and kick posAndOrient into gear
                 dbConnection = database.openLoggingDBConnection(realStartTime);
                 posAndOrient = new DevicePosAndOrient(LoggingService.this);
-                posAndOrient.startListening();
-                //Calls LoggingService.run() 1s from now on this thread
-                handler.postDelayed(LoggingService.this, 1000);
+                if(!posAndOrient.hasOrientationSensors()) {
+                    //Only the position to log; it is taken every period as it
+                    //is, and no more than once a second for a high rate
+                    sampleRing = null;
+                    scheduler.setPeriod(sampleRateHz > 0 ? DEFAULT_LOG_PERIOD_MS :
+                            samplePeriodMicros / 1000L);
+                } else {
+                    if(sampleRateHz == 0) {
+                        //Sensors may report faster than asked, and the rate
+                        //controller asks for different rates, so leave room
+                        //for as fast as they go
+                        sampleRing = new ImuSampleRing(
+                                posAndOrient.getMaxReadingsHz() * (RING_SECONDS + 1));
+                    }
+                    database.startResampling(sensorStartNanos, samplePeriodMicros);
+                }
+                if(sampleRateHz > 0 && sampleRing != null) {
+                    posAndOrient.startListening(sampleRateHz, batchLatencyMs, sampleRing);
+                } else {
+                    posAndOrient.setSampleRing(sampleRing);
+                    posAndOrient.startListening();
+                }
+                //Calls LoggingService.onTick() one period after the start
+                //time, and every period after that, on this thread
+                scheduler.start(sysStartTime + scheduler.getPeriod());
             }
         });
 
@@ -133,14 +266,34 @@ public class LoggingService extends Service implements Runnable {
         if(serviceStarted) {
             //Reset the started flag (just in case)
             serviceStarted = false;
-            //Turn off position/location updates
-            posAndOrient.stopListening();
-            //Kill the HandlerThread
-            hThread.quit();
-
-            //Finish the database recording.
+            //Stop periodic logging on the logging thread itself, and finish up
+            //there, so that the last sample can't race a logging tick in progress
             final long lastDeltaT = SystemClock.elapsedRealtime() - sysStartTime;
-            database.concludeLogging(dbConnection, posAndOrient, lastDeltaT);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    scheduler.stop();
+                    if(BuildConfig.DEBUG) Log.d(TAG, "Logging ticks: " + scheduler);
+
+                    //Turn off position/location updates; batched readings
+                    //still in the sensors' FIFO are flushed to the ring first
+                    posAndOrient.stopListening();
+
+                    //Log what is left in the ring; the last sample must come after it
+                    if(sampleRing != null) {
+                        lastRingDeltaT = database.logFlightSamples(dbConnection, sampleRing);
+                        reportRingDrops();
+                    }
+
+                    //Finish the database recording, after any tick that ran
+                    //since onDestroy was called
+                    database.concludeLogging(dbConnection, posAndOrient, Math.max(lastDeltaT,
+                            Math.max(lastTickDeltaT, lastRingDeltaT) + 1));
+
+                    //Kill the HandlerThread
+                    hThread.quit();
+                }
+            });
 
             //Unregister UI listeners...
             unregisterAllListeners();
@@ -148,20 +301,54 @@ public class LoggingService extends Service implements Runnable {
         super.onDestroy();
     }
 
-    //This run method is repeatedly called by the Handler/HandlerThread every second.
+    //Called by the scheduler on the HandlerThread every logging period, but
+    //at least once a second, or every drainIntervalMs when capturing at a
+    //high rate. With a ring, the samples are on their own time grid; without
+    //one, each tick stands for its deadline, so samples are spaced exactly a
+    //period apart.
     @Override
-    public void run() {
+    public void onTick(long deadline) {
         //Calculate time since we began
-        final long deltaT = SystemClock.elapsedRealtime() - sysStartTime;
+        final long deltaT = deadline - sysStartTime;
+        lastTickDeltaT = deltaT;
+
+        //Listeners only need updating once a second
+        if(deltaT >= nextPublishDeltaT) {
+            publishToListeners(deltaT);
+            if(sampleRing != null) reportRingDrops();
+            nextPublishDeltaT = deltaT + 1000;
+        }
 
-        //Update the UI of any available listeners
-        publishToListeners(deltaT);
+        if(sampleRing != null) {
+            //Log everything the sensors captured since the last drain
+            lastRingDeltaT = database.logFlightSamples(dbConnection, sampleRing);
+        } else {
+            //Update the database
+            database.logFlightData(dbConnection, posAndOrient, deltaT);
+        }
 
-        //Update the database
-        database.logFlightData(dbConnection, posAndOrient, deltaT);
+        //Follow the motion; a faster rate starts with the very next sample
+        if(rateController != null && rateController.update(deadline, posAndOrient)) {
+            final AdaptiveRateController.MotionState state = rateController.getState();
+            final long logPeriod = state.getLoggingPeriodMillis();
+            if(sampleRing != null) {
+                database.setResamplingPeriod(logPeriod * 1000L);
+                scheduler.setPeriod(Math.min(logPeriod, MAX_TICK_PERIOD_MS));
+            } else {
+                scheduler.setPeriod(logPeriod);
+            }
+            posAndOrient.setSensorPeriods(state.getSensorPeriodUs(), state.getGyroPeriodUs());
+        }
+    }
 
-        //Call this again in one second
-        handler.postDelayed(this, 1000);
+    /** Warn if the sample ring has dropped readings since the last warning,
+     * i.e. the logging thread fell behind the sensors. */
+    private void reportRingDrops() {
+        final int dropped = sampleRing.getDroppedCount();
+        if(dropped == reportedRingDrops) return;
+        Log.w(TAG, "Sample ring full; " + (dropped - reportedRingDrops) +
+                " readings dropped (" + dropped + " this flight)");
+        reportedRingDrops = dropped;
     }
 
     /** Publish time and position/orient. updates to any subscribed activities */
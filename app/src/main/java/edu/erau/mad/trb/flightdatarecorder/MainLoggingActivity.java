@@ -7,9 +7,12 @@ package edu.erau.mad.trb.flightdatarecorder;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.v7.app.ActionBarActivity;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
 import android.widget.ToggleButton;
@@ -22,6 +25,17 @@ public class MainLoggingActivity extends ActionBarActivity
         implements View.OnClickListener, ServiceConnection,
         LoggingService.LogUpdateInterface {
 
+    /** Preference holding whether flights are captured at a high rate */
+    private static final String PREF_HIGH_RATE = "highRate";
+    /** Sample rate of high-rate capture, in Hz */
+    private static final int HIGH_RATE_HZ = 100;
+    /** Preference holding whether high-rate readings are batched */
+    private static final String PREF_BATCH_SENSORS = "batchSensors";
+    /** Longest time high-rate readings are batched for, in milliseconds */
+    private static final int BATCH_LATENCY_MS = 10000;
+    /** Preference holding whether the sample rate follows the motion */
+    private static final String PREF_ADAPTIVE_RATE = "adaptiveRate";
+
     //Maps to start a LoggingService (to avoid a bunch of redundant new Intent())
     private Intent serviceIntent;
 
@@ -41,6 +55,9 @@ public class MainLoggingActivity extends ActionBarActivity
      * starting AND binding. */
     private LoggingService service;
 
+    /** The position and orientation shown, read on the UI thread */
+    private final DevicePosAndOrient.Snapshot fieldData = new DevicePosAndOrient.Snapshot();
+
     //Called when activity created. Connects XML views to this class.
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,6 +78,11 @@ public class MainLoggingActivity extends ActionBarActivity
         dispAlt = (TextView) findViewById(R.id.dispAlt);
 
         startStopButton.setOnClickListener(this);
+
+        //Close out any flights left unfinished by a crash
+        FlightLogDatabase.getInstance(this).recoverUnfinishedFlightsInBackground();
+        //And keep the database tidy while the device isn't in use
+        FlightLogMaintenanceService.schedule(this);
     }
 
     //On activity resume, attempt to bind with the LoggingService for UI updates
@@ -84,13 +106,15 @@ public class MainLoggingActivity extends ActionBarActivity
     //Update the position and orientation fields
     @Override
     public void updateFieldData(DevicePosAndOrient data) {
-        dispRoll.setText(DevicePosAndOrient.formatDegValue(data.getRoll()));
-        dispPitch.setText(DevicePosAndOrient.formatDegValue(data.getPitch()));
-        dispYaw.setText(DevicePosAndOrient.formatDegValue(data.getAz()));
-
-        dispLati.setText(data.getNiceLatitude());
-        dispLongi.setText(data.getNiceLongitude());
-        dispAlt.setText(data.getNiceAltitude());
+        //All fields from the same moment
+        data.readSnapshot(fieldData);
+        dispRoll.setText(DevicePosAndOrient.formatDegValue(fieldData.getRoll()));
+        dispPitch.setText(DevicePosAndOrient.formatDegValue(fieldData.getPitch()));
+        dispYaw.setText(DevicePosAndOrient.formatDegValue(fieldData.getAz()));
+
+        dispLati.setText(fieldData.getNiceLatitude());
+        dispLongi.setText(fieldData.getNiceLongitude());
+        dispAlt.setText(fieldData.getNiceAltitude());
     }
 
     //Update the clock in HH:MM:SS format from a delta-t
@@ -107,9 +131,48 @@ public class MainLoggingActivity extends ActionBarActivity
         clock.setText(String.format("%02d:%02d:%02d", hours, minutes, seconds));
     }
 
+    //Adds the sample rate options
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main_logging, menu);
+        final SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+        menu.findItem(R.id.action_high_rate).setChecked(
+                prefs.getBoolean(PREF_HIGH_RATE, false));
+        menu.findItem(R.id.action_batch_sensors).setChecked(
+                prefs.getBoolean(PREF_BATCH_SENSORS, false));
+        menu.findItem(R.id.action_adaptive_rate).setChecked(
+                prefs.getBoolean(PREF_ADAPTIVE_RATE, false));
+        return true;
+    }
+
+    //Remembers the sample rate options for the next flight
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        final String pref;
+        if(item.getItemId() == R.id.action_high_rate) {
+            pref = PREF_HIGH_RATE;
+        } else if(item.getItemId() == R.id.action_batch_sensors) {
+            pref = PREF_BATCH_SENSORS;
+        } else if(item.getItemId() == R.id.action_adaptive_rate) {
+            pref = PREF_ADAPTIVE_RATE;
+        } else {
+            return super.onOptionsItemSelected(item);
+        }
+        item.setChecked(!item.isChecked());
+        getPreferences(MODE_PRIVATE).edit().putBoolean(pref, item.isChecked()).apply();
+        return true;
+    }
+
     /** Initiate a new LoggingService and bind to it (called on toggle button press) */
     public void startLogging() {
-        startService(serviceIntent);
+        final SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+        final boolean highRate = prefs.getBoolean(PREF_HIGH_RATE, false);
+        final boolean batched = prefs.getBoolean(PREF_BATCH_SENSORS, false);
+        startService(new Intent(serviceIntent)
+                .putExtra(LoggingService.EXTRA_SAMPLE_RATE_HZ, highRate ? HIGH_RATE_HZ : 1)
+                .putExtra(LoggingService.EXTRA_BATCH_LATENCY_MS, batched ? BATCH_LATENCY_MS : 0)
+                .putExtra(LoggingService.EXTRA_ADAPTIVE_RATE,
+                        prefs.getBoolean(PREF_ADAPTIVE_RATE, false)));
         bindService(serviceIntent, this, BIND_AUTO_CREATE);
     }
 
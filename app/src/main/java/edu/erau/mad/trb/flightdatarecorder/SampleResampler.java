@@ -0,0 +1,246 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* SampleResampler.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to put sensor samples on an even time grid before they are logged. */
+
+/** Interpolates the records drained from an ImuSampleRing onto an exact
+ * time grid, one sample every period, holding samples back until any fix
+ * near them has arrived. Nothing allocates after construction. */
+final class SampleResampler implements ImuSampleRing.Sink {
+
+    /** Receives the samples of a resampler, in order. */
+    interface Output {
+        /** Called for every sample, oldest first.
+         * @param deltaTmicros microseconds since the start of the flight; a
+         *                     whole number of periods after the last sample
+         * @param posEstimated whether the position was dead reckoned */
+        void accept(long deltaTmicros, double roll, double pitch, double yaw,
+                    double lati, double longi, double alt, boolean posEstimated);
+    }
+
+    /** Longest gap, in nanoseconds, between records that samples are
+     * interpolated over */
+    private static final long MAX_GAP_NANOS = 2000000000L;
+    /** Longest time, in nanoseconds, a fix is expected to take to arrive
+     * after it was taken */
+    private static final long MAX_FIX_DELAY_NANOS = 1000000000L;
+    /** Most samples held back at once; when full, the oldest goes on early */
+    private static final int PENDING_CAPACITY = 256;
+    /** Number of recent fix times kept for marking new samples */
+    private static final int FIX_HISTORY = 4;
+
+    /** Time the flight started, on the records' clock */
+    private final long startNanos;
+    private final Output output;
+    /** Microseconds between samples */
+    private long periodMicros;
+    /** Time of the last sample made or left out, in microseconds since the
+     * start; every later one is a period after the one before */
+    private long lastRowMicros = 0;
+
+    //The last record, which the next sample is interpolated from
+    private boolean havePrev = false;
+    private long prevNanos;
+    private double prevRoll, prevPitch, prevYaw, prevLati, prevLongi, prevAlt;
+    private boolean prevEstimated;
+    /** Whether the last record's position came from a fix at all */
+    private boolean prevHasFix;
+
+    /** Times the latest fixes were taken at, as a ring; 0 for none */
+    private final long[] fixTimes = new long[FIX_HISTORY];
+    private int fixCount = 0;
+
+    //Samples held back, as a FIFO ring; slot i of each array is one sample
+    private final long[] pendingMicros = new long[PENDING_CAPACITY];
+    private final double[] pendingRolls = new double[PENDING_CAPACITY];
+    private final double[] pendingPitches = new double[PENDING_CAPACITY];
+    private final double[] pendingYaws = new double[PENDING_CAPACITY];
+    private final double[] pendingLatis = new double[PENDING_CAPACITY];
+    private final double[] pendingLongis = new double[PENDING_CAPACITY];
+    private final double[] pendingAlts = new double[PENDING_CAPACITY];
+    private final boolean[] pendingEstimates = new boolean[PENDING_CAPACITY];
+    private int pendingFirst = 0;
+    private int pendingCount = 0;
+
+    //Statistics, for toString
+    private long records = 0;
+    private long staleRecords = 0;
+    private long rows = 0;
+    private long skippedRows = 0;
+    private long earlyRows = 0;
+
+    /** Create a resampler.
+     * @param startNanos the time the flight started, on the records' clock
+     * @param periodMicros microseconds between samples
+     * @param output where the samples go */
+    SampleResampler(long startNanos, long periodMicros, Output output) {
+        if(periodMicros <= 0) throw new IllegalArgumentException("Period must be positive");
+        this.startNanos = startNanos;
+        this.periodMicros = periodMicros;
+        this.output = output;
+    }
+
+    /** Change the period, from the next sample on: it is due the new period
+     * after the last one. */
+    void setPeriod(long periodMicros) {
+        if(periodMicros <= 0) throw new IllegalArgumentException("Period must be positive");
+        this.periodMicros = periodMicros;
+    }
+
+    /** Get the microseconds between samples */
+    long getPeriod() {
+        return periodMicros;
+    }
+
+    //Every record drained from the ring, oldest first
+    @Override
+    public void accept(long timestampNanos, double roll, double pitch, double yaw,
+                       double lati, double longi, double alt, boolean posEstimated,
+                       long fixNanos) {
+        records++;
+        if(havePrev && timestampNanos <= prevNanos) {
+            staleRecords++;
+            return;
+        }
+        final boolean hasFix = fixNanos != 0;
+        if(fixNanos != 0 && fixNanos != fixTimes[(fixCount + FIX_HISTORY - 1) % FIX_HISTORY]) {
+            addFix(fixNanos);
+        }
+
+        final long gap = timestampNanos - prevNanos;
+        if(!havePrev || gap > MAX_GAP_NANOS) {
+            //Nothing to interpolate from; every sample due by now is left out
+            final long due = (timestampNanos - toNanos(lastRowMicros)) /
+                    (periodMicros * 1000L);
+            if(due > 0) {
+                lastRowMicros += due * periodMicros;
+                skippedRows += due;
+            }
+        } else {
+            //Every sample due by this record, from it and the one before.
+            //A position is only interpolated between two fixes; before the
+            //first one, samples take this record's position as it is: none,
+            //stored as NaN, or the first fix, held
+            final boolean interpolatePos = prevHasFix && hasFix;
+            final double fixLati = hasFix ? lati : Double.NaN;
+            final double fixLongi = hasFix ? longi : Double.NaN;
+            final double fixAlt = hasFix ? alt : Double.NaN;
+            long rowNanos = toNanos(lastRowMicros + periodMicros);
+            while(rowNanos <= timestampNanos) {
+                lastRowMicros += periodMicros;
+                final double f = (double) (rowNanos - prevNanos) / gap;
+                addRow(lastRowMicros, lerpDegrees(prevRoll, roll, f),
+                        prevPitch + (pitch - prevPitch) * f,
+                        lerpDegrees(prevYaw, yaw, f),
+                        interpolatePos ? prevLati + (lati - prevLati) * f : fixLati,
+                        interpolatePos ? lerpDegrees(prevLongi, longi, f) : fixLongi,
+                        interpolatePos ? prevAlt + (alt - prevAlt) * f : fixAlt,
+                        interpolatePos ? prevEstimated || posEstimated : hasFix);
+                rowNanos = toNanos(lastRowMicros + periodMicros);
+            }
+        }
+
+        havePrev = true;
+        prevNanos = timestampNanos;
+        prevRoll = roll;
+        prevPitch = pitch;
+        prevYaw = yaw;
+        prevLati = lati;
+        prevLongi = longi;
+        prevAlt = alt;
+        prevEstimated = posEstimated;
+        prevHasFix = hasFix;
+
+        //No fix taken near them can still be on its way
+        while(pendingCount > 0 && toNanos(pendingMicros[pendingFirst]) +
+                periodMicros * 500L + MAX_FIX_DELAY_NANOS <= timestampNanos) {
+            emitFirst();
+        }
+    }
+
+    /** Hand on every sample held back; for the end of the flight. */
+    void flush() {
+        while(pendingCount > 0) {
+            emitFirst();
+        }
+    }
+
+    /** Remember a fix, and mark the samples held back that it was taken near. */
+    private void addFix(long fixNanos) {
+        fixTimes[fixCount % FIX_HISTORY] = fixNanos;
+        fixCount++;
+        for(int i = 0; i < pendingCount; i++) {
+            final int slot = (pendingFirst + i) % PENDING_CAPACITY;
+            if(isNearFix(pendingMicros[slot], fixNanos)) pendingEstimates[slot] = false;
+        }
+    }
+
+    /** Hold back a sample, marked as a fix if one was taken near it. */
+    private void addRow(long micros, double roll, double pitch, double yaw,
+                        double lati, double longi, double alt, boolean posEstimated) {
+        if(pendingCount == PENDING_CAPACITY) {
+            earlyRows++;
+            emitFirst();
+        }
+        for(int i = 0; posEstimated && i < Math.min(fixCount, FIX_HISTORY); i++) {
+            if(isNearFix(micros, fixTimes[i])) posEstimated = false;
+        }
+
+        final int slot = (pendingFirst + pendingCount) % PENDING_CAPACITY;
+        pendingMicros[slot] = micros;
+        pendingRolls[slot] = roll;
+        pendingPitches[slot] = pitch;
+        pendingYaws[slot] = yaw;
+        pendingLatis[slot] = lati;
+        pendingLongis[slot] = longi;
+        pendingAlts[slot] = alt;
+        pendingEstimates[slot] = posEstimated;
+        pendingCount++;
+        rows++;
+    }
+
+    private void emitFirst() {
+        final int slot = pendingFirst;
+        pendingFirst = (pendingFirst + 1) % PENDING_CAPACITY;
+        pendingCount--;
+        output.accept(pendingMicros[slot], pendingRolls[slot], pendingPitches[slot],
+                pendingYaws[slot], pendingLatis[slot], pendingLongis[slot],
+                pendingAlts[slot], pendingEstimates[slot]);
+    }
+
+    /** Whether a fix was taken within half a period of a sample's time */
+    private boolean isNearFix(long micros, long fixNanos) {
+        return Math.abs(toNanos(micros) - fixNanos) <= periodMicros * 500L;
+    }
+
+    /** Turn microseconds since the start into the records' clock */
+    private long toNanos(long micros) {
+        return startNanos + micros * 1000L;
+    }
+
+    /** Interpolate between two angles in degrees, from -180 to 180, the
+     * short way round. */
+    private static double lerpDegrees(double from, double to, double f) {
+        double diff = to - from;
+        if(diff > 180.0) {
+            diff -= 360.0;
+        } else if(diff < -180.0) {
+            diff += 360.0;
+        }
+        double result = from + diff * f;
+        if(result > 180.0) {
+            result -= 360.0;
+        } else if(result <= -180.0) {
+            result += 360.0;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records into %d samples every %d us: " +
+                        "%d stale records, %d samples left out, %d handed on early",
+                records, rows, periodMicros, staleRecords, skippedRows, earlyRows);
+    }
+}
@@ -0,0 +1,50 @@
+package edu.erau.mad.trb.flightdatarecorder;
+/* SensorClock.java
+ * SE395A Final Project
+ * by Thomas Bassa
+ * A Java class to put sensor event times on the elapsed real time clock. */
+
+import android.os.Build;
+import android.os.SystemClock;
+
+/** Turns SensorEvent timestamps into SystemClock.elapsedRealtimeNanos, on
+ * devices that stamp them on another clock, from the smallest gap seen
+ * between an event happening and arriving. */
+final class SensorClock {
+
+    /** Largest offset taken to be delivery delay rather than another clock */
+    private static final long SAME_CLOCK_NANOS = 50000000L;
+    /** Length of each window the smallest gap is kept over */
+    private static final long WINDOW_NANOS = 10000000000L;
+
+    /** Elapsed real time the current window started at; 0 before any event */
+    private long windowStart = 0;
+    /** The smallest gap seen in the current and the last window */
+    private long windowMinGap = Long.MAX_VALUE;
+    private long lastWindowMinGap = Long.MAX_VALUE;
+
+    /** Get SystemClock.elapsedRealtimeNanos, or as near as the API level allows */
+    static long elapsedRealtimeNanos() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
+
+    /** Turn the time of an event that just arrived into elapsed real time,
+     * learning the offset from it.
+     * @param eventNanos the SensorEvent timestamp
+     * @return the time of the event, in SystemClock.elapsedRealtimeNanos */
+    long toElapsedNanos(long eventNanos) {
+        final long now = elapsedRealtimeNanos();
+        if(now - windowStart >= WINDOW_NANOS) {
+            windowStart = now;
+            lastWindowMinGap = windowMinGap;
+            windowMinGap = Long.MAX_VALUE;
+        }
+        windowMinGap = Math.min(windowMinGap, now - eventNanos);
+
+        final long gap = Math.min(windowMinGap, lastWindowMinGap);
+        return Math.abs(gap) < SAME_CLOCK_NANOS ? eventNanos : eventNanos + gap;
+    }
+}